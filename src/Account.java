@@ -1,17 +1,26 @@
 package twophasecommit;
 
-import java.io.Serializable;
-
 /**
  * A simple class used for test data
+ *
+ * Balances are kept in an AccountStore, an Account
+ * carries a name and a balance in messages
  */
-public class Account implements Serializable {
+public class Account {
     private String name;
     private double balance;
 
+    //Version of the committed balance, 0 if the receiver keeps its own balance
+    private long version;
+
     public Account(String name, double balance){
+        this(name, balance, 0);
+    }
+
+    public Account(String name, double balance, long version){
         this.name = name;
         this.balance = balance;
+        this.version = version;
     }
 
     public String getName() {
@@ -22,6 +31,10 @@ public class Account implements Serializable {
         return balance;
     }
 
+    public long getVersion() {
+        return version;
+    }
+
     /**
      * Deposit money to account
      *
@@ -40,6 +53,15 @@ public class Account implements Serializable {
        balance -= amount;
     }
 
+    /**
+     * Restores the balance, used to undo an update
+     *
+     * @param balance the balance before the update
+     */
+    public void restore(double balance){
+        this.balance = balance;
+    }
+
     public String toString(){
         return name + ", " + balance;
     }
@@ -0,0 +1,415 @@
+package twophasecommit;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Loads accounts in bulk from a file
+ *
+ * Two formats are read:
+ * - CSV, a line per account on the form 'NAME,BALANCE', lines that do
+ *   not parse (e.g. a header) are skipped
+ * - Binary, the magic 'ACCT' and the width of a name, then a record per
+ *   account: the name in UTF-8 padded with zeros to the width, and the
+ *   balance in hundredths. All numbers are big-endian
+ *
+ * The file is memory-mapped and split in chunks, CSV at line breaks and
+ * binary at record boundaries, and the chunks are parsed in parallel.
+ * Each chunk hands its accounts to the sink in batches. Names are
+ * upper-cased, the same as the ACCOUNT command
+ */
+public class AccountLoader {
+
+    //First bytes of a binary file, 'ACCT'
+    public final static int MAGIC = 0x41434354;
+    private final static int BINARY_HEADER_SIZE = 8;
+
+    //Accounts handed to the sink at once
+    private final static int BATCH_SIZE = 4096;
+
+    //Largest chunk, there are also at least a few chunks per thread
+    private final static long CHUNK_SIZE = 64L << 20;
+
+    /**
+     * Receives the loaded accounts, batches come from several threads at once
+     */
+    public interface Sink {
+
+        /**
+         * Called before the first batch
+         *
+         * @param accounts the number of accounts in the file, estimated for CSV
+         */
+        void expect(int accounts);
+
+        /**
+         * Receives a batch of accounts, the arrays are reused after the call
+         *
+         * @param names the account names
+         * @param cents the balance of each account in hundredths
+         * @param count the number of accounts, from the start of the arrays
+         */
+        void accept(String[] names, long[] cents, int count);
+    }
+
+    //Outcome of a load
+    public static class Result {
+        private final long accounts;
+        private final long skipped;
+        private final long elapsed;
+
+        private Result(long accounts, long skipped, long elapsed){
+            this.accounts = accounts;
+            this.skipped = skipped;
+            this.elapsed = elapsed;
+        }
+
+        public long getAccounts(){
+            return accounts;
+        }
+
+        public long getSkipped(){
+            return skipped;
+        }
+
+        //Time taken in ns
+        public long getElapsed(){
+            return elapsed;
+        }
+
+        //Accounts loaded per second
+        public long getRate(){
+            return elapsed > 0 ? accounts * 1000000000L / elapsed : accounts;
+        }
+
+        public String toString(){
+            return "LOADED " + accounts + " ACCOUNTS IN " + elapsed / 1000000 + " MS (" + getRate() + " ACCOUNTS/S), "
+                    + skipped + " SKIPPED";
+        }
+    }
+
+    public static Result load(Path file, Sink sink) throws IOException {
+        return load(file, sink, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Loads the accounts in a file
+     *
+     * @param file the CSV or binary file
+     * @param sink receives the accounts
+     * @param pool parses the chunks
+     * @return     the number of accounts loaded and lines skipped, and the time taken
+     * @throws IOException if the file could not be read
+     */
+    public static Result load(Path file, Sink sink, ForkJoinPool pool) throws IOException {
+        long start = System.nanoTime();
+
+        try(FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            int parts = (int) Math.max(pool.getParallelism() * 4L, (size + CHUNK_SIZE - 1) / CHUNK_SIZE);
+
+            List<Callable<long[]>> tasks = new ArrayList<>();
+
+            if(size >= BINARY_HEADER_SIZE && readInt(channel, 0) == MAGIC) {
+                int width = readInt(channel, 4);
+
+                //A name must fit in a record, and a record in the file unless it holds none
+                if(width <= 0 || (size > BINARY_HEADER_SIZE && width > size - BINARY_HEADER_SIZE - 8))
+                    throw new IOException("INVALID NAME WIDTH " + width + " IN " + file);
+
+                long recordSize = width + 8L;
+                long records = (size - BINARY_HEADER_SIZE) / recordSize;
+                sink.expect((int) Math.min(Integer.MAX_VALUE, records));
+
+                //Splits at record boundaries
+                long perPart = Math.max(1, (records + parts - 1) / parts);
+                for(long first = 0; first < records; first += perPart){
+                    long from = BINARY_HEADER_SIZE + first * recordSize;
+                    long to = BINARY_HEADER_SIZE + Math.min(records, first + perPart) * recordSize;
+                    tasks.add(() -> parseBinary(channel, from, to, width, sink));
+                }
+            }
+            else {
+                sink.expect(estimateLines(channel, size));
+
+                //Splits after line breaks
+                long from = 0;
+                for(int i = 1; i <= parts && from < size; i++){
+                    long to = i == parts ? size : nextLine(channel, size * i / parts, size);
+                    if(to <= from) continue;
+
+                    long chunkFrom = from;
+                    tasks.add(() -> parseCsv(channel, chunkFrom, to, sink));
+                    from = to;
+                }
+            }
+
+            long accounts = 0;
+            long skipped = 0;
+            for(Future<long[]> future : pool.invokeAll(tasks)){
+                long[] counts = future.get();
+                accounts += counts[0];
+                skipped += counts[1];
+            }
+
+            return new Result(accounts, skipped, System.nanoTime() - start);
+        } catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+            throw new IOException("LOAD INTERRUPTED", e);
+        } catch (ExecutionException e){
+            if(e.getCause() instanceof IOException) throw (IOException) e.getCause();
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * Writes accounts to a binary file
+     *
+     * @param file  the file
+     * @param names the account names
+     * @param cents the balance of each account in hundredths
+     * @param count the number of accounts
+     * @param width the width of a name in bytes
+     * @throws IOException if the file could not be written
+     */
+    public static void writeBinary(Path file, String[] names, long[] cents, int count, int width) throws IOException {
+        try(DataOutputStream output = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file), 1 << 16))) {
+            output.writeInt(MAGIC);
+            output.writeInt(width);
+
+            for(int i = 0; i < count; i++){
+                byte[] name = names[i].getBytes(StandardCharsets.UTF_8);
+                if(name.length > width)
+                    throw new IllegalArgumentException("ACCOUNT NAME TOO LONG: " + names[i]);
+
+                output.write(name);
+                output.write(new byte[width - name.length]);
+                output.writeLong(cents[i]);
+            }
+        }
+    }
+
+    /**
+     * Parses a chunk of a CSV file
+     *
+     * @return the number of accounts loaded and of lines skipped
+     */
+    private static long[] parseCsv(FileChannel channel, long from, long to, Sink sink) throws IOException {
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, from, to - from);
+        Batch batch = new Batch(sink);
+        int limit = buffer.limit();
+
+        int position = 0;
+        while(position < limit){
+            int end = position;
+            while(end < limit && buffer.get(end) != '\n')
+                end++;
+
+            int lineEnd = end > position && buffer.get(end - 1) == '\r' ? end - 1 : end;
+
+            int comma = position;
+            while(comma < lineEnd && buffer.get(comma) != ',')
+                comma++;
+
+            //Blank lines are neither accounts nor skipped
+            if(lineEnd > position) {
+                String name = comma < lineEnd ? decodeName(buffer, position, comma, batch) : null;
+                long cents = comma < lineEnd ? parseCents(buffer, comma + 1, lineEnd) : -1;
+                batch.add(name, cents);
+            }
+
+            position = end + 1;
+        }
+
+        return batch.finish();
+    }
+
+    /**
+     * Parses a chunk of records in a binary file
+     *
+     * @return the number of accounts loaded and of records skipped
+     */
+    private static long[] parseBinary(FileChannel channel, long from, long to, int width, Sink sink) throws IOException {
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, from, to - from);
+        Batch batch = new Batch(sink);
+
+        for(int position = 0; position + width + 8 <= buffer.limit(); position += width + 8){
+            int end = position;
+            while(end < position + width && buffer.get(end) != 0)
+                end++;
+
+            batch.add(decodeName(buffer, position, end, batch), buffer.getLong(position + width));
+        }
+
+        return batch.finish();
+    }
+
+    //Accounts parsed by a chunk, handed to the sink when full
+    private static class Batch {
+        private final Sink sink;
+        private final String[] names = new String[BATCH_SIZE];
+        private final long[] cents = new long[BATCH_SIZE];
+        private int count = 0;
+
+        private long accounts = 0;
+        private long skipped = 0;
+
+        //Scratch space for names
+        private byte[] bytes = new byte[64];
+
+        private Batch(Sink sink){
+            this.sink = sink;
+        }
+
+        //Adds an account, or skips it if the name or the balance is invalid
+        private void add(String name, long balance){
+            if(name == null || balance < 0) {
+                skipped++;
+                return;
+            }
+
+            names[count] = name;
+            cents[count] = balance;
+            if(++count == BATCH_SIZE) flush();
+        }
+
+        private void flush(){
+            if(count == 0) return;
+
+            sink.accept(names, cents, count);
+            accounts += count;
+            count = 0;
+        }
+
+        private long[] finish(){
+            flush();
+            return new long[]{accounts, skipped};
+        }
+    }
+
+    /**
+     * Decodes and upper-cases a name, without spaces or quotes around it
+     *
+     * @return the name, or null if it is empty
+     */
+    private static String decodeName(ByteBuffer buffer, int from, int to, Batch batch){
+        while(from < to && isBlank(buffer.get(from))) from++;
+        while(to > from && isBlank(buffer.get(to - 1))) to--;
+        if(to - from >= 2 && buffer.get(from) == '"' && buffer.get(to - 1) == '"') {
+            from++;
+            to--;
+        }
+
+        int length = to - from;
+        if(length == 0) return null;
+        if(length > batch.bytes.length) batch.bytes = new byte[Math.max(length, batch.bytes.length * 2)];
+
+        //ASCII is upper-cased while it is copied, anything else by String
+        boolean ascii = true;
+        for(int i = 0; i < length; i++){
+            byte b = buffer.get(from + i);
+            if(b < 0) ascii = false;
+            batch.bytes[i] = b >= 'a' && b <= 'z' ? (byte) (b - 32) : b;
+        }
+
+        return ascii ? new String(batch.bytes, 0, length, StandardCharsets.ISO_8859_1)
+                : new String(batch.bytes, 0, length, StandardCharsets.UTF_8).toUpperCase();
+    }
+
+    /**
+     * Parses a balance like '1234.5' into hundredths, digits
+     * past the hundredths round it
+     *
+     * @return the balance in hundredths, or -1 if it is invalid or negative
+     */
+    private static long parseCents(ByteBuffer buffer, int from, int to){
+        while(from < to && isBlank(buffer.get(from))) from++;
+        while(to > from && isBlank(buffer.get(to - 1))) to--;
+        if(from == to) return -1;
+
+        long whole = 0;
+        int digits = 0;
+        int position = from;
+        for(; position < to && buffer.get(position) != '.'; position++){
+            int digit = buffer.get(position) - '0';
+            if(digit < 0 || digit > 9 || ++digits > 16) return -1;
+            whole = whole * 10 + digit;
+        }
+
+        //Reads two decimals, and a third to round
+        long fraction = 0;
+        int decimals = 0;
+        boolean roundUp = false;
+        for(position++; position < to; position++){
+            int digit = buffer.get(position) - '0';
+            if(digit < 0 || digit > 9) return -1;
+
+            if(decimals < 2) fraction = fraction * 10 + digit;
+            else if(decimals == 2) roundUp = digit >= 5;
+            decimals++;
+        }
+
+        if(digits == 0 && decimals == 0) return -1;
+        for(; decimals < 2; decimals++)
+            fraction *= 10;
+
+        return whole * AccountStore.SCALE + fraction + (roundUp ? 1 : 0);
+    }
+
+    private static boolean isBlank(byte b){
+        return b == ' ' || b == '\t';
+    }
+
+    //Finds the start of the first line after a position
+    private static long nextLine(FileChannel channel, long position, long size) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(4096);
+
+        while(position < size){
+            buffer.clear();
+            int read = channel.read(buffer, position);
+            if(read <= 0) break;
+
+            for(int i = 0; i < read; i++)
+                if(buffer.get(i) == '\n') return position + i + 1;
+
+            position += read;
+        }
+
+        return size;
+    }
+
+    //Estimates the number of lines from the first MB
+    private static int estimateLines(FileChannel channel, long size) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(size, 1 << 20));
+        channel.read(buffer, 0);
+
+        int lines = 0;
+        for(int i = 0; i < buffer.position(); i++)
+            if(buffer.get(i) == '\n') lines++;
+
+        if(lines == 0 || buffer.position() == 0) return 1;
+        return (int) Math.min(Integer.MAX_VALUE, size * lines / buffer.position());
+    }
+
+    private static int readInt(FileChannel channel, long position) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(4);
+        while(buffer.hasRemaining())
+            if(channel.read(buffer, position + buffer.position()) < 0) return 0;
+
+        return buffer.getInt(0);
+    }
+}
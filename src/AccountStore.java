@@ -0,0 +1,507 @@
+package twophasecommit;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.function.BiConsumer;
+
+/**
+ * Account balances kept off the heap
+ *
+ * Balances are fixed-point longs in hundredths, stored in records of
+ * direct memory together with the account name, so a lookup touches
+ * one entry of the index and one record. An open-addressing index
+ * (linear probing) maps a name to its record. Records are allocated
+ * in chunks that never move, so a slot stays valid while the store grows
+ *
+ * Looking up a name, depositing and withdrawing do not allocate and
+ * do not lock: balances are updated with atomic adds. Only adding and
+ * removing accounts take a lock
+ *
+ * Each record also has a version, which lets optimistic transactions
+ * check that an account has not changed since they read it
+ */
+public class AccountStore {
+
+    //Balances are kept in hundredths
+    public final static int SCALE = 100;
+
+    /*
+     * A record is [long balance][int version][int name length][name], padded
+     * to 8 bytes. Names with only Latin-1 chars take a byte per char, others
+     * take two, which is marked by the top bit of the length
+     */
+    private final static int VERSION = 8;
+    private final static int LENGTH = 12;
+    private final static int HEADER_SIZE = 16;
+    private final static int WIDE = 0x80000000;
+
+    //Records are stored in chunks of 1 MB, a slot is <chunk, offset / 8>
+    private final static int CHUNK_BITS = 20;
+    private final static int CHUNK_SIZE = 1 << CHUNK_BITS;
+    private final static int OFFSET_BITS = CHUNK_BITS - 3;
+    private final static int MAX_CHUNKS = (1 << (31 - OFFSET_BITS)) - 1;
+
+    //An index entry is <hash, slot + 1>, 0 is an empty entry and -1 a removed one
+    private final static int EMPTY = 0;
+    private final static int REMOVED = -1;
+
+    //Atomic access to longs and ints in direct memory
+    private final static VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+    private final static VarHandle INTS = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.nativeOrder());
+
+    //Chunks of records, the array is replaced when it grows
+    private volatile ByteBuffer[] chunks = new ByteBuffer[0];
+
+    //The index, replaced when it grows
+    private volatile Index index;
+
+    //Where the next record goes, only changed under the lock
+    private int chunk = -1;
+    private int position = CHUNK_SIZE;
+
+    //Number of accounts, and number of index entries in use (accounts and removed)
+    private volatile int size = 0;
+    private int used = 0;
+
+    //An open-addressing table of 8-byte entries
+    private static final class Index {
+        private final ByteBuffer table;
+        private final int capacity;
+        private final int mask;
+
+        private Index(int capacity){
+            this.table = ByteBuffer.allocateDirect(capacity * 8).order(ByteOrder.nativeOrder());
+            this.capacity = capacity;
+            this.mask = capacity - 1;
+        }
+
+        private long get(int position){
+            return (long) LONGS.getAcquire(table, position * 8);
+        }
+
+        private void set(int position, long entry){
+            LONGS.setRelease(table, position * 8, entry);
+        }
+    }
+
+    public AccountStore(){
+        this(1024);
+    }
+
+    /**
+     * Creates an empty store
+     *
+     * @param expectedAccounts the number of accounts to make room for in the index
+     */
+    public AccountStore(int expectedAccounts){
+        int capacity = Integer.highestOneBit(Math.max(16, expectedAccounts) * 2 - 1) << 1;
+        this.index = new Index(capacity);
+    }
+
+    /**
+     * Converts an amount to hundredths
+     *
+     * @param amount the amount
+     * @return       the amount in hundredths, rounded
+     */
+    public static long toCents(double amount){
+        return Math.round(amount * SCALE);
+    }
+
+    /**
+     * Converts hundredths to an amount
+     *
+     * @param cents the amount in hundredths
+     * @return      the amount
+     */
+    public static double toAmount(long cents){
+        return (double) cents / SCALE;
+    }
+
+    public int size(){
+        return size;
+    }
+
+    /**
+     * Gets the slot of an account
+     *
+     * @param name the account name
+     * @return     the slot, or -1 if there is no such account
+     */
+    public int slot(String name){
+        return find(index, name, hash(name));
+    }
+
+    /**
+     * Gets the slot of an account, adds the account if it does not exist
+     *
+     * @param name    the account name
+     * @param balance the balance of a new account
+     * @return        the slot
+     */
+    public int getOrCreate(String name, double balance){
+        int slot = slot(name);
+        return slot >= 0 ? slot : add(name, toCents(balance), false);
+    }
+
+    /**
+     * Sets the balance of an account, adds the account if it does not exist
+     *
+     * @param name    the account name
+     * @param balance the balance
+     * @return        the slot
+     */
+    public int put(String name, double balance){
+        return putCents(name, toCents(balance));
+    }
+
+    /**
+     * Sets the balance of an account in hundredths, adds the account if it does not exist
+     *
+     * @param name  the account name
+     * @param cents the balance in hundredths
+     * @return      the slot
+     */
+    public int putCents(String name, long cents){
+        int slot = slot(name);
+        if(slot < 0) return add(name, cents, true);
+
+        setCents(slot, cents);
+        return slot;
+    }
+
+    /**
+     * Makes room in the index for more accounts at once,
+     * so a bulk load does not grow it step by step
+     *
+     * @param accounts the number of accounts about to be added
+     */
+    public synchronized void ensureCapacity(int accounts){
+        long needed = ((long) used + accounts) * 2;
+        if(needed <= index.capacity) return;
+
+        resize((int) Math.min(1 << 27, Long.highestOneBit(needed - 1) << 1));
+    }
+
+    public long getCents(int slot){
+        return (long) LONGS.getVolatile(chunks[slot >>> OFFSET_BITS], offset(slot));
+    }
+
+    public void setCents(int slot, long cents){
+        LONGS.setVolatile(chunks[slot >>> OFFSET_BITS], offset(slot), cents);
+    }
+
+    public double getBalance(int slot){
+        return toAmount(getCents(slot));
+    }
+
+    /**
+     * Adds to the balance of an account, atomically
+     *
+     * @param slot  the slot of the account
+     * @param cents the amount in hundredths, negative to withdraw
+     * @return      the balance in hundredths before the update
+     */
+    public long add(int slot, long cents){
+        return (long) LONGS.getAndAdd(chunks[slot >>> OFFSET_BITS], offset(slot), cents);
+    }
+
+    /**
+     * Gets the version of an account, for optimistic concurrency control
+     *
+     * The version is even while the account has no writes pending, and
+     * odd from when a write is validated until it is applied or dropped
+     *
+     * @param slot the slot of the account
+     * @return     the version
+     */
+    public int getVersion(int slot){
+        return (int) INTS.getVolatile(chunks[slot >>> OFFSET_BITS], offset(slot) + VERSION);
+    }
+
+    /**
+     * Sets the version of an account, for a store where nothing is
+     * reserved and the version stamps the last write, see AccountVersions
+     *
+     * @param slot    the slot of the account
+     * @param version the version
+     */
+    public void setVersion(int slot, int version){
+        INTS.setVolatile(chunks[slot >>> OFFSET_BITS], offset(slot) + VERSION, version);
+    }
+
+    /**
+     * Reserves an account for a write, if it has not changed since it was read
+     *
+     * @param slot    the slot of the account
+     * @param version the version that was read
+     * @return        false if the version has changed, or a write is pending
+     */
+    public boolean reserve(int slot, int version){
+        return (version & 1) == 0 && INTS.compareAndSet(chunks[slot >>> OFFSET_BITS], offset(slot) + VERSION, version, version + 1);
+    }
+
+    /**
+     * Applies a reserved write and moves the account to the next version,
+     * only called by the holder of the reservation
+     *
+     * @param slot  the slot of the account
+     * @param cents the amount in hundredths, 0 to drop the write
+     */
+    public void release(int slot, long cents){
+        ByteBuffer buffer = chunks[slot >>> OFFSET_BITS];
+        int offset = offset(slot);
+
+        LONGS.getAndAdd(buffer, offset, cents);
+        INTS.setVolatile(buffer, offset + VERSION, (int) INTS.getVolatile(buffer, offset + VERSION) + 1);
+    }
+
+    /**
+     * Deposits money to an account
+     *
+     * @param name   the account name
+     * @param amount the amount to deposit
+     * @return       false if there is no such account
+     */
+    public boolean deposit(String name, double amount){
+        int slot = slot(name);
+        if(slot < 0) return false;
+
+        add(slot, toCents(amount));
+        return true;
+    }
+
+    /**
+     * Withdraws money from an account
+     *
+     * @param name   the account name
+     * @param amount the amount to withdraw
+     * @return       false if there is no such account
+     */
+    public boolean withdraw(String name, double amount){
+        return deposit(name, -amount);
+    }
+
+    /**
+     * Removes an account, its record is not reused
+     *
+     * @param name the account name
+     * @return     false if there is no such account
+     */
+    public synchronized boolean remove(String name){
+        int hash = hash(name);
+        Index current = index;
+
+        for(int position = hash & current.mask; ; position = (position + 1) & current.mask){
+            long entry = current.get(position);
+            int field = (int) entry;
+
+            if(field == EMPTY) return false;
+            if(field != REMOVED && (int) (entry >>> 32) == hash && matches(field - 1, name)) {
+                current.set(position, ((long) hash << 32) | (REMOVED & 0xffffffffL));
+                size--;
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Goes through every account, allocates a name for each
+     *
+     * @param consumer receives the name and balance of each account
+     */
+    public void forEach(BiConsumer<String, Double> consumer){
+        Index current = index;
+
+        for(int position = 0; position < current.capacity; position++){
+            int field = (int) current.get(position);
+            if(field == EMPTY || field == REMOVED) continue;
+
+            consumer.accept(name(field - 1), getBalance(field - 1));
+        }
+    }
+
+    /**
+     * Gets the direct memory held by the store
+     *
+     * @return the number of bytes
+     */
+    public long getFootprint(){
+        return (long) chunks.length * CHUNK_SIZE + (long) index.capacity * 8;
+    }
+
+    /**
+     * Finds the slot of a name in an index
+     *
+     * @param current the index
+     * @param name    the account name
+     * @param hash    the hash of the name
+     * @return        the slot, or -1 if the name is not in the index
+     */
+    private int find(Index current, String name, int hash){
+        for(int position = hash & current.mask; ; position = (position + 1) & current.mask){
+            long entry = current.get(position);
+            int field = (int) entry;
+
+            if(field == EMPTY) return -1;
+            if(field != REMOVED && (int) (entry >>> 32) == hash && matches(field - 1, name)) return field - 1;
+        }
+    }
+
+    /**
+     * Adds an account, unless another thread added it first
+     *
+     * @param name    the account name
+     * @param cents   the balance in hundredths
+     * @param replace set the balance if the account was added by another thread?
+     * @return        the slot
+     */
+    private synchronized int add(String name, long cents, boolean replace){
+        int hash = hash(name);
+
+        int slot = find(index, name, hash);
+        if(slot >= 0) {
+            if(replace) setCents(slot, cents);
+            return slot;
+        }
+
+        //Keeps at least half of the index empty, so probes stay short
+        if((used + 1) * 2 > index.capacity)
+            resize(index.capacity * 2);
+
+        //Writes the record before it is published in the index
+        slot = storeRecord(name, cents);
+
+        //Publishes the slot in the first free entry
+        Index current = index;
+        int position = hash & current.mask;
+        while((int) current.get(position) != EMPTY)
+            position = (position + 1) & current.mask;
+
+        current.set(position, ((long) hash << 32) | ((slot + 1) & 0xffffffffL));
+        used++;
+        size++;
+        return slot;
+    }
+
+    //Grows the index, removed entries are left behind
+    private void resize(int capacity){
+        Index current = index;
+        Index grown = new Index(capacity);
+
+        for(int position = 0; position < current.capacity; position++){
+            long entry = current.get(position);
+            int field = (int) entry;
+            if(field == EMPTY || field == REMOVED) continue;
+
+            int target = (int) (entry >>> 32) & grown.mask;
+            while((int) grown.get(target) != EMPTY)
+                target = (target + 1) & grown.mask;
+            grown.set(target, entry);
+        }
+
+        used = size;
+        index = grown;
+    }
+
+    /**
+     * Writes the record of a new account
+     *
+     * @param name  the account name
+     * @param cents the balance in hundredths
+     * @return      the slot of the record
+     */
+    private int storeRecord(String name, long cents){
+        boolean wide = false;
+        for(int i = 0; i < name.length() && !wide; i++)
+            wide = name.charAt(i) > 0xff;
+
+        int length = (HEADER_SIZE + name.length() * (wide ? 2 : 1) + 7) & ~7;
+        if(length > CHUNK_SIZE)
+            throw new IllegalArgumentException("ACCOUNT NAME TOO LONG");
+
+        //Records do not span chunks
+        if(position + length > CHUNK_SIZE) {
+            if(chunk + 1 == MAX_CHUNKS)
+                throw new IllegalStateException("ACCOUNT STORE IS FULL");
+
+            ByteBuffer[] grown = Arrays.copyOf(chunks, chunks.length + 1);
+            grown[chunks.length] = ByteBuffer.allocateDirect(CHUNK_SIZE).order(ByteOrder.nativeOrder());
+            chunks = grown;
+            chunk++;
+            position = 0;
+        }
+
+        ByteBuffer buffer = chunks[chunk];
+        buffer.putLong(position, cents);
+        buffer.putInt(position + VERSION, 0);
+        buffer.putInt(position + LENGTH, wide ? name.length() | WIDE : name.length());
+
+        int start = position + HEADER_SIZE;
+        for(int i = 0; i < name.length(); i++){
+            if(wide) buffer.putChar(start + i * 2, name.charAt(i));
+            else buffer.put(start + i, (byte) name.charAt(i));
+        }
+
+        int slot = (chunk << OFFSET_BITS) | (position >>> 3);
+        position += length;
+        return slot;
+    }
+
+    /**
+     * Compares the name in a record to a name, char by char
+     *
+     * @param slot the slot of the record
+     * @param name the name
+     * @return     true if the names are equal
+     */
+    private boolean matches(int slot, String name){
+        ByteBuffer buffer = chunks[slot >>> OFFSET_BITS];
+        int offset = offset(slot);
+
+        int length = buffer.getInt(offset + LENGTH);
+        if((length & ~WIDE) != name.length()) return false;
+
+        int start = offset + HEADER_SIZE;
+        if((length & WIDE) != 0) {
+            for(int i = 0; i < name.length(); i++)
+                if(buffer.getChar(start + i * 2) != name.charAt(i)) return false;
+        }
+        else {
+            for(int i = 0; i < name.length(); i++)
+                if((buffer.get(start + i) & 0xff) != name.charAt(i)) return false;
+        }
+
+        return true;
+    }
+
+    //Reads the name in a record
+    private String name(int slot){
+        ByteBuffer buffer = chunks[slot >>> OFFSET_BITS];
+        int offset = offset(slot);
+
+        int length = buffer.getInt(offset + LENGTH);
+        boolean wide = (length & WIDE) != 0;
+        int start = offset + HEADER_SIZE;
+
+        char[] chars = new char[length & ~WIDE];
+        for(int i = 0; i < chars.length; i++)
+            chars[i] = wide ? buffer.getChar(start + i * 2) : (char) (buffer.get(start + i) & 0xff);
+
+        return new String(chars);
+    }
+
+    //Byte offset of a record in its chunk
+    private static int offset(int slot){
+        return (slot & ((1 << OFFSET_BITS) - 1)) << 3;
+    }
+
+    //Spreads the cached hash code of the name over the index
+    private static int hash(String name){
+        int hash = name.hashCode() * 0x9e3779b9;
+        return hash ^ (hash >>> 16);
+    }
+}
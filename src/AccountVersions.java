@@ -0,0 +1,298 @@
+package twophasecommit;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+/**
+ * Point-in-time snapshots of the balances in an AccountStore
+ *
+ * Every write is installed at a timestamp, and the balance it leaves is
+ * kept as a version in a chain for the account, newest first. A snapshot
+ * reads each account at the last timestamp that was fully installed when
+ * it was taken, so it sees a transaction either completely or not at all
+ *
+ * Readers never take a lock, so they never block or abort writers. Writers
+ * install one at a time, which only covers a few memory writes. Versions no
+ * snapshot can see any more are dropped when a new one is installed and when
+ * the oldest snapshot is closed, and chains with just the current balance are
+ * removed, so without readers at most the accounts being written have a version
+ *
+ * The version of each account in the store is the timestamp of its last write,
+ * set after the balance, so a reader that reads the version first never gets
+ * a balance older than it
+ */
+public class AccountVersions {
+
+    //A balance installed at a timestamp, with the version before it
+    private static class Version {
+        private final long timestamp;
+        private final long cents;
+        private volatile Version older;
+
+        private Version(long timestamp, long cents, Version older){
+            this.timestamp = timestamp;
+            this.cents = cents;
+            this.older = older;
+        }
+    }
+
+    /**
+     * A consistent view of the balances at a timestamp,
+     * must be closed so its versions can be dropped
+     */
+    public class Snapshot implements AutoCloseable, Comparable<Snapshot> {
+        private final long timestamp;
+        private final long id;
+
+        private Snapshot(long timestamp){
+            this.timestamp = timestamp;
+            this.id = snapshotIds.incrementAndGet();
+        }
+
+        public long getTimestamp(){
+            return timestamp;
+        }
+
+        /**
+         * Gets the balance of an account
+         *
+         * @param name the account name
+         * @return     the balance, or null if the account did not exist at the snapshot
+         */
+        public Double getBalance(String name){
+            int slot = store.slot(name);
+            if(slot < 0) return null;
+
+            long cents = store.getCents(slot);
+            return read(name, cents);
+        }
+
+        /**
+         * Goes through every account that existed at the snapshot
+         *
+         * @param consumer receives the name and balance of each account
+         */
+        public void forEach(BiConsumer<String, Double> consumer){
+            store.forEach((name, balance) -> {
+                Double value = read(name, AccountStore.toCents(balance));
+                if(value != null) consumer.accept(name, value);
+            });
+        }
+
+        /*
+         * The current balance is read before the chain: a writer adds to the
+         * chain before the store, so a balance newer than the snapshot always
+         * comes with a version to look past
+         */
+        private Double read(String name, long cents){
+            Version version = chains.get(name);
+            if(version == null) return AccountStore.toAmount(cents);
+
+            while(version != null && version.timestamp > timestamp)
+                version = version.older;
+
+            //The account was created after the snapshot
+            if(version == null) return null;
+            return AccountStore.toAmount(version.cents);
+        }
+
+        public void close(){
+            boolean oldest = active.first() == this;
+            active.remove(this);
+
+            //Drops the versions that were only kept for this snapshot
+            if(oldest)
+                for(String name : chains.keySet())
+                    collect(name);
+        }
+
+        public int compareTo(Snapshot other){
+            return timestamp != other.timestamp ? Long.compare(timestamp, other.timestamp) : Long.compare(id, other.id);
+        }
+    }
+
+    //The balances
+    private final AccountStore store;
+
+    //A map of versions on the form <account, newest version>
+    private final ConcurrentHashMap<String, Version> chains = new ConcurrentHashMap<>();
+
+    //Snapshots that are open, oldest first
+    private final ConcurrentSkipListSet<Snapshot> active = new ConcurrentSkipListSet<>();
+    private final AtomicLong snapshotIds = new AtomicLong();
+
+    //Last timestamp given to a write, and the last one that is fully installed
+    private long clock = 0;
+    private volatile long installed = 0;
+
+    public AccountVersions(AccountStore store){
+        this.store = store;
+    }
+
+    /**
+     * Takes a snapshot of the balances
+     *
+     * @return the snapshot, to be closed after use
+     */
+    public Snapshot snapshot(){
+        while(true){
+            Snapshot snapshot = new Snapshot(installed);
+            active.add(snapshot);
+
+            //Writers that installed in between may not have seen it, tries again
+            if(installed == snapshot.timestamp) return snapshot;
+            active.remove(snapshot);
+        }
+    }
+
+    /**
+     * Gets the slot of an account, adds the account if it does not exist
+     *
+     * @param name    the account name
+     * @param balance the balance of a new account
+     * @return        the slot
+     */
+    public int getOrCreate(String name, double balance){
+        int slot = store.slot(name);
+        if(slot >= 0) return slot;
+
+        synchronized(this) {
+            slot = store.slot(name);
+            if(slot >= 0) return slot;
+
+            long timestamp = ++clock;
+            install(name, timestamp, AccountStore.toCents(balance));
+            slot = store.put(name, balance);
+            store.setVersion(slot, (int) timestamp);
+            publish(name, timestamp);
+            return slot;
+        }
+    }
+
+    /**
+     * Sets the balance of an account, adds the account if it does not exist
+     *
+     * @param name    the account name
+     * @param balance the balance
+     */
+    public synchronized void put(String name, double balance){
+        long timestamp = ++clock;
+        install(name, timestamp, AccountStore.toCents(balance));
+        store.setVersion(store.put(name, balance), (int) timestamp);
+        publish(name, timestamp);
+    }
+
+    /**
+     * Sets the balances of many accounts at one timestamp, adds the accounts that do not exist
+     *
+     * @param names the account names
+     * @param cents the balance of each account in hundredths
+     * @param count the number of accounts to set, from the start of the arrays
+     */
+    public synchronized void putAll(String[] names, long[] cents, int count){
+        long timestamp = ++clock;
+
+        for(int i = 0; i < count; i++){
+            install(names[i], timestamp, cents[i]);
+            store.setVersion(store.putCents(names[i], cents[i]), (int) timestamp);
+        }
+
+        installed = timestamp;
+        for(int i = 0; i < count; i++)
+            collect(names[i]);
+    }
+
+    /**
+     * Adds amounts to several accounts at one timestamp,
+     * no snapshot sees some of them without the others
+     *
+     * @param names   the account names
+     * @param amounts the amount for each account, negative to withdraw
+     */
+    public synchronized void deposit(String[] names, double[] amounts){
+        long timestamp = ++clock;
+
+        for(int i = 0; i < names.length; i++){
+            int slot = store.slot(names[i]);
+            if(slot < 0) continue;
+
+            long cents = AccountStore.toCents(amounts[i]);
+            install(names[i], timestamp, store.getCents(slot) + cents);
+            store.add(slot, cents);
+            store.setVersion(slot, (int) timestamp);
+        }
+
+        installed = timestamp;
+        for(String name : names)
+            collect(name);
+    }
+
+    /**
+     * Gets the timestamp of the last write to an account
+     *
+     * @param slot the slot of the account
+     * @return     the timestamp, modulo 2^32
+     */
+    public long getTimestamp(int slot){
+        return store.getVersion(slot) & 0xffffffffL;
+    }
+
+    /**
+     * Gets the number of accounts with versions kept for snapshots
+     *
+     * @return the number of accounts
+     */
+    public int getVersioned(){
+        return chains.size();
+    }
+
+    //Adds a version to the front of the chain of an account
+    private void install(String name, long timestamp, long cents){
+        chains.compute(name, (account, newest) -> {
+            /*
+             * Keeps the current balance as a version if the chain was removed, which
+             * only happens once every open snapshot can see it, so it goes at 0
+             */
+            if(newest == null) {
+                int slot = store.slot(name);
+                if(slot >= 0) newest = new Version(0, store.getCents(slot), null);
+            }
+
+            return new Version(timestamp, cents, newest);
+        });
+    }
+
+    private void publish(String name, long timestamp){
+        installed = timestamp;
+        collect(name);
+    }
+
+    /**
+     * Drops the versions of an account no snapshot can see, every snapshot
+     * from now on is at least at the installed timestamp, so it is safe
+     * without the lock
+     *
+     * @param name the account name
+     */
+    private void collect(String name){
+        Snapshot oldest = active.isEmpty() ? null : active.first();
+        long horizon = oldest != null ? Math.min(oldest.timestamp, installed) : installed;
+
+        Version newest = chains.get(name);
+        if(newest == null) return;
+
+        //Only the current balance is left, which the store has as well
+        if(newest.timestamp <= horizon) {
+            chains.remove(name, newest);
+            return;
+        }
+
+        for(Version version = newest; version != null; version = version.older)
+            if(version.timestamp <= horizon) {
+                version.older = null;
+                return;
+            }
+    }
+}
@@ -0,0 +1,40 @@
+package twophasecommit;
+
+import twophasecommit.constants.Vote;
+
+/**
+ * The decision of the coordinator for a transaction,
+ * sent for each of its sub-transactions
+ */
+public class Decision {
+    private int transactionId;
+    private int subTransactionId;
+    private Vote vote;
+
+    public Decision(int transactionId, int subTransactionId, Vote vote){
+        this.transactionId = transactionId;
+        this.subTransactionId = subTransactionId;
+        this.vote = vote;
+    }
+
+    public int getTransactionId(){
+        return transactionId;
+    }
+
+    public int getSubTransactionId(){
+        return subTransactionId;
+    }
+
+    //Same as SubTransaction.getId
+    public String getId(){
+        return transactionId + "_" + subTransactionId;
+    }
+
+    public Vote getVote(){
+        return vote;
+    }
+
+    public String toString(){
+        return vote + " SUB-TRANSACTION #" + getId();
+    }
+}
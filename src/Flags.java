@@ -0,0 +1,48 @@
+package twophasecommit;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Startup flags on the form '--name value',
+ * other arguments are kept in order
+ */
+public class Flags {
+
+    //A map of flags on the form <name, value>
+    private HashMap<String, String> flags = new HashMap<>();
+
+    //Arguments that are not flags
+    private ArrayList<String> arguments = new ArrayList<>();
+
+    public Flags(String[] args){
+        for(int i = 0; i < args.length; i++){
+            if(args[i].startsWith("--") && i + 1 < args.length)
+                flags.put(args[i].substring(2).toLowerCase(), args[++i]);
+            else
+                arguments.add(args[i]);
+        }
+    }
+
+    /**
+     * Gets the value of a flag
+     *
+     * @param name     the name of the flag, without '--'
+     * @param fallback the value if the flag is not set
+     * @return         the value
+     */
+    public String get(String name, String fallback){
+        return flags.getOrDefault(name, fallback);
+    }
+
+    /**
+     * Gets an argument that is not a flag
+     *
+     * @param index    the index among the other arguments
+     * @param fallback the value if there is no such argument
+     * @return         the argument
+     */
+    public String getArgument(int index, String fallback){
+        return index < arguments.size() ? arguments.get(index) : fallback;
+    }
+}
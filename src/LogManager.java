@@ -1,71 +1,264 @@
 package twophasecommit;
 
 import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 /**
  * The LogManager has responsibility for
  * reading and writing to logs
+ *
+ * Each log is a directory of segments, see LogWriter
+ *
+ * Every open log is checkpointed periodically in the background,
+ * and segments that are no longer needed are deleted or archived
  */
 public class LogManager {
     private final static String PATH = "logs/";
 
+    //Group commit settings, can be overridden with -Dlog.flushSize and -Dlog.flushDelay
+    private static int flushSize = Integer.getInteger("log.flushSize", 128);
+    private static long flushDelay = Long.getLong("log.flushDelay", 0);
+
+    //Segment size in bytes, can be overridden with -Dlog.segmentSize
+    private static int segmentSize = Integer.getInteger("log.segmentSize", 16 * 1024 * 1024);
+
+    //Time (ms) between checkpoints, can be overridden with -Dlog.checkpointInterval
+    private static long checkpointInterval = Long.getLong("log.checkpointInterval", 60000);
+
+    //Moves old segments to an archive directory instead of deleting them, -Dlog.archive=true
+    private static boolean archive = Boolean.getBoolean("log.archive");
+
+    //Runs checkpoints and compaction, away from the threads that write to the logs
+    private final static ScheduledExecutorService checkpointer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "LogCheckpointer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    //A map of open log writers on the form <filename, writer>
+    private final static ConcurrentHashMap<String, LogWriter> writers = new ConcurrentHashMap<>();
+
+    /**
+     * Sets the group commit settings for logs opened after this call
+     *
+     * @param flushSize  the max number of records in a group
+     * @param flushDelay the max time (ms) to wait for a group to fill up
+     */
+    public static void configure(int flushSize, long flushDelay){
+        LogManager.flushSize = flushSize;
+        LogManager.flushDelay = flushDelay;
+    }
+
     /**
-     * Writes to log
+     * Gets the directory of a log
      *
      * @param filename the filename
-     * @param line     the line to be written
+     * @return         the directory holding the segments of the log
      */
-    public static void writeLog(String filename, String line){
-        System.out.println("LOG, WRITE: <" + line + ">\n");
-
-        //Creates directory if it does not exist
-        File directory = new File(PATH);
-        if (!directory.exists())
-            directory.mkdir();
-
-
-        try (
-                //Initializes the writer
-                FileWriter fileWriter = new FileWriter(PATH + filename + ".txt", true);
-                BufferedWriter bufferedWriter = new BufferedWriter(fileWriter);
-                PrintWriter writer = new PrintWriter(bufferedWriter))
-        {
-            writer.println("<" + line + ">");
-        } catch (IOException e){
-            System.out.println("COULD NOT WRITE TO LOG: " + filename);
+    public static File getDirectory(String filename){
+        return new File(PATH + filename);
+    }
+
+    /**
+     * Writes to log, blocks until the record is durable
+     *
+     * @param filename the filename
+     * @param record   the record to be written
+     * @throws UncheckedIOException if the log could not be written
+     */
+    public static void writeLog(String filename, LogRecord record){
+        System.out.println("LOG, WRITE: " + record + "\n");
+
+        getWriter(filename).write(record);
+    }
+
+    /**
+     * Appends to log without waiting, the record becomes
+     * durable with the next forced write to the same log
+     *
+     * @param filename the filename
+     * @param record   the record to be written
+     * @throws UncheckedIOException if the log could not be written
+     */
+    public static void appendLog(String filename, LogRecord record){
+        System.out.println("LOG, APPEND: " + record + "\n");
+
+        getWriter(filename).append(record);
+    }
+
+    /**
+     * Writes to log, forced only if the record must be durable right away
+     *
+     * @param filename the filename
+     * @param record   the record to be written
+     * @param force    wait for the record to be durable?
+     * @throws UncheckedIOException if the log could not be written
+     */
+    public static void writeLog(String filename, LogRecord record, boolean force){
+        if(force) writeLog(filename, record);
+        else appendLog(filename, record);
+    }
+
+    /**
+     * Gets the writer for a log, opens it on first use
+     *
+     * Nothing is remembered when the log can not be opened,
+     * so the next caller tries again
+     *
+     * @param filename the filename
+     * @return         the writer
+     * @throws UncheckedIOException if the log could not be opened
+     */
+    private static LogWriter getWriter(String filename){
+        return writers.computeIfAbsent(filename, name -> {
+
+            //Creates directory if it does not exist
+            File directory = getDirectory(name);
+            if (!directory.exists())
+                directory.mkdirs();
+
+            try {
+                LogWriter writer = new LogWriter(directory, segmentSize, flushSize, flushDelay);
+                checkpointer.scheduleWithFixedDelay(() -> checkpoint(name), checkpointInterval, checkpointInterval, TimeUnit.MILLISECONDS);
+                return writer;
+            } catch (IOException e){
+                System.out.println("COULD NOT OPEN LOG: " + name);
+                throw new UncheckedIOException(e);
+            }
+        });
+    }
+
+    /**
+     * Writes a checkpoint to a log, then deletes or archives
+     * the segments older than every transaction in flight
+     *
+     * A checkpoint that could not be written removes nothing,
+     * the next one tries again
+     *
+     * @param filename the filename
+     */
+    public static void checkpoint(String filename){
+        LogWriter writer = writers.get(filename);
+        if(writer == null) return;
+
+        int oldest;
+        try {
+            oldest = writer.checkpoint();
+        } catch (UncheckedIOException e){
+            System.out.println("COULD NOT CHECKPOINT LOG: " + filename);
             e.printStackTrace();
+            return;
+        }
+
+        File directory = writer.getDirectory();
+        File archiveDirectory = new File(directory, "archive");
+
+        for(int segment : LogReader.segments(directory)){
+            if(segment >= oldest) break;
+
+            File file = LogSegment.file(directory, segment);
+            try {
+                if(archive) {
+                    archiveDirectory.mkdirs();
+                    Files.move(file.toPath(), new File(archiveDirectory, file.getName()).toPath(), StandardCopyOption.REPLACE_EXISTING);
+                }
+                else
+                    Files.delete(file.toPath());
+            } catch (IOException e){
+                System.out.println("COULD NOT REMOVE LOG SEGMENT: " + file.getName());
+                e.printStackTrace();
+            }
         }
     }
 
     /**
-     * Read last line from log
+     * Read last record from log
      *
      * @param filename the filename
-     * @return the last line of the log
+     * @return the last record of the log
      */
-    public static String readLog(String filename){
-        String lastLine = null;
-
-        try (
-                //Initializes the reader
-                FileReader fileReader = new FileReader(PATH + filename + ".txt");
-                BufferedReader reader = new BufferedReader(fileReader))
-        {
-
-            //Reads log line by line
-            String line = reader.readLine();
-            while(line != null){
-                lastLine = line;
-                line = reader.readLine();
-            }
+    public static LogRecord readLog(String filename){
+        LogRecord lastRecord = null;
+
+        try {
+            //Reads the last record directly if it was written since the log was opened
+            LogWriter writer = writers.get(filename);
+            if(writer != null && writer.getLastPosition() >= 0)
+                lastRecord = LogReader.read(writer.getDirectory(), writer.getLastPosition());
+            else
+                lastRecord = LogReader.findLast(getDirectory(filename), record -> true);
+        } catch (IOException e){
+            System.out.println("COULD NOT READ LOG: " + filename);
+            e.printStackTrace();
+        }
+
+        System.out.println("\nLOG, READ: " + lastRecord + "\n");
+
+        //Returns the last record
+        return lastRecord;
+    }
+
+    /**
+     * Read the latest record of a (sub-)transaction from log
+     *
+     * Transactions in progress are found through the index
+     * kept by the writer, others by reading segments from
+     * the newest one
+     *
+     * @param filename         the filename
+     * @param transactionId    the transaction id
+     * @param subTransactionId the sub-transaction id, 0 on the coordinator
+     * @return the latest record of the transaction, or null if there is none
+     */
+    public static LogRecord readLog(String filename, int transactionId, int subTransactionId){
+        LogRecord record = null;
+
+        try {
+            LogWriter writer = writers.get(filename);
+            long position = writer != null ? writer.getPosition(transactionId, subTransactionId) : -1;
+
+            if(position >= 0)
+                record = LogReader.read(writer.getDirectory(), position);
+            else
+                record = LogReader.findLast(getDirectory(filename), r -> r.getTransactionId() == transactionId && r.getSubTransactionId() == subTransactionId);
+        } catch (IOException e){
+            System.out.println("COULD NOT READ LOG: " + filename);
+            e.printStackTrace();
+        }
+
+        System.out.println("\nLOG, READ: " + record + "\n");
+
+        return record;
+    }
+
+    /**
+     * Read the decision of a (sub-)transaction from log, by reading
+     * segments from the newest one. Used to answer a participant
+     * in doubt, long after the transaction left the index
+     *
+     * @param filename         the filename
+     * @param transactionId    the transaction id
+     * @param subTransactionId the sub-transaction id, 0 on the coordinator
+     * @return the COMMIT or ABORT record, or null if there is none
+     */
+    public static LogRecord readDecision(String filename, int transactionId, int subTransactionId){
+        LogRecord record = null;
+
+        try {
+            record = LogReader.findLast(getDirectory(filename), r -> r.getTransactionId() == transactionId && r.getSubTransactionId() == subTransactionId
+                    && (r.getType() == LogRecord.Type.COMMIT || r.getType() == LogRecord.Type.ABORT));
         } catch (IOException e){
             System.out.println("COULD NOT READ LOG: " + filename);
             e.printStackTrace();
         }
 
-        System.out.println("\nLOG, READ: " + lastLine + "\n");
+        System.out.println("\nLOG, READ: " + record + "\n");
 
-        //Returns the last line
-        return lastLine;
+        return record;
     }
-}
\ No newline at end of file
+}
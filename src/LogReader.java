@@ -0,0 +1,125 @@
+package twophasecommit;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.zip.CRC32C;
+
+/**
+ * Reads records from the segments of a log
+ *
+ * Segments are memory-mapped and read in place,
+ * reading stops at the first invalid record
+ */
+public class LogReader {
+
+    /**
+     * Gets the numbers of the segments in a log, oldest first
+     *
+     * @param directory the log directory
+     * @return          the segment numbers
+     */
+    public static int[] segments(File directory){
+        String[] names = directory.list((dir, name) -> name.endsWith(".log"));
+        if(names == null) return new int[0];
+
+        int[] segments = new int[names.length];
+        for(int i = 0; i < names.length; i++)
+            segments[i] = Integer.parseInt(names[i].substring(0, names[i].length() - 4));
+
+        Arrays.sort(segments);
+        return segments;
+    }
+
+    /**
+     * Reads the record at a position
+     *
+     * @param directory the log directory
+     * @param position  the position as <segment number, offset>
+     * @return          the record, or null if there is no valid record
+     * @throws IOException if the segment could not be read
+     */
+    static LogRecord read(File directory, long position) throws IOException {
+        MappedByteBuffer buffer = map(LogSegment.file(directory, (int) (position >>> 32)));
+        buffer.position((int) position);
+        return LogRecord.decode(buffer, new CRC32C());
+    }
+
+    /**
+     * Finds the latest record that matches a condition,
+     * only segments newer than the match are read
+     *
+     * @param directory the log directory
+     * @param condition the condition
+     * @return          the record, or null if there is none
+     * @throws IOException if a segment could not be read
+     */
+    static LogRecord findLast(File directory, Predicate<LogRecord> condition) throws IOException {
+        int[] segments = segments(directory);
+        CRC32C crc = new CRC32C();
+
+        for(int i = segments.length - 1; i >= 0; i--){
+            MappedByteBuffer buffer = map(LogSegment.file(directory, segments[i]));
+
+            LogRecord last = null;
+            LogRecord record = LogRecord.decode(buffer, crc);
+            while(record != null){
+                if(condition.test(record)) last = record;
+                record = LogRecord.decode(buffer, crc);
+            }
+
+            if(last != null) return last;
+        }
+
+        return null;
+    }
+
+    /**
+     * Reads every record in the log, oldest first
+     *
+     * @param directory the log directory
+     * @param consumer  receives each record
+     * @throws IOException if a segment could not be read
+     */
+    public static void forEach(File directory, Consumer<LogRecord> consumer) throws IOException {
+        for(int segment : segments(directory))
+            forEach(directory, segment, consumer);
+    }
+
+    /**
+     * Reads every record in a segment
+     *
+     * @param directory the log directory
+     * @param segment   the segment number
+     * @param consumer  receives each record
+     * @throws IOException if the segment could not be read
+     */
+    public static void forEach(File directory, int segment, Consumer<LogRecord> consumer) throws IOException {
+        CRC32C crc = new CRC32C();
+        MappedByteBuffer buffer = map(LogSegment.file(directory, segment));
+
+        LogRecord record = LogRecord.decode(buffer, crc);
+        while(record != null){
+            consumer.accept(record);
+            record = LogRecord.decode(buffer, crc);
+        }
+    }
+
+    /**
+     * Maps a segment for reading
+     *
+     * @param file the segment file
+     * @return     the mapped segment
+     * @throws IOException if the segment could not be read
+     */
+    private static MappedByteBuffer map(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+    }
+}
@@ -0,0 +1,462 @@
+package twophasecommit;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32C;
+
+/**
+ * A single record in the log
+ *
+ * Records are stored in binary on the format:
+ * [length][crc][type][transaction id][sub-transaction id][data]
+ * where length and crc cover everything after the crc
+ */
+public class LogRecord {
+
+    /**
+     * The types of records, the data each type carries:
+     * START, COMMIT, ABORT, END  -
+     * PREPARED                   -, forced by a participant before it votes to commit
+     * UPDATE                     account, old balance, new balance
+     * TRANSFER                   account, target account, amount
+     * CHECKPOINT                 transactions in flight, starts a checkpoint,
+     *                            the transaction id is the highest one so far
+     * DELTA                      account, balance at prepare, amount added at commit
+     * BALANCES                   is it the last part?, committed balances as of the
+     *                            last CHECKPOINT, the last part completes it
+     */
+    public enum Type {
+        START,
+        UPDATE,
+        TRANSFER,
+        COMMIT,
+        ABORT,
+        END,
+        CHECKPOINT,
+        DELTA,
+        PREPARED,
+        BALANCES
+    }
+
+    //Size of [length][crc] and of [type][transaction id][sub-transaction id]
+    final static int HEADER_SIZE = 8;
+    private final static int BODY_HEADER_SIZE = 9;
+
+    private final static Type[] TYPES = Type.values();
+
+    private Type type;
+
+    //IDs, the sub-transaction id is 0 for records written by the coordinator
+    private int transactionId;
+    private int subTransactionId;
+
+    //Data
+    private String account;
+    private String target;
+    private double before;
+    private double after;
+    private double amount;
+
+    //Checkpoint data, (sub-)transactions in flight as keys, and committed balances
+    private long[] inFlight;
+    private String[] accounts;
+    private double[] balances;
+    private boolean last;
+
+    //Segments older than this are not needed after the checkpoint, not stored in the log
+    int compactBefore;
+
+    //Account names encoded as UTF-8, set when the size is first computed
+    private byte[] accountBytes;
+    private byte[] targetBytes;
+
+    private LogRecord(Type type, int transactionId, int subTransactionId){
+        this.type = type;
+        this.transactionId = transactionId;
+        this.subTransactionId = subTransactionId;
+    }
+
+    public static LogRecord start(int transactionId, int subTransactionId){
+        return new LogRecord(Type.START, transactionId, subTransactionId);
+    }
+
+    public static LogRecord commit(int transactionId, int subTransactionId){
+        return new LogRecord(Type.COMMIT, transactionId, subTransactionId);
+    }
+
+    public static LogRecord abort(int transactionId, int subTransactionId){
+        return new LogRecord(Type.ABORT, transactionId, subTransactionId);
+    }
+
+    public static LogRecord end(int transactionId, int subTransactionId){
+        return new LogRecord(Type.END, transactionId, subTransactionId);
+    }
+
+    public static LogRecord prepared(int transactionId, int subTransactionId){
+        return new LogRecord(Type.PREPARED, transactionId, subTransactionId);
+    }
+
+    /**
+     * Creates an UPDATE record with the before and after image of an account
+     *
+     * @param transactionId    the transaction id
+     * @param subTransactionId the sub-transaction id
+     * @param account          the account name
+     * @param before           the balance before the update
+     * @param after            the balance after the update
+     * @return                 the record
+     */
+    public static LogRecord update(int transactionId, int subTransactionId, String account, double before, double after){
+        LogRecord record = new LogRecord(Type.UPDATE, transactionId, subTransactionId);
+        record.account = account;
+        record.before = before;
+        record.after = after;
+        return record;
+    }
+
+    /**
+     * Creates a DELTA record for an update on a hot account, which is only
+     * applied at commit and merged with the other updates on the account
+     *
+     * @param transactionId    the transaction id
+     * @param subTransactionId the sub-transaction id
+     * @param account          the account name
+     * @param before           the committed balance at prepare, the starting point
+     *                         if the log has no balance for the account yet
+     * @param amount           the amount added to the balance at commit
+     * @return                 the record
+     */
+    public static LogRecord delta(int transactionId, int subTransactionId, String account, double before, double amount){
+        LogRecord record = new LogRecord(Type.DELTA, transactionId, subTransactionId);
+        record.account = account;
+        record.before = before;
+        record.amount = amount;
+        return record;
+    }
+
+    /**
+     * Creates a TRANSFER record describing a transaction on the coordinator
+     *
+     * @param transactionId the transaction id
+     * @param account       the first account
+     * @param target        the second account
+     * @param amount        the amount
+     * @return              the record
+     */
+    public static LogRecord transfer(int transactionId, String account, String target, double amount){
+        LogRecord record = new LogRecord(Type.TRANSFER, transactionId, 0);
+        record.account = account;
+        record.target = target;
+        record.amount = amount;
+        return record;
+    }
+
+    /**
+     * Creates a CHECKPOINT record, the writer fills in
+     * the data when the record is written
+     *
+     * @return the record
+     */
+    static LogRecord checkpoint(){
+        return new LogRecord(Type.CHECKPOINT, 0, 0);
+    }
+
+    /**
+     * Sets the data of a CHECKPOINT record
+     *
+     * @param transactionId the highest transaction id so far
+     * @param inFlight      the keys of the (sub-)transactions in flight
+     */
+    void setCheckpoint(int transactionId, long[] inFlight){
+        this.transactionId = transactionId;
+        this.inFlight = inFlight;
+    }
+
+    /**
+     * Creates a BALANCES record, one part of the committed
+     * balances of the last CHECKPOINT
+     *
+     * @param accounts the account names
+     * @param balances the committed balance of each account
+     * @param last     is it the last part, completing the checkpoint?
+     * @return         the record
+     */
+    static LogRecord balances(String[] accounts, double[] balances, boolean last){
+        LogRecord record = new LogRecord(Type.BALANCES, 0, 0);
+        record.accounts = accounts;
+        record.balances = balances;
+        record.last = last;
+        return record;
+    }
+
+    public Type getType(){
+        return type;
+    }
+
+    public int getTransactionId(){
+        return transactionId;
+    }
+
+    public int getSubTransactionId(){
+        return subTransactionId;
+    }
+
+    public String getAccount(){
+        return account;
+    }
+
+    public String getTarget(){
+        return target;
+    }
+
+    public double getBefore(){
+        return before;
+    }
+
+    public double getAfter(){
+        return after;
+    }
+
+    public double getAmount(){
+        return amount;
+    }
+
+    public long[] getInFlight(){
+        return inFlight;
+    }
+
+    public String[] getAccounts(){
+        return accounts;
+    }
+
+    public double[] getBalances(){
+        return balances;
+    }
+
+    public boolean isLast(){
+        return last;
+    }
+
+    /**
+     * Key identifying the (sub-)transaction of a record
+     *
+     * @param transactionId    the transaction id
+     * @param subTransactionId the sub-transaction id
+     * @return                 the key
+     */
+    static long key(int transactionId, int subTransactionId){
+        return ((long) transactionId << 32) | (subTransactionId & 0xffffffffL);
+    }
+
+    public long getKey(){
+        return key(transactionId, subTransactionId);
+    }
+
+    public static int transactionId(long key){
+        return (int) (key >>> 32);
+    }
+
+    public static int subTransactionId(long key){
+        return (int) key;
+    }
+
+    /**
+     * Gets the number of bytes the record takes up in the log
+     *
+     * @return the size in bytes
+     */
+    int size(){
+        int size = HEADER_SIZE + BODY_HEADER_SIZE;
+
+        switch(type){
+            case UPDATE:
+            case DELTA:
+                accountBytes = encode(account);
+                size += 2 + accountBytes.length + 16;
+                break;
+
+            case TRANSFER:
+                accountBytes = encode(account);
+                targetBytes = encode(target);
+                size += 2 + accountBytes.length + 2 + targetBytes.length + 8;
+                break;
+
+            case CHECKPOINT:
+                size += 4 + inFlight.length * 8;
+                break;
+
+            case BALANCES:
+                size += 1 + 4;
+                for(String account : accounts)
+                    size += 2 + encode(account).length + 8;
+                break;
+        }
+
+        return size;
+    }
+
+    /**
+     * Writes the record at the position of the buffer,
+     * size() must be called first
+     *
+     * @param buffer the buffer
+     * @param crc    the checksum to use, reset before use
+     */
+    void encode(ByteBuffer buffer, CRC32C crc){
+        int start = buffer.position();
+
+        //Leaves room for length and crc
+        buffer.position(start + HEADER_SIZE);
+        buffer.put((byte) type.ordinal());
+        buffer.putInt(transactionId);
+        buffer.putInt(subTransactionId);
+
+        switch(type){
+            case UPDATE:
+                putString(buffer, accountBytes);
+                buffer.putDouble(before);
+                buffer.putDouble(after);
+                break;
+
+            case DELTA:
+                putString(buffer, accountBytes);
+                buffer.putDouble(before);
+                buffer.putDouble(amount);
+                break;
+
+            case TRANSFER:
+                putString(buffer, accountBytes);
+                putString(buffer, targetBytes);
+                buffer.putDouble(amount);
+                break;
+
+            case CHECKPOINT:
+                buffer.putInt(inFlight.length);
+                for(long key : inFlight)
+                    buffer.putLong(key);
+                break;
+
+            case BALANCES:
+                buffer.put((byte) (last ? 1 : 0));
+                buffer.putInt(accounts.length);
+                for(int i = 0; i < accounts.length; i++){
+                    putString(buffer, encode(accounts[i]));
+                    buffer.putDouble(balances[i]);
+                }
+                break;
+        }
+
+        int end = buffer.position();
+        buffer.putInt(start, end - start - HEADER_SIZE);
+        buffer.putInt(start + 4, checksum(buffer, start + HEADER_SIZE, end, crc));
+    }
+
+    /**
+     * Reads the record at the position of the buffer, and moves
+     * the position past it
+     *
+     * @param buffer the buffer
+     * @param crc    the checksum to use, reset before use
+     * @return       the record, or null if there is no valid record
+     *               (end of data, or a torn write)
+     */
+    static LogRecord decode(ByteBuffer buffer, CRC32C crc){
+        int start = buffer.position();
+        if(buffer.remaining() < HEADER_SIZE) return null;
+
+        int length = buffer.getInt(start);
+        if(length < BODY_HEADER_SIZE || length > buffer.remaining() - HEADER_SIZE) return null;
+
+        int end = start + HEADER_SIZE + length;
+        if(buffer.getInt(start + 4) != checksum(buffer, start + HEADER_SIZE, end, crc)) return null;
+
+        buffer.position(start + HEADER_SIZE);
+        int type = buffer.get();
+        if(type < 0 || type >= TYPES.length) return null;
+
+        LogRecord record = new LogRecord(TYPES[type], buffer.getInt(), buffer.getInt());
+
+        switch(record.type){
+            case UPDATE:
+                record.account = getString(buffer);
+                record.before = buffer.getDouble();
+                record.after = buffer.getDouble();
+                break;
+
+            case DELTA:
+                record.account = getString(buffer);
+                record.before = buffer.getDouble();
+                record.amount = buffer.getDouble();
+                break;
+
+            case TRANSFER:
+                record.account = getString(buffer);
+                record.target = getString(buffer);
+                record.amount = buffer.getDouble();
+                break;
+
+            case CHECKPOINT:
+                record.inFlight = new long[buffer.getInt()];
+                for(int i = 0; i < record.inFlight.length; i++)
+                    record.inFlight[i] = buffer.getLong();
+                break;
+
+            case BALANCES:
+                record.last = buffer.get() != 0;
+                record.accounts = new String[buffer.getInt()];
+                record.balances = new double[record.accounts.length];
+                for(int i = 0; i < record.accounts.length; i++){
+                    record.accounts[i] = getString(buffer);
+                    record.balances[i] = buffer.getDouble();
+                }
+                break;
+        }
+
+        buffer.position(end);
+        return record;
+    }
+
+    /**
+     * Computes the CRC of a range in a buffer,
+     * the position and limit of the buffer are left as they were
+     */
+    private static int checksum(ByteBuffer buffer, int from, int to, CRC32C crc){
+        int position = buffer.position();
+        int limit = buffer.limit();
+
+        crc.reset();
+        buffer.limit(to).position(from);
+        crc.update(buffer);
+        buffer.limit(limit).position(position);
+
+        return (int) crc.getValue();
+    }
+
+    private static byte[] encode(String string){
+        return string.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static void putString(ByteBuffer buffer, byte[] bytes){
+        buffer.putShort((short) bytes.length);
+        buffer.put(bytes);
+    }
+
+    private static String getString(ByteBuffer buffer){
+        byte[] bytes = new byte[buffer.getShort() & 0xffff];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    public String toString(){
+        String id = subTransactionId == 0 ? String.valueOf(transactionId) : transactionId + "_" + subTransactionId;
+
+        switch(type){
+            case UPDATE:   return "<" + id + ", " + account + ", " + before + ", " + after + ">";
+            case DELTA:    return "<" + id + ", " + account + ", " + (amount >= 0 ? "+" : "") + amount + ">";
+            case TRANSFER: return "<" + id + ", " + account + ", " + target + ", " + amount + ">";
+            case CHECKPOINT: return "<CHECKPOINT, " + (inFlight != null ? inFlight.length : 0) + " IN FLIGHT>";
+            case BALANCES: return "<BALANCES, " + accounts.length + " ACCOUNTS" + (last ? ", LAST>" : ">");
+            default:       return "<" + id + ", " + type + ">";
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package twophasecommit;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32C;
+
+/**
+ * A fixed-size, pre-allocated log file that records
+ * are appended to through a memory-mapped buffer
+ *
+ * Unused space is zero, so a zero length marks the
+ * end of the records in the segment
+ */
+class LogSegment {
+    private final File file;
+    private final int number;
+    private final MappedByteBuffer buffer;
+
+    //Where the force of the next group starts
+    private int forced;
+
+    /**
+     * Opens a segment, creates and pre-allocates it if it does not exist
+     *
+     * @param directory the log directory
+     * @param number    the segment number
+     * @param size      the size of the segment in bytes
+     * @throws IOException if the segment could not be opened
+     */
+    LogSegment(File directory, int number, int size) throws IOException {
+        this.file = file(directory, number);
+        this.number = number;
+
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            if(raf.length() < size)
+                raf.setLength(size);
+
+            buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+        }
+
+        //Skips past the records already in the segment
+        CRC32C crc = new CRC32C();
+        while(LogRecord.decode(buffer, crc) != null);
+        forced = buffer.position();
+    }
+
+    /**
+     * Gets the file of a segment
+     *
+     * @param directory the log directory
+     * @param number    the segment number
+     * @return          the file
+     */
+    static File file(File directory, int number){
+        return new File(directory, String.format("%010d.log", number));
+    }
+
+    int getNumber(){
+        return number;
+    }
+
+    File getFile(){
+        return file;
+    }
+
+    /**
+     * Gets the offset where the next record will be written
+     *
+     * @return the offset
+     */
+    int getPosition(){
+        return buffer.position();
+    }
+
+    /**
+     * Appends a record if there is room for it,
+     * the record is not durable until force is called
+     *
+     * @param record the record
+     * @param size   the size of the record
+     * @param crc    the checksum to use
+     * @return       the offset of the record, or -1 if the segment is full
+     */
+    int append(LogRecord record, int size, CRC32C crc){
+        int offset = buffer.position();
+
+        if(size > buffer.remaining()) return -1;
+
+        record.encode(buffer, crc);
+        return offset;
+    }
+
+    //Forces the records appended since the last force to disk
+    void force(){
+        int position = buffer.position();
+        if(position > forced) {
+            buffer.force(forced, position - forced);
+            forced = position;
+        }
+    }
+}
@@ -0,0 +1,537 @@
+package twophasecommit;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32C;
+
+/**
+ * Long-lived writer for a single log
+ *
+ * Records from concurrent callers are collected into groups,
+ * each group is appended to the current segment and made
+ * durable with one force. Callers block until their group
+ * is durable. When a segment is full, the writer rolls
+ * over to a new one
+ *
+ * If a group can not be written, the log stops: the callers
+ * waiting for it and every later caller get an exception,
+ * so nothing is decided on a record that is not durable
+ *
+ * The writer also keeps track of the transactions in flight
+ * and the committed balances, which a checkpoint writes to
+ * the log so older segments can be removed. The balances are
+ * copied by the thread taking the checkpoint, not by the writer
+ */
+public class LogWriter extends Thread {
+    private final File directory;
+
+    //Size of each segment in bytes
+    private final int segmentSize;
+
+    //Max number of records in a group
+    private final int flushSize;
+
+    //Max time (ms) to wait for a group to fill up
+    private final long flushDelay;
+
+    //Segment records are currently appended to
+    private LogSegment segment;
+
+    //Checksum reused for every record, only used by the writer thread
+    private final CRC32C crc = new CRC32C();
+
+    //Records waiting to be written
+    private ArrayList<LogRecord> pending = new ArrayList<>();
+
+    /*
+     * A map of the latest record of each transaction on the form <key, position>
+     * Only durable records are added, and a transaction is removed when it ends
+     */
+    private final ConcurrentHashMap<Long, Long> index = new ConcurrentHashMap<>();
+
+    //A map of (sub-)transactions in flight on the form <key, segment of first record>
+    private final ConcurrentHashMap<Long, Integer> inFlight = new ConcurrentHashMap<>();
+
+    //A map of updates not yet committed or aborted on the form <key, records>, only used by the writer thread
+    private final HashMap<Long, ArrayList<LogRecord>> updates = new HashMap<>();
+
+    //A map of committed balances on the form <account, balance>, only changed by the writer thread
+    private final ConcurrentHashMap<String, Double> balances = new ConcurrentHashMap<>();
+
+    /*
+     * While a checkpoint copies the balances, the balance of each account at the
+     * CHECKPOINT record is saved here before the writer changes it, NaN if there was none
+     */
+    private volatile ConcurrentHashMap<String, Double> saved;
+
+    //Max size of a BALANCES record in bytes, the writer encodes one at a time
+    private final static int PART_SIZE = 64 * 1024;
+
+    //Only one checkpoint at a time
+    private final Object checkpointLock = new Object();
+
+    //While the log is opened, the balances of a checkpoint not read to the end, and the updates committed after its CHECKPOINT record
+    private HashMap<String, Double> restoring;
+    private ArrayList<LogRecord> replayed;
+
+    //Highest transaction id written, stamped on each checkpoint
+    private int lastTransactionId = 0;
+
+    //Number of bytes written since the log was opened
+    private volatile long bytesWritten = 0;
+
+    //Position of the last durable record
+    private volatile long lastPosition = -1;
+
+    //Number of records appended and number of records made durable
+    private long appended = 0;
+    private long durable = 0;
+
+    //Why the last group could not be written, nothing is written after it
+    private volatile IOException failure;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition flushed = lock.newCondition();
+
+    /**
+     * Opens the log for appending and starts the writer
+     *
+     * @param directory   the log directory, holds the segments
+     * @param segmentSize the size of each segment in bytes
+     * @param flushSize   the max number of records in a group
+     * @param flushDelay  the max time (ms) to wait for a group to fill up
+     * @throws IOException if the log could not be opened
+     */
+    public LogWriter(File directory, int segmentSize, int flushSize, long flushDelay) throws IOException {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.flushSize = Math.max(1, flushSize);
+        this.flushDelay = Math.max(0, flushDelay);
+
+        //Rebuilds the transactions in flight and the balances from the existing segments
+        int[] segments = LogReader.segments(directory);
+        for(int number : segments)
+            LogReader.forEach(directory, number, record -> track(record, number, segments[0], true));
+
+        //Continues in the newest segment
+        this.segment = new LogSegment(directory, segments.length > 0 ? segments[segments.length - 1] : 0, segmentSize);
+
+        setName("LogWriter-" + directory.getName());
+        setDaemon(true);
+        start();
+    }
+
+    public File getDirectory(){
+        return directory;
+    }
+
+    /**
+     * Gets the position of a record as <segment number, offset>
+     *
+     * @param segment the segment number
+     * @param offset  the offset in the segment
+     * @return        the position
+     */
+    static long position(int segment, int offset){
+        return ((long) segment << 32) | (offset & 0xffffffffL);
+    }
+
+    /**
+     * Gets the position of the latest durable record of a (sub-)transaction
+     *
+     * @param transactionId    the transaction id
+     * @param subTransactionId the sub-transaction id, 0 on the coordinator
+     * @return                 the position, or -1 if the transaction is not in the index
+     */
+    public long getPosition(int transactionId, int subTransactionId){
+        return index.getOrDefault(LogRecord.key(transactionId, subTransactionId), -1L);
+    }
+
+    public long getBytesWritten(){
+        return bytesWritten;
+    }
+
+    /**
+     * Gets the position of the last durable record
+     *
+     * @return the position, or -1 if nothing has been written since the log was opened
+     */
+    public long getLastPosition(){
+        return lastPosition;
+    }
+
+    /**
+     * Writes a checkpoint and blocks until it is durable
+     *
+     * The writer thread only fills in the transactions in flight, at the
+     * exact point in the log where the CHECKPOINT record is written. The
+     * balances as of that point are copied by the calling thread, and written
+     * as BALANCES records, one part in the log at a time, so forced writes
+     * are never held up by the whole copy. The checkpoint is complete once
+     * the last part is durable
+     *
+     * @return the oldest segment still needed after the checkpoint
+     * @throws UncheckedIOException if the checkpoint could not be written
+     */
+    public int checkpoint(){
+        synchronized(checkpointLock) {
+            LogRecord record = LogRecord.checkpoint();
+            write(record);
+
+            if(record.compactBefore < 0)
+                throw new UncheckedIOException(new IOException("CHECKPOINT TOO LARGE FOR LOG: " + directory.getName()
+                        + ", " + record.getInFlight().length + " TRANSACTIONS IN FLIGHT"));
+
+            try {
+                int limit = Math.min(segmentSize / 2, PART_SIZE);
+                ArrayList<String> accounts = new ArrayList<>();
+                double[] values = new double[16];
+                int size = 0;
+                long previous = 0;
+
+                for(Map.Entry<String, Double> entry : balances.entrySet()){
+                    //Read after the current balance, so a balance changed since the CHECKPOINT record is always found
+                    double balance = saved.getOrDefault(entry.getKey(), entry.getValue());
+                    if(Double.isNaN(balance)) continue;
+
+                    //Upper bound of the UTF-8 name, its length and the balance
+                    int entrySize = 2 + entry.getKey().length() * 3 + 8;
+                    if(!accounts.isEmpty() && size + entrySize > limit) {
+                        previous = appendPart(accounts, values, false, previous);
+                        accounts.clear();
+                        size = 0;
+                    }
+
+                    if(accounts.size() == values.length) values = Arrays.copyOf(values, values.length * 2);
+                    values[accounts.size()] = balance;
+                    accounts.add(entry.getKey());
+                    size += entrySize;
+                }
+
+                awaitDurable(appendPart(accounts, values, true, previous));
+            } finally {
+                saved = null;
+            }
+
+            return record.compactBefore;
+        }
+    }
+
+    //Appends a part of the balances once the one before it is durable
+    private long appendPart(ArrayList<String> accounts, double[] values, boolean last, long previous){
+        awaitDurable(previous);
+        return append(LogRecord.balances(accounts.toArray(new String[0]), Arrays.copyOf(values, accounts.size()), last));
+    }
+
+    /**
+     * Writes a record and blocks until it is durable
+     *
+     * @param record the record to be written
+     * @throws UncheckedIOException if the log could not be written
+     */
+    public void write(LogRecord record){
+        awaitDurable(append(record));
+    }
+
+    /**
+     * Adds a record to the current group without waiting
+     *
+     * @param record the record to be written
+     * @return       the sequence number of the record
+     * @throws UncheckedIOException if the log could not be written
+     */
+    public long append(LogRecord record){
+        lock.lock();
+        try {
+            if(failure != null) throw failed();
+
+            pending.add(record);
+            appended++;
+
+            //Wakes the writer when the first record arrives, or when the group is full
+            if(pending.size() == 1 || pending.size() >= flushSize)
+                notEmpty.signal();
+
+            return appended;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Blocks until the record with the given sequence number is durable
+     *
+     * @param sequence the sequence number of the record
+     * @throws UncheckedIOException if the log could not be written
+     */
+    public void awaitDurable(long sequence){
+        lock.lock();
+        try {
+            while(durable < sequence){
+                if(failure != null) throw failed();
+                flushed.awaitUninterruptibly();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    //Writes and forces groups of records
+    public void run(){
+        while(true){
+            ArrayList<LogRecord> group;
+            long last;
+
+            lock.lock();
+            try {
+                //Waits for the first record in the group
+                while(pending.isEmpty())
+                    notEmpty.awaitUninterruptibly();
+
+                //Waits for the group to fill up, at most flushDelay ms
+                long remaining = TimeUnit.MILLISECONDS.toNanos(flushDelay);
+                while(pending.size() < flushSize && remaining > 0)
+                    remaining = notEmpty.awaitNanos(remaining);
+
+                //Takes at most flushSize records, the rest go in the next group
+                if(pending.size() > flushSize){
+                    group = new ArrayList<>(pending.subList(0, flushSize));
+                    pending.subList(0, flushSize).clear();
+                } else {
+                    group = pending;
+                    pending = new ArrayList<>();
+                }
+                last = appended - pending.size();
+            } catch (InterruptedException e){
+                return;
+            } finally {
+                lock.unlock();
+            }
+
+            IOException error = flush(group);
+
+            //Releases the callers in the group, or fails them and every caller after them
+            lock.lock();
+            try {
+                if(error == null) durable = last;
+                else failure = error;
+
+                flushed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+
+            if(error != null) return;
+        }
+    }
+
+    private UncheckedIOException failed(){
+        return new UncheckedIOException("LOG NOT WRITTEN: " + directory.getName(), failure);
+    }
+
+    /**
+     * Appends a group of records to the segment and forces it,
+     * then adds the records to the index
+     *
+     * @param group the records to be written
+     * @return      the error if the group could not be made durable, otherwise null
+     */
+    private IOException flush(ArrayList<LogRecord> group){
+        long[] positions = new long[group.size()];
+
+        try {
+            for(int i = 0; i < positions.length; i++){
+                LogRecord record = group.get(i);
+
+                //Fills in the checkpoint as of this point in the log
+                if(record.getType() == LogRecord.Type.CHECKPOINT)
+                    fillCheckpoint(record);
+
+                int size = record.size();
+
+                //A checkpoint that does not fit is not written, the caller is told and nothing is removed
+                if(size > segmentSize && record.getType() == LogRecord.Type.CHECKPOINT) {
+                    record.compactBefore = -1;
+                    positions[i] = -1;
+                    continue;
+                }
+
+                if(size > segmentSize)
+                    throw new IOException("RECORD TOO LARGE FOR LOG: " + record);
+
+                //Rolls over to a new segment when the current one is full
+                int offset = segment.append(record, size, crc);
+                if(offset < 0) {
+                    segment.force();
+                    segment = new LogSegment(directory, segment.getNumber() + 1, segmentSize);
+                    offset = segment.append(record, size, crc);
+                }
+
+                positions[i] = position(segment.getNumber(), offset);
+                bytesWritten += size;
+                track(record, segment.getNumber(), segment.getNumber(), false);
+            }
+
+            segment.force();
+        } catch (IOException e){
+            System.out.println("COULD NOT WRITE TO LOG: " + directory.getName());
+            e.printStackTrace();
+            return e;
+        }
+
+        //Indexes each record by its transaction, ended transactions are forgotten
+        for(int i = 0; i < positions.length; i++){
+            if(positions[i] < 0) continue;
+            lastPosition = positions[i];
+
+            //A checkpoint carries the last transaction id, but is not a record of that transaction
+            LogRecord record = group.get(i);
+            if(record.getType() == LogRecord.Type.CHECKPOINT || record.getType() == LogRecord.Type.BALANCES) continue;
+
+            if(record.getType() == LogRecord.Type.END) index.remove(record.getKey());
+            else index.put(record.getKey(), positions[i]);
+        }
+
+        return null;
+    }
+
+    /**
+     * Updates the transactions in flight and the committed balances with a record
+     *
+     * A checkpoint written now starts saving the balances the caller copies.
+     * While the log is opened, the balances of a checkpoint replace the
+     * tracked ones once its last part is read, with the updates committed
+     * after its CHECKPOINT record applied again. Updates and the first segment
+     * of each transaction in flight are kept across a checkpoint, since
+     * the segments of transactions in flight are never removed
+     *
+     * @param record  the record
+     * @param segment the segment the record is in
+     * @param oldest  the oldest segment, where transactions in a checkpoint started at the latest
+     * @param opening is the record read while the log is opened?
+     */
+    private void track(LogRecord record, int segment, int oldest, boolean opening){
+        long key = record.getKey();
+        lastTransactionId = Math.max(lastTransactionId, record.getTransactionId());
+
+        switch(record.getType()){
+            case CHECKPOINT:
+                if(!opening) {
+                    saved = new ConcurrentHashMap<>();
+                    return;
+                }
+
+                for(long transaction : record.getInFlight())
+                    inFlight.putIfAbsent(transaction, oldest);
+
+                restoring = new HashMap<>();
+                replayed = new ArrayList<>();
+                break;
+
+            case BALANCES:
+                if(!opening || restoring == null) return;
+
+                for(int i = 0; i < record.getAccounts().length; i++)
+                    restoring.put(record.getAccounts()[i], record.getBalances()[i]);
+
+                //Balances committed in removed segments are only found in the checkpoint
+                if(record.isLast()) {
+                    balances.clear();
+                    balances.putAll(restoring);
+                    for(LogRecord update : replayed)
+                        apply(update);
+
+                    restoring = null;
+                    replayed = null;
+                }
+                break;
+
+            case UPDATE:
+            case DELTA:
+                updates.computeIfAbsent(key, k -> new ArrayList<>()).add(record);
+                inFlight.putIfAbsent(key, segment);
+                break;
+
+            case COMMIT:
+                ArrayList<LogRecord> committed = updates.remove(key);
+                if(committed != null)
+                    for(LogRecord update : committed){
+                        apply(update);
+                        if(replayed != null) replayed.add(update);
+                    }
+                inFlight.putIfAbsent(key, segment);
+                break;
+
+            case ABORT:
+                updates.remove(key);
+                inFlight.putIfAbsent(key, segment);
+                break;
+
+            case END:
+                updates.remove(key);
+                inFlight.remove(key);
+                break;
+
+            default:
+                inFlight.putIfAbsent(key, segment);
+        }
+    }
+
+    /**
+     * Applies a committed update to the balances, while a checkpoint
+     * copies them the balance at its CHECKPOINT record is saved first
+     *
+     * @param update the UPDATE or DELTA record
+     */
+    private void apply(LogRecord update){
+        ConcurrentHashMap<String, Double> saved = this.saved;
+        if(saved != null && !saved.containsKey(update.getAccount()))
+            saved.put(update.getAccount(), balances.getOrDefault(update.getAccount(), Double.NaN));
+
+        if(update.getType() == LogRecord.Type.DELTA)
+            balances.compute(update.getAccount(), (account, balance) -> merge(balance, update));
+        else
+            balances.put(update.getAccount(), update.getAfter());
+    }
+
+    /**
+     * Adds a committed delta to a balance, in hundredths so deltas add up exactly
+     *
+     * @param balance the balance, or null if there is none yet
+     * @param delta   the DELTA record
+     * @return        the new balance
+     */
+    static double merge(Double balance, LogRecord delta){
+        double start = balance != null ? balance : delta.getBefore();
+        return AccountStore.toAmount(AccountStore.toCents(start) + AccountStore.toCents(delta.getAmount()));
+    }
+
+    /**
+     * Fills in a checkpoint with the transactions in flight
+     *
+     * @param record the checkpoint
+     */
+    private void fillCheckpoint(LogRecord record){
+        long[] keys = new long[inFlight.size()];
+        int oldest = segment.getNumber();
+
+        int i = 0;
+        for(Map.Entry<Long, Integer> entry : inFlight.entrySet()){
+            keys[i++] = entry.getKey();
+            oldest = Math.min(oldest, entry.getValue());
+        }
+
+        record.setCheckpoint(lastTransactionId, keys);
+        record.compactBefore = oldest;
+    }
+}
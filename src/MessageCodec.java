@@ -0,0 +1,475 @@
+package twophasecommit;
+
+import twophasecommit.constants.Outcome;
+import twophasecommit.constants.State;
+import twophasecommit.constants.Vote;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ProtocolException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Encodes the messages between the coordinator and the participants
+ *
+ * Both directions send frames on the format [length][type][data], where
+ * length covers the type and the data. The data for each type is:
+ * SUB_TRANSACTION  transaction id, sub-transaction id, participant id,
+ *                  account, balance, version of the balance, amount
+ * DECISION         transaction id, sub-transaction id, vote
+ * OWNERSHIP        accounts gained with their balances, accounts dropped
+ * TEXT             the text
+ * VOTE             participant id, transaction id, sub-transaction id, vote
+ * STATE            participant id, transaction id, sub-transaction id, state,
+ *                  the sub-transaction id is 0 for the state of the participant
+ * SUBMIT           request id, from account, to account, amount
+ * REPLY            request id, outcome
+ * Strings are UTF-8 after a 2-byte length, and balances and amounts are
+ * in hundredths. SUBMIT and REPLY are sent between clients and the
+ * coordinator, the request id is chosen by the client
+ *
+ * Frames are decoded straight from a ByteBuffer. VOTE, STATE and SUBMIT
+ * are read into the fields of the codec rather than into new objects, so
+ * the first two allocate nothing, the other types are built as objects
+ *
+ * A codec encodes into a buffer and decodes through fields that it reuses,
+ * so each connection has its own and uses it from one thread at a time
+ */
+public class MessageCodec {
+
+    //The types of messages
+    public enum Type {
+        SUB_TRANSACTION,
+        DECISION,
+        OWNERSHIP,
+        TEXT,
+        VOTE,
+        STATE,
+        SUBMIT,
+        REPLY
+    }
+
+    //Size of [length] and of [length][type]
+    private final static int LENGTH_SIZE = 4;
+    public final static int HEADER_SIZE = 5;
+
+    //Largest frame accepted from a participant or the coordinator, a rebalance can move many accounts at once
+    public final static int MAX_FRAME_SIZE = 1 << 30;
+
+    private final static Type[] TYPES = Type.values();
+    private final static Vote[] VOTES = Vote.values();
+    private final static State[] STATES = State.values();
+    private final static Outcome[] OUTCOMES = Outcome.values();
+
+    //Reused for every frame encoded, grows to fit the largest one
+    private ByteBuffer buffer = ByteBuffer.allocate(256);
+
+    //Bytes read by read(InputStream) and not yet decoded, ready to be read from
+    private ByteBuffer received = ByteBuffer.allocate(8192).limit(0);
+
+    //Scratch space for strings being decoded
+    private byte[] bytes = new byte[64];
+
+    //Largest frame this codec decodes, a longer length is turned down before anything is allocated for it
+    private final int maxFrameSize;
+
+    //Fields of the last frame decoded
+    private int participantId;
+    private int transactionId;
+    private int subTransactionId;
+    private Vote vote;
+    private State state;
+    private int requestId;
+    private String from;
+    private String to;
+    private double amount;
+    private Object message;
+
+    public MessageCodec(){
+        this(MAX_FRAME_SIZE);
+    }
+
+    /**
+     * @param maxFrameSize the largest frame to decode, in bytes with the length
+     */
+    public MessageCodec(int maxFrameSize){
+        this.maxFrameSize = maxFrameSize;
+    }
+
+    /**
+     * Encodes a message
+     *
+     * @param message a SubTransaction, Decision, Ownership, Reply or String
+     * @return        the frame from position to limit, valid until the next call
+     */
+    public ByteBuffer encode(Object message){
+        while(true){
+            buffer.clear();
+
+            try {
+                write(message);
+                buffer.flip();
+                return buffer;
+            } catch (BufferOverflowException e){
+                buffer = ByteBuffer.allocate(buffer.capacity() * 2);
+            }
+        }
+    }
+
+    /**
+     * Encodes a vote
+     *
+     * @param vote             the vote
+     * @param participantId    the participant voting
+     * @param transactionId    the transaction
+     * @param subTransactionId the sub-transaction
+     * @return                 the frame from position to limit, valid until the next call
+     */
+    public ByteBuffer encodeVote(Vote vote, int participantId, int transactionId, int subTransactionId){
+        buffer.clear();
+        int start = begin(Type.VOTE);
+        buffer.putInt(participantId);
+        buffer.putInt(transactionId);
+        buffer.putInt(subTransactionId);
+        buffer.put((byte) vote.ordinal());
+        end(start);
+
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Encodes a state change
+     *
+     * @param state            the state
+     * @param participantId    the participant
+     * @param transactionId    the transaction, or 0 for the state of the participant
+     * @param subTransactionId the sub-transaction, or 0 for the state of the participant
+     * @return                 the frame from position to limit, valid until the next call
+     */
+    public ByteBuffer encodeState(State state, int participantId, int transactionId, int subTransactionId){
+        buffer.clear();
+        int start = begin(Type.STATE);
+        buffer.putInt(participantId);
+        buffer.putInt(transactionId);
+        buffer.putInt(subTransactionId);
+        buffer.put((byte) state.ordinal());
+        end(start);
+
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Encodes a transaction submitted by a client
+     *
+     * @param requestId the id the client gives the submission
+     * @param from      the account the amount is taken from
+     * @param to        the account the amount is given to
+     * @param amount    the amount
+     * @return          the frame from position to limit, valid until the next call
+     */
+    public ByteBuffer encodeSubmit(int requestId, String from, String to, double amount){
+        while(true){
+            buffer.clear();
+
+            try {
+                int start = begin(Type.SUBMIT);
+                buffer.putInt(requestId);
+                putString(from);
+                putString(to);
+                buffer.putLong(AccountStore.toCents(amount));
+                end(start);
+
+                buffer.flip();
+                return buffer;
+            } catch (BufferOverflowException e){
+                buffer = ByteBuffer.allocate(buffer.capacity() * 2);
+            }
+        }
+    }
+
+    /**
+     * Decodes the frame at the position of a buffer, and moves the position
+     * past it. Nothing is read if the buffer does not hold the whole frame
+     *
+     * @param buffer the buffer
+     * @return       the type of the frame, or null if it is not complete
+     * @throws ProtocolException if the frame is invalid
+     */
+    public Type decode(ByteBuffer buffer) throws ProtocolException {
+        int length = frameSize(buffer) - LENGTH_SIZE;
+        if(length < 0 || buffer.remaining() < LENGTH_SIZE + length) return null;
+
+        int start = buffer.position();
+        int end = start + LENGTH_SIZE + length;
+        int type = buffer.get(start + LENGTH_SIZE);
+        if(type < 0 || type >= TYPES.length) throw new ProtocolException("UNKNOWN MESSAGE TYPE: " + type);
+
+        buffer.position(start + HEADER_SIZE);
+        try {
+            read(TYPES[type], buffer);
+        } catch (RuntimeException e){
+            throw new ProtocolException("INVALID " + TYPES[type] + " MESSAGE");
+        }
+
+        if(buffer.position() != end) throw new ProtocolException("INVALID " + TYPES[type] + " MESSAGE");
+        return TYPES[type];
+    }
+
+    /**
+     * Decodes the next frame from a stream, reading from it until the whole frame is there
+     *
+     * @param input the stream
+     * @return      the type of the frame
+     * @throws IOException if the stream ends or the frame is invalid
+     */
+    public Type read(InputStream input) throws IOException {
+        while(true){
+            Type type = decode(received);
+            if(type != null) return type;
+
+            //Makes room for the rest of the frame
+            int size = frameSize(received);
+            received.compact();
+            if(size > received.capacity())
+                received = ByteBuffer.allocate(Math.max(size, received.capacity() * 2)).put(received.flip());
+
+            int read = input.read(received.array(), received.position(), received.remaining());
+            if(read < 0) throw new EOFException();
+
+            received.position(received.position() + read).flip();
+        }
+    }
+
+    /**
+     * Gets the size of the frame at the position of a buffer
+     *
+     * @param buffer the buffer
+     * @return       the size in bytes, or 0 if the buffer does not hold the length yet
+     * @throws ProtocolException if the length is invalid, or the frame is larger than this codec takes
+     */
+    public int frameSize(ByteBuffer buffer) throws ProtocolException {
+        if(buffer.remaining() < LENGTH_SIZE) return 0;
+
+        int length = buffer.getInt(buffer.position());
+        if(length < 1 || length > maxFrameSize - LENGTH_SIZE) throw new ProtocolException("INVALID FRAME LENGTH: " + length);
+        return LENGTH_SIZE + length;
+    }
+
+    public int getParticipantId(){
+        return participantId;
+    }
+
+    public int getTransactionId(){
+        return transactionId;
+    }
+
+    public int getSubTransactionId(){
+        return subTransactionId;
+    }
+
+    public Vote getVote(){
+        return vote;
+    }
+
+    public State getState(){
+        return state;
+    }
+
+    public int getRequestId(){
+        return requestId;
+    }
+
+    public String getFrom(){
+        return from;
+    }
+
+    public String getTo(){
+        return to;
+    }
+
+    public double getAmount(){
+        return amount;
+    }
+
+    /**
+     * Gets the message of the last frame decoded
+     *
+     * @return a SubTransaction, Decision, Ownership, Reply or String,
+     *         or null for VOTE, STATE and SUBMIT
+     */
+    public Object getMessage(){
+        return message;
+    }
+
+    //Reads the data of a frame into the fields
+    private void read(Type type, ByteBuffer buffer){
+        message = null;
+        vote = null;
+        state = null;
+
+        switch(type){
+            case SUB_TRANSACTION:
+                transactionId = buffer.getInt();
+                subTransactionId = buffer.getInt();
+                participantId = buffer.getInt();
+                Account account = new Account(getString(buffer), AccountStore.toAmount(buffer.getLong()), buffer.getLong());
+
+                SubTransaction subTransaction = new SubTransaction(transactionId, subTransactionId, account, AccountStore.toAmount(buffer.getLong()));
+                subTransaction.setParticipantId(participantId);
+                message = subTransaction;
+                break;
+
+            case DECISION:
+                transactionId = buffer.getInt();
+                subTransactionId = buffer.getInt();
+                vote = VOTES[buffer.get()];
+                message = new Decision(transactionId, subTransactionId, vote);
+                break;
+
+            case OWNERSHIP:
+                Account[] gained = new Account[buffer.getInt()];
+                for(int i = 0; i < gained.length; i++)
+                    gained[i] = new Account(getString(buffer), AccountStore.toAmount(buffer.getLong()));
+
+                String[] dropped = new String[buffer.getInt()];
+                for(int i = 0; i < dropped.length; i++)
+                    dropped[i] = getString(buffer);
+
+                message = new Ownership(gained, dropped);
+                break;
+
+            case TEXT:
+                message = getString(buffer);
+                break;
+
+            case VOTE:
+                participantId = buffer.getInt();
+                transactionId = buffer.getInt();
+                subTransactionId = buffer.getInt();
+                vote = VOTES[buffer.get()];
+                break;
+
+            case STATE:
+                participantId = buffer.getInt();
+                transactionId = buffer.getInt();
+                subTransactionId = buffer.getInt();
+                state = STATES[buffer.get()];
+                break;
+
+            case SUBMIT:
+                requestId = buffer.getInt();
+                from = getString(buffer);
+                to = getString(buffer);
+                amount = AccountStore.toAmount(buffer.getLong());
+                break;
+
+            case REPLY:
+                requestId = buffer.getInt();
+                message = new Reply(requestId, OUTCOMES[buffer.get()]);
+                break;
+        }
+    }
+
+    //Writes a frame at the position of the buffer
+    private void write(Object message){
+        if(message instanceof SubTransaction) {
+            SubTransaction subTransaction = (SubTransaction) message;
+
+            int start = begin(Type.SUB_TRANSACTION);
+            buffer.putInt(subTransaction.getTransactionId());
+            buffer.putInt(subTransaction.getSubTransactionId());
+            buffer.putInt(subTransaction.getParticipantId());
+            putString(subTransaction.getAccount().getName());
+            buffer.putLong(AccountStore.toCents(subTransaction.getAccount().getBalance()));
+            buffer.putLong(subTransaction.getAccount().getVersion());
+            buffer.putLong(AccountStore.toCents(subTransaction.getAmount()));
+            end(start);
+        }
+        else if(message instanceof Decision) {
+            Decision decision = (Decision) message;
+
+            int start = begin(Type.DECISION);
+            buffer.putInt(decision.getTransactionId());
+            buffer.putInt(decision.getSubTransactionId());
+            buffer.put((byte) decision.getVote().ordinal());
+            end(start);
+        }
+        else if(message instanceof Ownership) {
+            Ownership ownership = (Ownership) message;
+
+            int start = begin(Type.OWNERSHIP);
+            buffer.putInt(ownership.getGained().length);
+            for(Account account : ownership.getGained()){
+                putString(account.getName());
+                buffer.putLong(AccountStore.toCents(account.getBalance()));
+            }
+
+            buffer.putInt(ownership.getDropped().length);
+            for(String account : ownership.getDropped())
+                putString(account);
+            end(start);
+        }
+        else if(message instanceof Reply) {
+            Reply reply = (Reply) message;
+
+            int start = begin(Type.REPLY);
+            buffer.putInt(reply.getRequestId());
+            buffer.put((byte) reply.getOutcome().ordinal());
+            end(start);
+        }
+        else {
+            int start = begin(Type.TEXT);
+            putString(String.valueOf(message));
+            end(start);
+        }
+    }
+
+    //Leaves room for the length and writes the type, returns where the frame starts
+    private int begin(Type type){
+        int start = buffer.position();
+        buffer.position(start + LENGTH_SIZE);
+        buffer.put((byte) type.ordinal());
+        return start;
+    }
+
+    //Fills in the length of the frame
+    private void end(int start){
+        buffer.putInt(start, buffer.position() - start - LENGTH_SIZE);
+    }
+
+    //Writes a string, ASCII is copied as it is without encoding it to an array first
+    private void putString(String string){
+        int start = buffer.position();
+        buffer.putShort((short) 0);
+
+        int length = string.length();
+        for(int i = 0; i < string.length(); i++){
+            char c = string.charAt(i);
+            if(c >= 0x80) {
+                byte[] encoded = string.getBytes(StandardCharsets.UTF_8);
+                buffer.position(start + 2);
+                buffer.put(encoded);
+                length = encoded.length;
+                break;
+            }
+
+            buffer.put((byte) c);
+        }
+
+        if(length > 0xffff) throw new IllegalArgumentException("STRING TOO LONG: " + length + " BYTES");
+        buffer.putShort(start, (short) length);
+    }
+
+    private String getString(ByteBuffer buffer){
+        int length = buffer.getShort() & 0xffff;
+        if(length > bytes.length) bytes = new byte[Math.max(length, bytes.length * 2)];
+
+        buffer.get(bytes, 0, length);
+        return new String(bytes, 0, length, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,31 @@
+package twophasecommit;
+
+/**
+ * Accounts that move to or away from a participant
+ * when the coordinator rebalances the shards
+ */
+public class Ownership {
+
+    //Accounts the participant now owns, with their committed balances
+    private Account[] gained;
+
+    //Names of the accounts the participant no longer owns
+    private String[] dropped;
+
+    public Ownership(Account[] gained, String[] dropped){
+        this.gained = gained;
+        this.dropped = dropped;
+    }
+
+    public Account[] getGained(){
+        return gained;
+    }
+
+    public String[] getDropped(){
+        return dropped;
+    }
+
+    public String toString(){
+        return "OWNERSHIP: " + gained.length + " GAINED, " + dropped.length + " DROPPED";
+    }
+}
@@ -0,0 +1,364 @@
+package twophasecommit;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Recovers the state of a log after a restart
+ *
+ * The log is scanned from the last checkpoint, and each (sub-)transaction
+ * is classified as committed, aborted, abandoned or in doubt. Updates are
+ * then redone in log order and the updates of the losers are undone using
+ * their before-images. The losers are the abandoned transactions and the
+ * aborted ones without END. An aborted transaction with END was already
+ * undone before the crash and its account may have been updated since, so
+ * it is neither redone nor undone. Deltas on hot accounts are only applied
+ * at commit, so only committed deltas are redone and none are undone.
+ * Transactions on disjoint accounts are replayed in parallel
+ *
+ * A checkpoint is only used once its last BALANCES record is read, a
+ * checkpoint cut short by the crash leaves the state before it as it was
+ *
+ * A transaction without a decision is abandoned if it never voted to commit,
+ * and is aborted, since no one can have decided to commit it. One that has
+ * logged PREPARED is in doubt: only the coordinator knows the decision, so
+ * it is left open with its account as before the update, and the participant
+ * applies the update again and asks the coordinator, see getInDoubtUpdates
+ */
+public class Recovery {
+    private String filename;
+
+    //Pool used to replay groups of transactions in parallel
+    private ForkJoinPool pool;
+
+    //A map of (sub-)transactions on the form <key, state>, in log order
+    private LinkedHashMap<Long, TransactionState> transactions = new LinkedHashMap<>();
+
+    //A map of recovered balances on the form <account, balance>
+    private ConcurrentHashMap<String, Double> balances = new ConcurrentHashMap<>();
+
+    //The checkpoint being read, until its last part
+    private Checkpoint checkpoint;
+
+    //Results
+    private ArrayList<Long> committed = new ArrayList<>();
+    private ArrayList<Long> aborted = new ArrayList<>();
+    private ArrayList<Long> abandoned = new ArrayList<>();
+    private ArrayList<Long> inDoubt = new ArrayList<>();
+    private long records = 0;
+    private int lastTransactionId = 0;
+    private long elapsed = 0;
+
+    //State of a single (sub-)transaction found in the log
+    private static class TransactionState {
+        private LogRecord.Type decision;
+        private boolean prepared;
+        private boolean ended;
+        private ArrayList<LogRecord> updates = new ArrayList<>();
+
+        //Has it voted to commit without knowing the decision?
+        private boolean inDoubt(){
+            return decision == null && prepared;
+        }
+
+        //Was the transaction aborted and undone before the crash?
+        private boolean undone(){
+            return decision == LogRecord.Type.ABORT && ended;
+        }
+    }
+
+    //A checkpoint being read, the balances are as of its CHECKPOINT record
+    private static class Checkpoint {
+        private HashSet<Long> inFlight = new HashSet<>();
+
+        //Transactions found before the CHECKPOINT record, and the ones in flight whose commit is already in the balances
+        private HashSet<Long> before;
+        private ArrayList<Long> committed = new ArrayList<>();
+
+        private HashMap<String, Double> balances = new HashMap<>();
+    }
+
+    public Recovery(String filename){
+        this(filename, ForkJoinPool.commonPool());
+    }
+
+    public Recovery(String filename, ForkJoinPool pool){
+        this.filename = filename;
+        this.pool = pool;
+    }
+
+    public Map<String, Double> getBalances(){
+        return balances;
+    }
+
+    public List<Long> getCommitted(){
+        return committed;
+    }
+
+    public List<Long> getAborted(){
+        return aborted;
+    }
+
+    public List<Long> getAbandoned(){
+        return abandoned;
+    }
+
+    public List<Long> getInDoubt(){
+        return inDoubt;
+    }
+
+    /**
+     * Gets the updates of the sub-transactions in doubt, which are not
+     * applied to the recovered balances. The participant applies them
+     * again and keeps them until the coordinator has told it the decision
+     *
+     * @return the UPDATE and DELTA records, in log order
+     */
+    public List<LogRecord> getInDoubtUpdates(){
+        ArrayList<LogRecord> updates = new ArrayList<>();
+        for(long key : inDoubt)
+            updates.addAll(transactions.get(key).updates);
+
+        return updates;
+    }
+
+    /**
+     * Gets the highest transaction id in the log
+     *
+     * @return the transaction id, 0 if the log is empty
+     */
+    public int getLastTransactionId(){
+        return lastTransactionId;
+    }
+
+    public long getElapsed(){
+        return elapsed;
+    }
+
+    /**
+     * Runs recovery, then closes every unfinished transaction in the log
+     *
+     * @throws IOException if the log could not be read
+     */
+    public void run() throws IOException {
+        long start = System.nanoTime();
+
+        scan();
+        classify();
+        replay();
+
+        elapsed = (System.nanoTime() - start) / 1000000;
+
+        System.out.println("RECOVERY: " + records + " RECORDS, " + committed.size() + " COMMITTED, "
+                + aborted.size() + " ABORTED, " + abandoned.size() + " ABANDONED, " + inDoubt.size() + " IN DOUBT, " + elapsed + " MS\n");
+
+        resolve();
+    }
+
+    //Reads the log, starting over at each checkpoint
+    private void scan() throws IOException {
+        LogReader.forEach(LogManager.getDirectory(filename), record -> {
+            records++;
+            lastTransactionId = Math.max(lastTransactionId, record.getTransactionId());
+
+            if(record.getType() == LogRecord.Type.CHECKPOINT){
+                checkpoint(record);
+                return;
+            }
+
+            if(record.getType() == LogRecord.Type.BALANCES){
+                balances(record);
+                return;
+            }
+
+            TransactionState state = transactions.computeIfAbsent(record.getKey(), key -> new TransactionState());
+
+            switch(record.getType()){
+                case UPDATE:
+                case DELTA:
+                    state.updates.add(record);
+                    break;
+
+                case COMMIT:
+                case ABORT:
+                    state.decision = record.getType();
+                    break;
+
+                case PREPARED:
+                    state.prepared = true;
+                    break;
+
+                case END:
+                    state.ended = true;
+                    break;
+            }
+        });
+    }
+
+    /**
+     * Starts reading a checkpoint, a checkpoint started
+     * before it and never completed is dropped
+     *
+     * @param record the CHECKPOINT record
+     */
+    private void checkpoint(LogRecord record){
+        checkpoint = new Checkpoint();
+        for(long key : record.getInFlight())
+            checkpoint.inFlight.add(key);
+
+        checkpoint.before = new HashSet<>(transactions.keySet());
+        transactions.forEach((key, state) -> {
+            if(state.decision == LogRecord.Type.COMMIT && checkpoint.inFlight.contains(key))
+                checkpoint.committed.add(key);
+        });
+    }
+
+    /**
+     * Reads a part of the balances of a checkpoint, and applies the checkpoint
+     * after the last part: of the transactions found before it only the ones
+     * in flight are kept, and the updates of the ones already committed are
+     * dropped, since they are in the balances
+     *
+     * @param record the BALANCES record
+     */
+    private void balances(LogRecord record){
+        if(checkpoint == null) return;
+
+        for(int i = 0; i < record.getAccounts().length; i++)
+            checkpoint.balances.put(record.getAccounts()[i], record.getBalances()[i]);
+
+        if(!record.isLast()) return;
+
+        transactions.keySet().removeIf(key -> checkpoint.before.contains(key) && !checkpoint.inFlight.contains(key));
+        for(long key : checkpoint.committed)
+            transactions.get(key).updates.clear();
+
+        balances.clear();
+        balances.putAll(checkpoint.balances);
+        checkpoint = null;
+    }
+
+    //Sorts the transactions by their outcome
+    private void classify(){
+        transactions.forEach((key, state) -> {
+            if(state.decision == LogRecord.Type.COMMIT) committed.add(key);
+            else if(state.decision == LogRecord.Type.ABORT) aborted.add(key);
+            else if(state.prepared) inDoubt.add(key);
+            else abandoned.add(key);
+        });
+    }
+
+    /**
+     * Splits the transactions into groups that share no accounts,
+     * and replays the groups in parallel
+     */
+    private void replay(){
+        //Union-find over the accounts touched by each transaction
+        HashMap<String, String> parents = new HashMap<>();
+        for(TransactionState state : transactions.values()){
+            if(state.undone()) continue;
+
+            String first = null;
+            for(LogRecord update : state.updates){
+                String root = find(parents, update.getAccount());
+                if(first == null) first = root;
+                else if(!root.equals(first)) parents.put(root, first);
+            }
+        }
+
+        //Groups the transactions by the root of their accounts, keeping log order
+        LinkedHashMap<String, ArrayList<TransactionState>> groups = new LinkedHashMap<>();
+        for(TransactionState state : transactions.values()){
+            if(state.updates.isEmpty() || state.undone()) continue;
+
+            String root = find(parents, state.updates.get(0).getAccount());
+            groups.computeIfAbsent(root, r -> new ArrayList<>()).add(state);
+        }
+
+        pool.invoke(new ReplayTask(new ArrayList<>(groups.values()), 0, groups.size()));
+    }
+
+    private static String find(HashMap<String, String> parents, String account){
+        String parent = parents.putIfAbsent(account, account);
+        if(parent == null || parent.equals(account)) return account;
+
+        String root = find(parents, parent);
+        parents.put(account, root);
+        return root;
+    }
+
+    //Replays a range of groups, splitting it until it is small
+    private class ReplayTask extends RecursiveAction {
+        private final static long serialVersionUID = 1L;
+        private final static int THRESHOLD = 16;
+
+        private ArrayList<ArrayList<TransactionState>> groups;
+        private int from;
+        private int to;
+
+        ReplayTask(ArrayList<ArrayList<TransactionState>> groups, int from, int to){
+            this.groups = groups;
+            this.from = from;
+            this.to = to;
+        }
+
+        protected void compute(){
+            if(to - from > THRESHOLD) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new ReplayTask(groups, from, middle), new ReplayTask(groups, middle, to));
+                return;
+            }
+
+            for(int i = from; i < to; i++)
+                replay(groups.get(i));
+        }
+
+        /**
+         * Redoes every update in log order, then undoes the
+         * updates of the losers in reverse order. An update in
+         * doubt leaves its account at the before-image
+         *
+         * @param group transactions that share accounts, in log order,
+         *              without the ones already undone
+         */
+        private void replay(ArrayList<TransactionState> group){
+            for(TransactionState state : group)
+                for(LogRecord update : state.updates){
+                    if(update.getType() != LogRecord.Type.DELTA)
+                        balances.put(update.getAccount(), state.inDoubt() ? update.getBefore() : update.getAfter());
+                    else if(state.decision == LogRecord.Type.COMMIT)
+                        balances.compute(update.getAccount(), (account, balance) -> LogWriter.merge(balance, update));
+                }
+
+            for(int i = group.size() - 1; i >= 0; i--){
+                TransactionState state = group.get(i);
+                if(state.decision == LogRecord.Type.COMMIT || state.inDoubt()) continue;
+
+                for(int j = state.updates.size() - 1; j >= 0; j--){
+                    LogRecord update = state.updates.get(j);
+                    if(update.getType() != LogRecord.Type.DELTA)
+                        balances.put(update.getAccount(), update.getBefore());
+                }
+            }
+        }
+    }
+
+    //Writes ABORT for abandoned transactions and END for every unfinished transaction not in doubt
+    private void resolve(){
+        for(long key : abandoned)
+            LogManager.writeLog(filename, LogRecord.abort(LogRecord.transactionId(key), LogRecord.subTransactionId(key)));
+
+        transactions.forEach((key, state) -> {
+            if(!state.ended && !state.inDoubt())
+                LogManager.writeLog(filename, LogRecord.end(LogRecord.transactionId(key), LogRecord.subTransactionId(key)));
+        });
+    }
+}
@@ -0,0 +1,30 @@
+package twophasecommit;
+
+import twophasecommit.constants.Outcome;
+
+/**
+ * The outcome of a transaction, sent to the
+ * client that submitted it
+ */
+public class Reply {
+    private int requestId;
+    private Outcome outcome;
+
+    public Reply(int requestId, Outcome outcome){
+        this.requestId = requestId;
+        this.outcome = outcome;
+    }
+
+    //The id the client gave the submission, replies come in the order transactions are decided
+    public int getRequestId(){
+        return requestId;
+    }
+
+    public Outcome getOutcome(){
+        return outcome;
+    }
+
+    public String toString(){
+        return outcome + " REQUEST #" + requestId;
+    }
+}
@@ -1,12 +1,10 @@
 package twophasecommit;
 
-import java.io.Serializable;
-
 /**
  * The sub-transaction is a part of a
  * transaction that is executed by a participant
  */
-public class SubTransaction implements Serializable {
+public class SubTransaction {
 
     //IDs
     private int participantId;
@@ -41,6 +39,10 @@ public class SubTransaction implements Serializable {
         return transactionId;
     }
 
+    public int getSubTransactionId(){
+        return id;
+    }
+
     public double getAmount(){
         return amount;
     }
@@ -50,12 +52,16 @@ public class SubTransaction implements Serializable {
     }
 
 
-    //Executes the sub-transaction
-    public void execute(){
-        if(amount > 0)
-            account.deposit(amount);
-        else
-            account.withdraw(Math.abs(amount));
+    /**
+     * Executes the sub-transaction on an account in a store
+     *
+     * @param store the store
+     * @param slot  the slot of the account
+     * @return      the balance in hundredths before the update,
+     *              read together with the update
+     */
+    public long execute(AccountStore store, int slot){
+        return store.add(slot, AccountStore.toCents(amount));
     }
 
     //Commits the sub-transaction
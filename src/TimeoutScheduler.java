@@ -0,0 +1,252 @@
+package twophasecommit;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hashed timing wheel shared by every timeout in the process
+ *
+ * The wheel is a ring of buckets, one per tick. A timeout goes in
+ * the bucket of its deadline, with the number of whole turns left
+ * before it is due. A single worker thread advances the wheel one
+ * bucket per tick and hands expired timeouts to a small pool, so
+ * a slow task never holds up the wheel
+ *
+ * Scheduling and cancelling are O(1) and never block: new and
+ * cancelled timeouts are queued, and the worker moves them in and
+ * out of the buckets on the next tick. Timeouts fire up to one
+ * tick late
+ */
+public class TimeoutScheduler {
+
+    //Tick length and number of buckets, can be overridden with -Dtimeout.tick and -Dtimeout.wheelSize
+    private final static TimeoutScheduler shared = new TimeoutScheduler(
+            Long.getLong("timeout.tick", 100), Integer.getInteger("timeout.wheelSize", 512),
+            Runtime.getRuntime().availableProcessors());
+
+    //Length of a tick in ns
+    private final long tick;
+
+    //The buckets, the number of buckets is a power of two
+    private final Bucket[] wheel;
+    private final int mask;
+
+    //Timeouts waiting to be put in, or taken out of, a bucket
+    private final ConcurrentLinkedQueue<Timeout> added = new ConcurrentLinkedQueue<>();
+    private final ConcurrentLinkedQueue<Timeout> cancelled = new ConcurrentLinkedQueue<>();
+
+    //Runs the expired tasks
+    private final ExecutorService executor;
+
+    //Time the wheel started, deadlines are relative to it
+    private final long startTime = System.nanoTime();
+
+    //Number of ticks since the start, only used by the worker thread
+    private long ticks = 0;
+
+    //Number of timeouts scheduled and not yet expired or cancelled
+    private final AtomicLong pending = new AtomicLong();
+
+    //States of a timeout
+    private final static int PENDING = 0;
+    private final static int CANCELLED = 1;
+    private final static int EXPIRED = 2;
+
+    /**
+     * A scheduled task that can be cancelled
+     */
+    public final class Timeout {
+        private final Runnable task;
+        private final long deadline;
+        private final AtomicInteger state = new AtomicInteger(PENDING);
+
+        //Position in the wheel, only used by the worker thread
+        private long rounds;
+        private Bucket bucket;
+        private Timeout previous;
+        private Timeout next;
+
+        private Timeout(Runnable task, long deadline){
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Cancels the timeout
+         *
+         * @return true if the task will not run, false
+         *         if it has already expired or been cancelled
+         */
+        public boolean cancel(){
+            if(!state.compareAndSet(PENDING, CANCELLED)) return false;
+
+            pending.decrementAndGet();
+            cancelled.add(this);
+            return true;
+        }
+
+        public boolean isExpired(){
+            return state.get() == EXPIRED;
+        }
+    }
+
+    //A doubly linked list of timeouts
+    private static final class Bucket {
+        private Timeout head;
+        private Timeout tail;
+
+        private void add(Timeout timeout){
+            timeout.bucket = this;
+            if(head == null) head = tail = timeout;
+            else {
+                tail.next = timeout;
+                timeout.previous = tail;
+                tail = timeout;
+            }
+        }
+
+        private Timeout remove(Timeout timeout){
+            Timeout next = timeout.next;
+
+            if(timeout.previous != null) timeout.previous.next = next;
+            if(next != null) next.previous = timeout.previous;
+            if(timeout == head) head = next;
+            if(timeout == tail) tail = timeout.previous;
+
+            timeout.previous = timeout.next = null;
+            timeout.bucket = null;
+            return next;
+        }
+    }
+
+    /**
+     * Creates a wheel and starts its worker thread
+     *
+     * @param tick      the length of a tick in ms
+     * @param wheelSize the number of buckets, rounded up to a power of two
+     * @param threads   the number of threads running expired tasks
+     */
+    public TimeoutScheduler(long tick, int wheelSize, int threads){
+        this.tick = TimeUnit.MILLISECONDS.toNanos(Math.max(1, tick));
+
+        int size = Integer.highestOneBit(Math.max(1, wheelSize - 1)) << 1;
+        this.wheel = new Bucket[size];
+        this.mask = size - 1;
+        for(int i = 0; i < size; i++)
+            wheel[i] = new Bucket();
+
+        this.executor = Executors.newFixedThreadPool(Math.max(1, threads), runnable -> {
+            Thread thread = new Thread(runnable, "TimeoutExecutor");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        Thread worker = new Thread(this::run, "TimeoutScheduler");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * Gets the scheduler shared by the coordinator and the participants
+     *
+     * @return the shared scheduler
+     */
+    public static TimeoutScheduler shared(){
+        return shared;
+    }
+
+    /**
+     * Schedules a task
+     *
+     * @param task  the task to run when the timeout expires
+     * @param delay the delay in ms
+     * @return      the timeout, used to cancel the task
+     */
+    public Timeout schedule(Runnable task, long delay){
+        Timeout timeout = new Timeout(task, System.nanoTime() - startTime + TimeUnit.MILLISECONDS.toNanos(delay));
+
+        pending.incrementAndGet();
+        added.add(timeout);
+        return timeout;
+    }
+
+    /**
+     * Gets the number of timeouts that have neither expired nor been cancelled
+     *
+     * @return the number of pending timeouts
+     */
+    public long getPending(){
+        return pending.get();
+    }
+
+    //Advances the wheel one bucket per tick
+    private void run(){
+        while(true){
+            //Sleeps until the end of the current tick
+            long sleep = (ticks + 1) * tick - (System.nanoTime() - startTime);
+            if(sleep > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleep);
+                } catch (InterruptedException e){
+                    return;
+                }
+            }
+
+            removeCancelled();
+            addScheduled();
+            expire(wheel[(int) (ticks & mask)]);
+
+            ticks++;
+        }
+    }
+
+    //Takes cancelled timeouts out of their buckets
+    private void removeCancelled(){
+        Timeout timeout;
+        while((timeout = cancelled.poll()) != null)
+            if(timeout.bucket != null)
+                timeout.bucket.remove(timeout);
+    }
+
+    //Puts new timeouts in the bucket of their deadline
+    private void addScheduled(){
+        Timeout timeout;
+        while((timeout = added.poll()) != null){
+            if(timeout.state.get() != PENDING) continue;
+
+            //The bucket of a tick expires at the end of the tick, timeouts already due go in the current bucket
+            long due = Math.max((timeout.deadline + tick - 1) / tick - 1, ticks);
+            timeout.rounds = (due - ticks) / wheel.length;
+            wheel[(int) (due & mask)].add(timeout);
+        }
+    }
+
+    /**
+     * Runs the timeouts in a bucket that are due this turn,
+     * the rest wait for another turn of the wheel
+     *
+     * @param bucket the bucket of the current tick
+     */
+    private void expire(Bucket bucket){
+        Timeout timeout = bucket.head;
+        while(timeout != null){
+            if(timeout.rounds > 0) {
+                timeout.rounds--;
+                timeout = timeout.next;
+                continue;
+            }
+
+            Timeout expired = timeout;
+            timeout = bucket.remove(expired);
+
+            if(expired.state.compareAndSet(PENDING, EXPIRED)) {
+                pending.decrementAndGet();
+                executor.execute(expired.task);
+            }
+        }
+    }
+}
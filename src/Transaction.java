@@ -1,6 +1,10 @@
 package twophasecommit;
 
+import twophasecommit.constants.Vote;
+
 import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * A transaction that contains two
@@ -9,7 +13,7 @@ import java.util.ArrayList;
 public class Transaction {
 
     //IDs
-    private static int transactionCount = 0;
+    private static AtomicInteger transactionCount = new AtomicInteger();
     private int subtransactionCount = 0;
     private int id;
 
@@ -20,11 +24,24 @@ public class Transaction {
     //Amount to transfer
     private double amount;
 
+    //Has the transaction been committed or aborted?
+    private AtomicBoolean decided = new AtomicBoolean();
+
+    //The decision, and a bitset of who has not acknowledged it, bit 0 is the coordinator and bit i is sub-transaction i
+    private volatile Vote decision;
+    private AtomicInteger unacknowledged = new AtomicInteger();
+
+    //Time (ns) the transaction was created
+    private long startTime = System.nanoTime();
+
+    //Bitset of sub-transactions still waiting for a commit vote, bit i is sub-transaction i + 1
+    private AtomicInteger outstanding = new AtomicInteger();
+
     //Sub-transactions
     private ArrayList<SubTransaction> subTransactions = new ArrayList<>();
 
     public Transaction(Account A, Account B, double amount){
-        this.id = ++transactionCount;
+        this.id = nextId();
 
         this.A = A;
         this.B = B;
@@ -34,6 +51,32 @@ public class Transaction {
         //Creates two sub-transactions
         subTransactions.add(new SubTransaction(id, ++subtransactionCount, A,   Math.abs(amount)));
         subTransactions.add(new SubTransaction(id, ++subtransactionCount, B, - Math.abs(amount)));
+
+        outstanding.set((1 << subTransactions.size()) - 1);
+    }
+
+    /**
+     * Sets the last used transaction id, new
+     * transactions get ids after it
+     *
+     * @param count the last used transaction id
+     */
+    public static void setTransactionCount(int count){
+        transactionCount.set(count);
+    }
+
+    public static int getTransactionCount(){
+        return transactionCount.get();
+    }
+
+    /**
+     * Takes the next transaction id, for records
+     * that are logged as a transaction of their own
+     *
+     * @return the transaction id
+     */
+    public static int nextId(){
+        return transactionCount.incrementAndGet();
     }
 
     public int getId(){
@@ -44,10 +87,81 @@ public class Transaction {
         return amount;
     }
 
+    public long getStartTime(){
+        return startTime;
+    }
+
     public ArrayList<SubTransaction> getSubTransactions(){
         return subTransactions;
     }
 
+    /**
+     * Records a commit vote for a sub-transaction
+     *
+     * A sub-transaction that votes twice is only counted once
+     *
+     * @param subTransactionId the sub-transaction id
+     * @return                 true if this was the last vote missing,
+     *                         for the caller that records it only
+     */
+    public boolean vote(int subTransactionId){
+        if(subTransactionId < 1 || subTransactionId > subTransactions.size()) return false;
+
+        return clear(outstanding, 1 << (subTransactionId - 1));
+    }
+
+    /**
+     * Records the decision, and who acknowledges it before the transaction
+     * ends: the coordinator once the decision is logged, and the participants
+     * unless the decision is presumed
+     *
+     * @param decision     the decision
+     * @param participants do the participants acknowledge it?
+     */
+    public void setDecision(Vote decision, boolean participants){
+        this.decision = decision;
+        unacknowledged.set(participants ? (1 << (subTransactions.size() + 1)) - 1 : 1);
+    }
+
+    public Vote getDecision(){
+        return decision;
+    }
+
+    /**
+     * Records an acknowledgement of the decision
+     *
+     * @param subTransactionId the sub-transaction id, or 0 for the coordinator
+     * @return                 true if this was the last acknowledgement missing,
+     *                         for the caller that records it only
+     */
+    public boolean acknowledge(int subTransactionId){
+        if(subTransactionId < 0 || subTransactionId > subTransactions.size()) return false;
+
+        return clear(unacknowledged, 1 << subTransactionId);
+    }
+
+    //Clears a bit, true if it was the last one set
+    private static boolean clear(AtomicInteger bits, int bit){
+        int current = bits.get();
+        while((current & bit) != 0){
+            if(bits.compareAndSet(current, current & ~bit))
+                return (current & ~bit) == 0;
+            current = bits.get();
+        }
+
+        return false;
+    }
+
+    /**
+     * Marks the transaction as decided
+     *
+     * @return true for the first caller only, every
+     *         other caller must leave the transaction alone
+     */
+    public boolean decide(){
+        return decided.compareAndSet(false, true);
+    }
+
     //Commits the transaction
     public void commit(){
         System.out.println("COMMITTING TRANSACTION #" + getId() + "...COMMITTED\n");
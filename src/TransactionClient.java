@@ -0,0 +1,124 @@
+package twophasecommit;
+
+import twophasecommit.constants.Outcome;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Submits transactions to the coordinator over one connection
+ *
+ * Submitting returns at once, with a future that completes when the reply
+ * arrives, so any number of transactions can be in flight at once without
+ * a thread each. Replies are read by a thread of the client, which also
+ * completes the futures, so work chained onto a future should not block
+ *
+ * A future completes exceptionally if the connection is lost before its
+ * reply arrives, the transaction may or may not have been committed then
+ */
+public class TransactionClient implements Closeable {
+
+    //The port of the coordinator that clients connect to
+    public final static int PORT = 1251;
+
+    private final Socket socket = new Socket();
+    private final OutputStream output;
+    private final MessageCodec encoder = new MessageCodec();
+
+    //A map of submissions waiting for their reply on the form <request id, future>
+    private final ConcurrentHashMap<Integer, CompletableFuture<Outcome>> pending = new ConcurrentHashMap<>();
+    private final AtomicInteger requestIds = new AtomicInteger();
+    private volatile IOException failure;
+
+    /**
+     * Connects to the coordinator
+     *
+     * @param host the host of the coordinator
+     * @param port the port clients connect to
+     * @throws IOException if the coordinator can not be reached
+     */
+    public TransactionClient(String host, int port) throws IOException {
+        socket.connect(new InetSocketAddress(host, port));
+        socket.setTcpNoDelay(true);
+        output = socket.getOutputStream();
+
+        Thread reader = new Thread(this::read, "client-" + socket.getLocalPort());
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /**
+     * Submits a transaction, returns at once
+     *
+     * @param from   the account the amount is taken from
+     * @param to     the account the amount is given to
+     * @param amount the amount
+     * @return       the outcome of the transaction, once it has been decided
+     */
+    public CompletableFuture<Outcome> submit(String from, String to, double amount){
+        int requestId = requestIds.incrementAndGet();
+        CompletableFuture<Outcome> future = new CompletableFuture<>();
+        pending.put(requestId, future);
+
+        try {
+            synchronized(encoder) {
+                if(failure != null) throw failure;
+
+                ByteBuffer frame = encoder.encodeSubmit(requestId, from, to, amount);
+                output.write(frame.array(), frame.position(), frame.remaining());
+            }
+        } catch (IOException e){
+            fail(e);
+        }
+
+        return future;
+    }
+
+    //Number of submissions waiting for their reply
+    public int getPending(){
+        return pending.size();
+    }
+
+    public void close() throws IOException {
+        socket.close();
+    }
+
+    //Reads replies until the connection is lost
+    private void read(){
+        MessageCodec decoder = new MessageCodec();
+
+        try {
+            InputStream input = socket.getInputStream();
+
+            while(true){
+                if(decoder.read(input) != MessageCodec.Type.REPLY) continue;
+
+                Reply reply = (Reply) decoder.getMessage();
+                CompletableFuture<Outcome> future = pending.remove(reply.getRequestId());
+                if(future != null) future.complete(reply.getOutcome());
+            }
+        } catch (IOException e){
+            fail(e);
+        }
+    }
+
+    //Fails every submission waiting for a reply, and every later one
+    private void fail(IOException e){
+        synchronized(encoder) {
+            if(failure == null) failure = e;
+        }
+
+        for(Integer requestId : pending.keySet()){
+            CompletableFuture<Outcome> future = pending.remove(requestId);
+            if(future != null) future.completeExceptionally(failure);
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package twophasecommit;
+
+import twophasecommit.constants.Execution;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the protocol steps of transactions, e.g. handling a vote
+ * or a decision, one step at a time per transaction
+ *
+ * Inline, a step runs on the thread that hands it over, so a step that
+ * waits for the log holds up every message behind it. Otherwise each
+ * transaction with steps to run gets a thread that runs them in the
+ * order they were handed over and ends when there are none left, so the
+ * thread that received the message goes straight back to reading and
+ * any number of transactions can wait for the log at once. Steps of
+ * different transactions run in no particular order
+ *
+ * Virtual threads are created through reflection, so the code still
+ * builds and runs on Java 17, where platform threads are used instead
+ */
+public class TransactionExecutor {
+
+    //The steps of one transaction that are waiting to run
+    private class Strand implements Runnable {
+        private final int transactionId;
+        private final ArrayDeque<Runnable> steps = new ArrayDeque<>();
+
+        //Whether a thread has been started for the steps, and whether it has run out of them
+        private boolean started = false;
+        private boolean done = false;
+
+        private Strand(int transactionId){
+            this.transactionId = transactionId;
+        }
+
+        //Runs the steps until there are none left, then lets the next step start a new strand
+        public void run(){
+            while(true){
+                Runnable step;
+                synchronized(this) {
+                    step = steps.poll();
+                    if(step == null) {
+                        done = true;
+                        strands.remove(transactionId, this);
+                        return;
+                    }
+                }
+
+                try {
+                    step.run();
+                } catch (RuntimeException e){
+                    //Keeps running the other steps of the transaction
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    //Starts a thread for each strand, null when the steps run inline
+    private final ExecutorService threads;
+
+    //A map of transactions with steps to run on the form <transaction id, strand>
+    private final ConcurrentHashMap<Integer, Strand> strands = new ConcurrentHashMap<>();
+
+    /**
+     * Creates an executor, falls back to platform threads
+     * if virtual threads are not available
+     *
+     * @param execution the threads to run the steps on
+     */
+    public TransactionExecutor(Execution execution){
+        ExecutorService threads = null;
+
+        if(execution == Execution.VIRTUAL) {
+            threads = virtualThreads();
+            if(threads == null) {
+                System.out.println("VIRTUAL THREADS NOT AVAILABLE - USING PLATFORM THREADS");
+                threads = platformThreads();
+            }
+        }
+        else if(execution == Execution.PLATFORM)
+            threads = platformThreads();
+
+        this.threads = threads;
+    }
+
+    /**
+     * Runs a step of a transaction after the steps of the
+     * same transaction handed over before it
+     *
+     * @param transactionId the transaction
+     * @param step          the step
+     */
+    public void execute(int transactionId, Runnable step){
+        if(threads == null) {
+            step.run();
+            return;
+        }
+
+        while(true){
+            Strand strand = strands.computeIfAbsent(transactionId, Strand::new);
+
+            synchronized(strand) {
+                //The strand ran out of steps and is being removed, the step goes in a new one
+                if(strand.done) continue;
+
+                strand.steps.add(step);
+                if(strand.started) return;
+                strand.started = true;
+            }
+
+            threads.execute(strand);
+            return;
+        }
+    }
+
+    /**
+     * Waits until the steps handed over before the call have run. A step is
+     * queued behind them in each transaction, so steps handed over later,
+     * e.g. by a lock grant or a timeout, are not waited for
+     *
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void awaitQueued() throws InterruptedException {
+        if(threads == null) return;
+
+        ArrayList<Integer> transactionIds = new ArrayList<>(strands.keySet());
+        CountDownLatch barrier = new CountDownLatch(transactionIds.size());
+        for(int transactionId : transactionIds)
+            execute(transactionId, barrier::countDown);
+
+        barrier.await();
+    }
+
+    //A virtual thread per strand, or null before Java 21
+    private static ExecutorService virtualThreads(){
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e){
+            return null;
+        }
+    }
+
+    //A platform thread per strand, threads are reused once their strand is done
+    private static ExecutorService platformThreads(){
+        AtomicInteger count = new AtomicInteger();
+
+        return Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "transaction-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+}
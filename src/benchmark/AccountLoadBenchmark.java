@@ -0,0 +1,83 @@
+package twophasecommit.benchmark;
+
+import twophasecommit.AccountLoader;
+import twophasecommit.AccountStore;
+import twophasecommit.AccountVersions;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Measures loading accounts from CSV and binary files, the way the
+ * coordinator does at startup, on one thread and on the common pool
+ *
+ * Usage: AccountLoadBenchmark [accounts]
+ */
+class AccountLoadBenchmark {
+    public static void main(String[] args) throws IOException {
+        int accounts = args.length > 0 ? Integer.parseInt(args[0]) : 5000000;
+
+        String[] names = new String[accounts];
+        long[] cents = new long[accounts];
+        for(int i = 0; i < accounts; i++){
+            names[i] = "ACCOUNT" + i;
+            cents[i] = (i * 7919L) % 10000000;
+        }
+
+        Path directory = Files.createTempDirectory("accounts");
+        Path csv = directory.resolve("accounts.csv");
+        Path binary = directory.resolve("accounts.bin");
+
+        try(BufferedWriter writer = Files.newBufferedWriter(csv)) {
+            writer.write("NAME,BALANCE\n");
+            for(int i = 0; i < accounts; i++)
+                writer.write(names[i] + "," + AccountStore.toAmount(cents[i]) + "\n");
+        }
+        AccountLoader.writeBinary(binary, names, cents, accounts, 16);
+        names = null;
+
+        System.out.printf("%d accounts, csv %d MB, binary %d MB%n%n", accounts,
+                Files.size(csv) >> 20, Files.size(binary) >> 20);
+        System.out.printf("%-8s %-8s %10s %14s%n", "format", "threads", "ms", "accounts/s");
+
+        //The common pool is left out when it has one thread as well
+        ForkJoinPool single = new ForkJoinPool(1);
+        ForkJoinPool[] pools = ForkJoinPool.commonPool().getParallelism() > 1
+                ? new ForkJoinPool[]{single, ForkJoinPool.commonPool()} : new ForkJoinPool[]{single};
+        for(int round = 0; round < 2; round++){
+            for(Path file : new Path[]{csv, binary}){
+                for(ForkJoinPool pool : pools){
+                    AccountLoader.Result result = load(file, pool);
+                    if(round == 0) continue;
+
+                    System.out.printf("%-8s %-8d %10d %14d%n", file == csv ? "csv" : "binary",
+                            pool.getParallelism(), result.getElapsed() / 1000000, result.getRate());
+                }
+            }
+        }
+
+        single.shutdown();
+        Files.delete(csv);
+        Files.delete(binary);
+        Files.delete(directory);
+    }
+
+    //Loads into a fresh store, as the coordinator does
+    private static AccountLoader.Result load(Path file, ForkJoinPool pool) throws IOException {
+        AccountStore store = new AccountStore();
+        AccountVersions versions = new AccountVersions(store);
+
+        return AccountLoader.load(file, new AccountLoader.Sink() {
+            public void expect(int count){
+                store.ensureCapacity(count);
+            }
+
+            public void accept(String[] names, long[] cents, int count){
+                versions.putAll(names, cents, count);
+            }
+        }, pool);
+    }
+}
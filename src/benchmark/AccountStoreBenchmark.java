@@ -0,0 +1,100 @@
+package twophasecommit.benchmark;
+
+import twophasecommit.Account;
+import twophasecommit.AccountStore;
+
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Compares the off-heap AccountStore with a ConcurrentHashMap of Accounts
+ *
+ * Reports the memory used per account, and the time and heap
+ * allocated per lookup and deposit
+ *
+ * Usage: AccountStoreBenchmark [accounts] [operations]
+ */
+class AccountStoreBenchmark {
+    public static void main(String[] args){
+        int accounts = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        int operations = args.length > 1 ? Integer.parseInt(args[1]) : 10000000;
+
+        //Names are created up front in random order, so only the store is measured
+        String[] names = new String[accounts];
+        for(int i = 0; i < accounts; i++)
+            names[i] = "ACCOUNT" + i;
+
+        Random random = new Random(1);
+        for(int i = accounts - 1; i > 0; i--){
+            int j = random.nextInt(i + 1);
+            String name = names[i];
+            names[i] = names[j];
+            names[j] = name;
+        }
+
+        //Lookups use copies of the names, as names arriving in messages are new strings
+        String[] lookups = new String[accounts];
+        for(int i = 0; i < accounts; i++)
+            lookups[i] = new String(names[(int) ((i * 7919L) % accounts)]);
+
+        System.out.println("ACCOUNTS: " + accounts + ", OPERATIONS: " + operations + "\n");
+        System.out.println("STORE              HEAP B/ACC    OFF-HEAP B/ACC    DEPOSIT (NS)    ALLOCATED B/OP");
+
+        map(names, lookups, operations);
+        store(names, lookups, operations);
+    }
+
+    private static void map(String[] names, String[] lookups, int operations){
+        long heap = heap();
+
+        ConcurrentHashMap<String, Account> map = new ConcurrentHashMap<>();
+        for(String name : names)
+            map.put(name, new Account(name, 100));
+
+        double perAccount = (double) (heap() - heap) / names.length;
+
+        long allocated = allocated();
+        long start = System.nanoTime();
+        for(int i = 0; i < operations; i++){
+            Account account = map.get(lookups[i % lookups.length]);
+            synchronized(account) {
+                account.deposit(1.25);
+            }
+        }
+        double time = (double) (System.nanoTime() - start) / operations;
+
+        System.out.printf("%-19s%-14.1f%-18.1f%-16.1f%.2f%n", "HASHMAP", perAccount, 0.0, time, (double) (allocated() - allocated) / operations);
+    }
+
+    private static void store(String[] names, String[] lookups, int operations){
+        long heap = heap();
+
+        AccountStore store = new AccountStore(names.length);
+        for(String name : names)
+            store.getOrCreate(name, 100);
+
+        double perAccount = (double) (heap() - heap) / names.length;
+        double offHeap = (double) store.getFootprint() / names.length;
+
+        long cents = AccountStore.toCents(1.25);
+        long allocated = allocated();
+        long start = System.nanoTime();
+        for(int i = 0; i < operations; i++)
+            store.add(store.slot(lookups[i % lookups.length]), cents);
+        double time = (double) (System.nanoTime() - start) / operations;
+
+        System.out.printf("%-19s%-14.1f%-18.1f%-16.1f%.2f%n", "ACCOUNT STORE", Math.max(0, perAccount), offHeap, time, (double) (allocated() - allocated) / operations);
+    }
+
+    private static long heap(){
+        for(int i = 0; i < 3; i++)
+            System.gc();
+        return Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory();
+    }
+
+    //Bytes allocated on the heap by this thread so far
+    private static long allocated(){
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean()).getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+}
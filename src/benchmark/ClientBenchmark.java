@@ -0,0 +1,176 @@
+package twophasecommit.benchmark;
+
+import twophasecommit.MessageCodec;
+import twophasecommit.SubTransaction;
+import twophasecommit.TransactionClient;
+import twophasecommit.constants.Outcome;
+import twophasecommit.constants.Vote;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+/**
+ * Compares submitting transactions one at a time with keeping many
+ * of them in flight, over one client connection
+ *
+ * Runs a coordinator in its own process, with two participants that vote
+ * to commit each sub-transaction as soon as it arrives. A client submits
+ * the transactions through TransactionClient, waiting for each outcome
+ * before the next submission, then with up to a window of submissions
+ * waiting at once. Reports the throughput, and the time from submission
+ * to outcome
+ *
+ * The log delay is passed to the coordinator as -Dlog.flushDelay, so
+ * a forced write waits that long for its group, like a slower disk
+ *
+ * Usage: ClientBenchmark [transactions] [window] [log delay (ms)] [coordinator classpath]
+ */
+class ClientBenchmark {
+    private final static int PORT = 1250;
+    private final static int ACCOUNTS = 1000;
+
+    //A participant that votes to commit every sub-transaction as soon as it arrives
+    private static class Participant extends Thread {
+        private final Socket socket = new Socket();
+
+        private Participant() throws IOException {
+            socket.connect(new InetSocketAddress("localhost", PORT));
+            socket.setTcpNoDelay(true);
+            setDaemon(true);
+
+            ByteBuffer frame = new MessageCodec().encodeState(twophasecommit.constants.State.INITIALIZED, socket.getLocalPort(), 0, 0);
+            socket.getOutputStream().write(frame.array(), 0, frame.limit());
+        }
+
+        public void run(){
+            MessageCodec decoder = new MessageCodec();
+            MessageCodec encoder = new MessageCodec();
+            try {
+                InputStream input = socket.getInputStream();
+                OutputStream output = socket.getOutputStream();
+
+                while(true){
+                    if(decoder.read(input) != MessageCodec.Type.SUB_TRANSACTION) continue;
+
+                    SubTransaction subTransaction = (SubTransaction) decoder.getMessage();
+                    ByteBuffer frame = encoder.encodeVote(Vote.COMMIT, socket.getLocalPort(), subTransaction.getTransactionId(), subTransaction.getSubTransactionId());
+                    output.write(frame.array(), 0, frame.limit());
+                }
+            } catch (IOException e){
+                //The coordinator is gone
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int transactions = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+        int window = args.length > 1 ? Integer.parseInt(args[1]) : 256;
+        long delay = args.length > 2 ? Long.parseLong(args[2]) : 0;
+        String classpath = args.length > 3 ? args[3] : System.getProperty("java.class.path");
+
+        Path directory = Files.createTempDirectory("client");
+        String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+        Process coordinator = new ProcessBuilder(java, "-Dlog.flushDelay=" + delay, "-cp", classpath, "twophasecommit.coordinator.Main",
+                "--protocol", "presumed-abort", "--execution", "platform")
+                .directory(directory.toFile())
+                .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                .redirectError(ProcessBuilder.Redirect.DISCARD)
+                .start();
+
+        Participant[] participants = new Participant[2];
+        try {
+            awaitPort(PORT);
+            for(int i = 0; i < participants.length; i++){
+                participants[i] = new Participant();
+                participants[i].start();
+            }
+
+            //Gives the coordinator time to place the accounts on the participants
+            Thread.sleep(1000);
+
+            PrintWriter writer = new PrintWriter(coordinator.getOutputStream());
+            for(int i = 0; i < ACCOUNTS; i++)
+                writer.println("ACCOUNT A" + i + " 1000000");
+            writer.flush();
+            Thread.sleep(1000);
+
+            System.out.println("TRANSACTIONS: " + transactions + ", LOG DELAY: " + delay + " MS, JAVA " + System.getProperty("java.version") + ", "
+                    + Runtime.getRuntime().availableProcessors() + " CPUS\n");
+            System.out.println("WINDOW    COMMITTED    TX/S       MEAN (MS)    P99 (MS)");
+
+            awaitPort(TransactionClient.PORT);
+            try(TransactionClient client = new TransactionClient("localhost", TransactionClient.PORT)) {
+                //Warms up the coordinator
+                run(client, Math.min(1000, transactions), window, false);
+
+                run(client, transactions, 1, true);
+                run(client, transactions, window, true);
+            }
+        } finally {
+            coordinator.destroyForcibly().waitFor();
+            for(Participant participant : participants)
+                if(participant != null) participant.socket.close();
+
+            try(Stream<Path> files = Files.walk(directory)) {
+                files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+            }
+        }
+    }
+
+    //Submits the transactions with up to a window of them waiting for their outcome
+    private static void run(TransactionClient client, int transactions, int window, boolean print) throws Exception {
+        Semaphore permits = new Semaphore(window);
+        AtomicInteger committed = new AtomicInteger();
+        long[] latencies = new long[transactions];
+
+        long start = System.nanoTime();
+        for(int i = 0; i < transactions; i++){
+            permits.acquire();
+
+            int index = i;
+            long submitted = System.nanoTime();
+            CompletableFuture<Outcome> outcome = client.submit("A" + (i % ACCOUNTS), "A" + ((i + 1) % ACCOUNTS), 1);
+            outcome.whenComplete((result, e) -> {
+                latencies[index] = System.nanoTime() - submitted;
+                if(result == Outcome.COMMITTED) committed.incrementAndGet();
+                permits.release();
+            });
+        }
+        if(!permits.tryAcquire(window, 60, TimeUnit.SECONDS)) throw new IllegalStateException("OUTCOMES DID NOT ARRIVE");
+        long time = System.nanoTime() - start;
+
+        if(!print) return;
+        Arrays.sort(latencies);
+        System.out.printf("%-10d%-13d%-11.0f%-13.2f%.2f%n", window, committed.get(), transactions / (time / 1e9),
+                Arrays.stream(latencies).average().orElse(0) / 1e6, latencies[(int) (transactions * 0.99)] / 1e6);
+    }
+
+    //Waits until the coordinator accepts connections on a port
+    private static void awaitPort(int port) throws InterruptedException {
+        for(int attempt = 0; attempt < 100; attempt++){
+            try {
+                new Socket("localhost", port).close();
+                return;
+            } catch (IOException e){
+                Thread.sleep(100);
+            }
+        }
+        throw new IllegalStateException("COORDINATOR DID NOT START");
+    }
+}
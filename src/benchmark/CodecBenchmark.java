@@ -0,0 +1,278 @@
+package twophasecommit.benchmark;
+
+import twophasecommit.Account;
+import twophasecommit.Decision;
+import twophasecommit.MessageCodec;
+import twophasecommit.SubTransaction;
+import twophasecommit.constants.State;
+import twophasecommit.constants.Vote;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Compares MessageCodec with Java serialization, the way the coordinator
+ * used it: one ObjectOutputStream per participant for its whole life
+ *
+ * The messages are no longer serializable, so serialization is measured
+ * on copies with the same fields as the messages had when they were sent
+ * that way
+ *
+ * Each transaction sends two sub-transactions and two decisions. Reports
+ * the bytes per message, the time and heap allocated to encode and to
+ * decode one, and the heap the sending side still holds per message sent
+ *
+ * Also compares how the coordinator reads votes and states, as the text
+ * lines participants used to send and as frames
+ *
+ * Usage: CodecBenchmark [transactions]
+ */
+class CodecBenchmark {
+
+    //Counts the bytes written, like a socket that is always ready
+    private static class Sink extends OutputStream {
+        private long count = 0;
+
+        public void write(int b){
+            count++;
+        }
+
+        public void write(byte[] bytes, int offset, int length){
+            count += length;
+        }
+    }
+
+    //The messages as they were serialized, a sub-transaction with its account, and a decision
+    private static class SerialAccount implements Serializable {
+        private final static long serialVersionUID = 1L;
+
+        private final String name;
+        private final double balance;
+
+        private SerialAccount(Account account){
+            this.name = account.getName();
+            this.balance = account.getBalance();
+        }
+    }
+
+    private static class SerialSubTransaction implements Serializable {
+        private final static long serialVersionUID = 1L;
+
+        private final int participantId;
+        private final int transactionId;
+        private final int id;
+        private final SerialAccount account;
+        private final double amount;
+
+        private SerialSubTransaction(SubTransaction subTransaction){
+            this.participantId = subTransaction.getParticipantId();
+            this.transactionId = subTransaction.getTransactionId();
+            this.id = subTransaction.getSubTransactionId();
+            this.account = new SerialAccount(subTransaction.getAccount());
+            this.amount = subTransaction.getAmount();
+        }
+    }
+
+    private static class SerialDecision implements Serializable {
+        private final static long serialVersionUID = 1L;
+
+        private final int transactionId;
+        private final int subTransactionId;
+        private final Vote vote;
+
+        private SerialDecision(Decision decision){
+            this.transactionId = decision.getTransactionId();
+            this.subTransactionId = decision.getSubTransactionId();
+            this.vote = decision.getVote();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int transactions = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+
+        Object[] messages = new Object[transactions * 4];
+        for(int t = 0; t < transactions; t++){
+            SubTransaction from = new SubTransaction(t, 1, new Account("ACCOUNT" + (t % 1000), 1000), -10.25);
+            SubTransaction to = new SubTransaction(t, 2, new Account("ACCOUNT" + ((t + 1) % 1000), 1000), 10.25);
+            from.setParticipantId(50000 + t % 3);
+            to.setParticipantId(50000 + (t + 1) % 3);
+
+            Vote vote = t % 10 == 0 ? Vote.ABORT : Vote.COMMIT;
+            messages[t * 4] = from;
+            messages[t * 4 + 1] = to;
+            messages[t * 4 + 2] = new Decision(t, 1, vote);
+            messages[t * 4 + 3] = new Decision(t, 2, vote);
+        }
+
+        Object[] serializable = new Object[messages.length];
+        for(int i = 0; i < messages.length; i++)
+            serializable[i] = messages[i] instanceof Decision ? new SerialDecision((Decision) messages[i])
+                    : new SerialSubTransaction((SubTransaction) messages[i]);
+
+        System.out.println("MESSAGES: " + messages.length + "\n");
+        System.out.println("CODEC           BYTES/MSG    ENCODE (NS)    ENCODE B/MSG    DECODE (NS)    DECODE B/MSG    RETAINED B/MSG");
+
+        //The first rounds warm up
+        for(int round = 0; round < 3; round++){
+            serialization(serializable, round == 2);
+            codec(messages, round == 2);
+        }
+
+        System.out.println("\nVOTE PATH       BYTES/MSG    DECODE (NS)    DECODE B/MSG");
+        for(int round = 0; round < 3; round++){
+            lines(transactions * 4, round == 2);
+            frames(transactions * 4, round == 2);
+        }
+    }
+
+    //Votes and states as 'VOTE:vote:participantId:transactionId:subTransactionId' lines
+    private static void lines(int count, boolean print) throws IOException {
+        StringBuilder text = new StringBuilder();
+        for(int i = 0; i < count; i++)
+            text.append(i % 2 == 0 ? "VOTE:COMMIT:" : "STATE:WAITING:").append(50000 + i % 3).append(':').append(i / 2).append(":1\n");
+        byte[] bytes = text.toString().getBytes(StandardCharsets.UTF_8);
+
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(bytes)));
+        long sum = 0;
+        long allocated = allocated();
+        long start = System.nanoTime();
+        for(String line = reader.readLine(); line != null; line = reader.readLine()){
+            String[] message = line.split(":");
+            if(message[0].equals("VOTE"))
+                sum += Vote.valueOf(message[1]).ordinal() + Integer.parseInt(message[2]) + Integer.parseInt(message[3]) + Integer.parseInt(message[4]);
+            else
+                sum += State.valueOf(message[1]).ordinal() + Integer.parseInt(message[2]) + Integer.parseInt(message[3]) + Integer.parseInt(message[4]);
+        }
+        long time = System.nanoTime() - start;
+        long decodeAllocated = allocated() - allocated;
+
+        if(print && sum != 0)
+            System.out.printf("%-16s%-13.1f%-15.1f%.1f%n", "TEXT LINES", (double) bytes.length / count,
+                    (double) time / count, (double) decodeAllocated / count);
+    }
+
+    private static void frames(int count, boolean print) throws IOException {
+        MessageCodec codec = new MessageCodec();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        for(int i = 0; i < count; i++){
+            ByteBuffer frame = i % 2 == 0 ? codec.encodeVote(Vote.COMMIT, 50000 + i % 3, i / 2, 1)
+                    : codec.encodeState(State.WAITING, 50000 + i % 3, i / 2, 1);
+            bytes.write(frame.array(), 0, frame.limit());
+        }
+
+        ByteBuffer input = ByteBuffer.wrap(bytes.toByteArray());
+        long sum = 0;
+        long allocated = allocated();
+        long start = System.nanoTime();
+        for(MessageCodec.Type type = codec.decode(input); type != null; type = codec.decode(input)){
+            if(type == MessageCodec.Type.VOTE)
+                sum += codec.getVote().ordinal() + codec.getParticipantId() + codec.getTransactionId() + codec.getSubTransactionId();
+            else
+                sum += codec.getState().ordinal() + codec.getParticipantId() + codec.getTransactionId() + codec.getSubTransactionId();
+        }
+        long time = System.nanoTime() - start;
+        long decodeAllocated = allocated() - allocated;
+
+        if(print && sum != 0)
+            System.out.printf("%-16s%-13.1f%-15.1f%.1f%n", "FRAMES", (double) bytes.size() / count,
+                    (double) time / count, (double) decodeAllocated / count);
+    }
+
+    private static void serialization(Object[] messages, boolean print) throws Exception {
+        long heap = heap();
+        Sink sink = new Sink();
+        ObjectOutputStream output = new ObjectOutputStream(sink);
+
+        long allocated = allocated();
+        long start = System.nanoTime();
+        for(Object message : messages)
+            output.writeObject(message);
+        output.flush();
+        long encodeTime = System.nanoTime() - start;
+        long encodeAllocated = allocated() - allocated;
+
+        //What the open stream keeps alive, its table of every object written
+        long retained = heap() - heap;
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream copy = new ObjectOutputStream(bytes);
+        for(Object message : messages)
+            copy.writeObject(message);
+        copy.flush();
+
+        ObjectInputStream input = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        allocated = allocated();
+        start = System.nanoTime();
+        for(int i = 0; i < messages.length; i++)
+            input.readObject();
+        long decodeTime = System.nanoTime() - start;
+        long decodeAllocated = allocated() - allocated;
+
+        if(print)
+            print("SERIALIZATION", sink.count, encodeTime, encodeAllocated, decodeTime, decodeAllocated, retained, messages.length);
+
+        output.close();
+    }
+
+    private static void codec(Object[] messages, boolean print) throws IOException {
+        long heap = heap();
+        Sink sink = new Sink();
+        MessageCodec codec = new MessageCodec();
+
+        long allocated = allocated();
+        long start = System.nanoTime();
+        for(Object message : messages){
+            ByteBuffer buffer = codec.encode(message);
+            sink.write(buffer.array(), 0, buffer.limit());
+        }
+        long encodeTime = System.nanoTime() - start;
+        long encodeAllocated = allocated() - allocated;
+        long retained = heap() - heap;
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        for(Object message : messages){
+            ByteBuffer buffer = codec.encode(message);
+            bytes.write(buffer.array(), 0, buffer.limit());
+        }
+
+        ByteBuffer input = ByteBuffer.wrap(bytes.toByteArray());
+        MessageCodec decoder = new MessageCodec();
+        allocated = allocated();
+        start = System.nanoTime();
+        for(int i = 0; i < messages.length; i++)
+            decoder.decode(input);
+        long decodeTime = System.nanoTime() - start;
+        long decodeAllocated = allocated() - allocated;
+
+        if(print)
+            print("MESSAGE CODEC", sink.count, encodeTime, encodeAllocated, decodeTime, decodeAllocated, retained, messages.length);
+    }
+
+    private static void print(String name, long bytes, long encodeTime, long encodeAllocated,
+                              long decodeTime, long decodeAllocated, long retained, int messages){
+        System.out.printf("%-16s%-13.1f%-15.1f%-16.1f%-15.1f%-16.1f%.1f%n", name, (double) bytes / messages,
+                (double) encodeTime / messages, (double) encodeAllocated / messages, (double) decodeTime / messages,
+                (double) decodeAllocated / messages, Math.max(0, (double) retained / messages));
+    }
+
+    private static long heap(){
+        for(int i = 0; i < 3; i++)
+            System.gc();
+        return Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory();
+    }
+
+    //Bytes allocated on the heap by this thread so far
+    private static long allocated(){
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean()).getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+}
@@ -0,0 +1,196 @@
+package twophasecommit.benchmark;
+
+import twophasecommit.MessageCodec;
+import twophasecommit.SubTransaction;
+import twophasecommit.constants.Vote;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+/**
+ * Compares the threads the coordinator runs votes on, with every
+ * transaction in flight at once
+ *
+ * Runs a coordinator in its own process for each execution mode, with
+ * two participants that hold back their votes until every sub-transaction
+ * has arrived, then vote to commit all of them at once. Each last vote
+ * makes the coordinator force a commit record to its log. Reports the
+ * time until every decision has arrived, and the number of threads in
+ * the coordinator process at most and once the decisions are out, read
+ * from /proc
+ *
+ * The log delay is passed to the coordinator as -Dlog.flushDelay, so
+ * a forced write waits that long for its group, like a slower disk
+ *
+ * Virtual threads need the benchmark to run on Java 21 or later, the
+ * coordinator runs on the same Java
+ *
+ * Usage: ExecutionBenchmark [transactions] [log delay (ms)] [coordinator classpath]
+ */
+class ExecutionBenchmark {
+    private final static int PORT = 1250;
+    private final static int ACCOUNTS = 1000;
+
+    //A participant that votes to commit every sub-transaction it has been sent when asked to
+    private static class Participant extends Thread {
+        private final Socket socket = new Socket();
+        private final MessageCodec codec = new MessageCodec();
+        private final ArrayList<SubTransaction> received = new ArrayList<>();
+        private final AtomicInteger subTransactions;
+        private final AtomicInteger decisions;
+
+        private Participant(AtomicInteger subTransactions, AtomicInteger decisions) throws IOException {
+            this.subTransactions = subTransactions;
+            this.decisions = decisions;
+            socket.connect(new InetSocketAddress("localhost", PORT));
+            setDaemon(true);
+
+            ByteBuffer frame = codec.encodeState(twophasecommit.constants.State.INITIALIZED, socket.getLocalPort(), 0, 0);
+            socket.getOutputStream().write(frame.array(), 0, frame.limit());
+        }
+
+        public void run(){
+            MessageCodec decoder = new MessageCodec();
+            try {
+                InputStream input = socket.getInputStream();
+
+                while(true){
+                    MessageCodec.Type type = decoder.read(input);
+
+                    if(type == MessageCodec.Type.SUB_TRANSACTION) {
+                        synchronized(received) {
+                            received.add((SubTransaction) decoder.getMessage());
+                        }
+                        subTransactions.incrementAndGet();
+                    }
+                    else if(type == MessageCodec.Type.DECISION)
+                        decisions.incrementAndGet();
+                }
+            } catch (IOException e){
+                //The coordinator is gone
+            }
+        }
+
+        //Sends every vote in one write
+        private void vote() throws IOException {
+            ByteArrayOutputStream votes = new ByteArrayOutputStream();
+            synchronized(received) {
+                for(SubTransaction subTransaction : received){
+                    ByteBuffer frame = codec.encodeVote(Vote.COMMIT, socket.getLocalPort(), subTransaction.getTransactionId(), subTransaction.getSubTransactionId());
+                    votes.write(frame.array(), 0, frame.limit());
+                }
+            }
+            socket.getOutputStream().write(votes.toByteArray());
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int transactions = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+        long delay = args.length > 1 ? Long.parseLong(args[1]) : 0;
+        String classpath = args.length > 2 ? args[2] : System.getProperty("java.class.path");
+
+        System.out.println("TRANSACTIONS: " + transactions + ", LOG DELAY: " + delay + " MS, JAVA " + System.getProperty("java.version") + ", "
+                + Runtime.getRuntime().availableProcessors() + " CPUS\n");
+        System.out.println("EXECUTION    DECIDED    TIME (MS)    PEAK THREADS    THREADS AFTER");
+
+        for(String execution : new String[]{"inline", "platform", "virtual"})
+            run(transactions, delay, classpath, execution);
+    }
+
+    private static void run(int transactions, long delay, String classpath, String execution) throws Exception {
+        Path directory = Files.createTempDirectory("execution");
+        String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+        Process coordinator = new ProcessBuilder(java, "-Dlog.flushDelay=" + delay, "-cp", classpath, "twophasecommit.coordinator.Main",
+                "--protocol", "presumed-abort", "--execution", execution)
+                .directory(directory.toFile())
+                .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                .redirectError(ProcessBuilder.Redirect.DISCARD)
+                .start();
+
+        AtomicInteger subTransactions = new AtomicInteger();
+        AtomicInteger decisions = new AtomicInteger();
+        Participant[] participants = new Participant[2];
+        try {
+            awaitPort();
+            for(int i = 0; i < participants.length; i++){
+                participants[i] = new Participant(subTransactions, decisions);
+                participants[i].start();
+            }
+
+            //Gives the coordinator time to place the accounts on the participants
+            Thread.sleep(1000);
+
+            PrintWriter writer = new PrintWriter(coordinator.getOutputStream());
+            for(int i = 0; i < ACCOUNTS; i++)
+                writer.println("ACCOUNT A" + i + " 1000000");
+            for(int i = 0; i < transactions; i++)
+                writer.println("TRANSACTION A" + (i % ACCOUNTS) + " A" + ((i + 1) % ACCOUNTS) + " 1");
+            writer.flush();
+
+            //Every transaction is in flight once both its sub-transactions have arrived
+            long deadline = System.nanoTime() + 10000000000L;
+            while(subTransactions.get() < 2 * transactions && System.nanoTime() < deadline)
+                Thread.sleep(1);
+
+            int peak = threads(coordinator);
+            long start = System.nanoTime();
+            for(Participant participant : participants)
+                participant.vote();
+
+            //Samples the threads until every decision has arrived, or the coordinator times out
+            deadline = start + 20000000000L;
+            while(decisions.get() < 2 * transactions && System.nanoTime() < deadline){
+                peak = Math.max(peak, threads(coordinator));
+                Thread.sleep(1);
+            }
+            long time = System.nanoTime() - start;
+
+            System.out.printf("%-13s%-11d%-13.0f%-16d%d%n", execution.toUpperCase(), decisions.get() / 2, time / 1e6, peak, threads(coordinator));
+        } finally {
+            coordinator.destroyForcibly().waitFor();
+            for(Participant participant : participants)
+                if(participant != null) participant.socket.close();
+
+            try(Stream<Path> files = Files.walk(directory)) {
+                files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+            }
+        }
+    }
+
+    //Number of threads in a process, or -1 without /proc
+    private static int threads(Process process){
+        try {
+            for(String line : Files.readAllLines(Paths.get("/proc/" + process.pid() + "/status")))
+                if(line.startsWith("Threads:")) return Integer.parseInt(line.substring(8).trim());
+        } catch (IOException | NumberFormatException e){
+            //Not Linux
+        }
+        return -1;
+    }
+
+    //Waits until the coordinator accepts connections
+    private static void awaitPort() throws InterruptedException {
+        for(int attempt = 0; attempt < 100; attempt++){
+            try {
+                new Socket("localhost", PORT).close();
+                return;
+            } catch (IOException e){
+                Thread.sleep(100);
+            }
+        }
+        throw new IllegalStateException("COORDINATOR DID NOT START");
+    }
+}
@@ -0,0 +1,240 @@
+package twophasecommit.benchmark;
+
+import twophasecommit.MessageCodec;
+import twophasecommit.SubTransaction;
+import twophasecommit.constants.Vote;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.Stream;
+
+/**
+ * Measures how a participant that stops reading affects the
+ * transactions that do not involve it
+ *
+ * Runs a coordinator in its own process and connects two participants
+ * that vote to commit at once, and, in the second run, one that never
+ * reads its socket or votes. Transactions are typed into the coordinator
+ * at a fixed rate, with the transaction number as the amount. Reports the
+ * latency from typing a transaction to its decision for the transactions
+ * that only involve the two working participants, after the first second
+ * (at most a tenth of the transactions) while the coordinator warms up
+ *
+ * Usage: FanOutBenchmark [transactions] [transactions per second] [coordinator classpath]
+ */
+class FanOutBenchmark {
+    private final static int PORT = 1250;
+    private final static int ACCOUNTS = 30;
+
+    //Long names make the messages to the stuck participant fill its socket sooner
+    private final static String PADDING = "X".repeat(1000);
+
+    //A participant that votes to commit everything, and records when decisions arrive
+    private static class Participant extends Thread {
+        private final Socket socket = new Socket();
+        private final boolean reading;
+        private final Run run;
+
+        private Participant(Run run, boolean reading) throws IOException {
+            this.run = run;
+            this.reading = reading;
+
+            //A small buffer fills up sooner for the participant that does not read
+            if(!reading) socket.setReceiveBufferSize(4096);
+            socket.connect(new InetSocketAddress("localhost", PORT));
+            setDaemon(true);
+
+            MessageCodec codec = new MessageCodec();
+            ByteBuffer frame = codec.encodeState(twophasecommit.constants.State.INITIALIZED, socket.getLocalPort(), 0, 0);
+            socket.getOutputStream().write(frame.array(), 0, frame.limit());
+        }
+
+        public void run(){
+            if(!reading) return;
+
+            MessageCodec codec = new MessageCodec();
+            try {
+                InputStream input = socket.getInputStream();
+                OutputStream output = socket.getOutputStream();
+
+                while(true){
+                    MessageCodec.Type type = codec.read(input);
+
+                    if(type == MessageCodec.Type.SUB_TRANSACTION) {
+                        SubTransaction subTransaction = (SubTransaction) codec.getMessage();
+                        int number = (int) Math.abs(subTransaction.getAmount());
+                        run.numbers.put(subTransaction.getTransactionId(), number);
+                        run.owned.add(subTransaction.getAccount().getName());
+
+                        ByteBuffer frame = codec.encodeVote(Vote.COMMIT, socket.getLocalPort(), subTransaction.getTransactionId(), subTransaction.getSubTransactionId());
+                        output.write(frame.array(), 0, frame.limit());
+                    }
+                    else if(type == MessageCodec.Type.DECISION) {
+                        Integer number = run.numbers.get(codec.getTransactionId());
+                        if(number != null) run.decided.compareAndSet(number, 0, System.nanoTime());
+                    }
+                }
+            } catch (IOException e){
+                //The coordinator is gone
+            }
+        }
+    }
+
+    //What one run records, indexed by transaction number
+    private static class Run {
+        private final long[] typed;
+        private final int[] from;
+        private final int[] to;
+        private final AtomicLongArray decided;
+
+        //Transaction numbers by transaction id, and the accounts the working participants own
+        private final ConcurrentHashMap<Integer, Integer> numbers = new ConcurrentHashMap<>();
+        private final Set<String> owned = ConcurrentHashMap.newKeySet();
+
+        private Run(int transactions){
+            typed = new long[transactions + 1];
+            from = new int[transactions + 1];
+            to = new int[transactions + 1];
+            decided = new AtomicLongArray(transactions + 1);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int transactions = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+        int rate = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+        String classpath = args.length > 2 ? args[2] : System.getProperty("java.class.path");
+
+        System.out.println("TRANSACTIONS: " + transactions + ", RATE: " + rate + "/S\n");
+        System.out.println("STUCK PARTICIPANT    NOT INVOLVING IT    DECIDED    P50 (MS)    P99 (MS)    MAX (MS)");
+
+        run(transactions, rate, classpath, false);
+        run(transactions, rate, classpath, true);
+    }
+
+    private static void run(int transactions, int rate, String classpath, boolean stuck) throws Exception {
+        Path directory = Files.createTempDirectory("fanout");
+        Process coordinator = new ProcessBuilder("java", "-cp", classpath, "twophasecommit.coordinator.Main")
+                .directory(directory.toFile())
+                .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                .redirectError(ProcessBuilder.Redirect.DISCARD)
+                .start();
+
+        Run run = new Run(transactions);
+        Participant[] participants = new Participant[stuck ? 3 : 2];
+        try {
+            awaitPort();
+            for(int i = 0; i < participants.length; i++){
+                participants[i] = new Participant(run, i < 2);
+                participants[i].start();
+            }
+
+            //Gives the coordinator time to place the accounts on the participants
+            Thread.sleep(1000);
+
+            /*
+             * Commands are typed by their own thread, so a coordinator that stops
+             * reading them shows up as transactions that are never decided
+             */
+            LinkedBlockingQueue<String> commands = new LinkedBlockingQueue<>();
+            PrintWriter writer = new PrintWriter(coordinator.getOutputStream(), true);
+            Thread typist = new Thread(() -> {
+                try {
+                    while(true)
+                        writer.println(commands.take());
+                } catch (InterruptedException e){
+                    //The run is over
+                }
+            });
+            typist.setDaemon(true);
+            typist.start();
+
+            for(int i = 0; i < ACCOUNTS; i++)
+                commands.add("ACCOUNT " + name(i) + " 1000000000");
+
+            Random random = new Random(1);
+            long start = System.nanoTime();
+            for(int number = 1; number <= transactions; number++){
+                long due = start + (number - 1) * 1000000000L / rate;
+                for(long wait = due - System.nanoTime(); wait > 0; wait = due - System.nanoTime())
+                    LockSupport.parkNanos(wait);
+
+                int a = random.nextInt(ACCOUNTS);
+                int b = (a + 1 + random.nextInt(ACCOUNTS - 1)) % ACCOUNTS;
+                run.from[number] = a;
+                run.to[number] = b;
+                run.typed[number] = System.nanoTime();
+                commands.add("TRANSACTION " + name(a) + " " + name(b) + " " + number);
+            }
+
+            //Waits for the last decisions
+            Thread.sleep(3000);
+            typist.interrupt();
+            report(run, transactions, Math.min(rate, transactions / 10), stuck);
+        } finally {
+            coordinator.destroyForcibly().waitFor();
+            for(Participant participant : participants)
+                if(participant != null) participant.socket.close();
+
+            try(Stream<Path> files = Files.walk(directory)) {
+                files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+            }
+        }
+    }
+
+    private static void report(Run run, int transactions, int warmup, boolean stuck){
+        long[] latencies = new long[transactions];
+        int involved = 0;
+        int decided = 0;
+
+        //Both accounts are owned by the working participants, so the transaction does not involve the stuck one
+        for(int number = warmup + 1; number <= transactions; number++){
+            if(!run.owned.contains(name(run.from[number])) || !run.owned.contains(name(run.to[number]))) continue;
+
+            involved++;
+            if(run.decided.get(number) != 0)
+                latencies[decided++] = run.decided.get(number) - run.typed[number];
+        }
+
+        Arrays.sort(latencies, 0, decided);
+        System.out.printf("%-21s%-20d%-11d%-12.2f%-12.2f%.2f%n", stuck ? "YES" : "NO", involved, decided,
+                percentile(latencies, decided, 0.5), percentile(latencies, decided, 0.99), percentile(latencies, decided, 1.0));
+    }
+
+    private static double percentile(long[] sorted, int count, double percentile){
+        if(count == 0) return Double.NaN;
+        return sorted[(int) Math.min(count - 1, Math.ceil(percentile * count) - 1)] / 1e6;
+    }
+
+    private static String name(int account){
+        return "ACCOUNT" + account + PADDING;
+    }
+
+    //Waits until the coordinator accepts connections
+    private static void awaitPort() throws InterruptedException {
+        for(int attempt = 0; attempt < 100; attempt++){
+            try {
+                new Socket("localhost", PORT).close();
+                return;
+            } catch (IOException e){
+                Thread.sleep(100);
+            }
+        }
+        throw new IllegalStateException("COORDINATOR DID NOT START");
+    }
+}
@@ -0,0 +1,74 @@
+package twophasecommit.benchmark;
+
+import twophasecommit.LogReader;
+import twophasecommit.LogRecord;
+import twophasecommit.LogWriter;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+/**
+ * Measures log throughput for different group commit settings,
+ * and how fast a written log can be read back
+ *
+ * Usage: LogBenchmark [threads] [records per thread]
+ */
+class LogBenchmark {
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+        int records = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+
+        int[] flushSizes = {1, 16, 128};
+        long[] flushDelays = {0, 1, 5};
+
+        System.out.println("THREADS: " + threads + ", RECORDS PER THREAD: " + records + "\n");
+        System.out.println("FLUSH SIZE    FLUSH DELAY (MS)    RECORDS/S");
+
+        File directory = null;
+        for(int flushSize : flushSizes)
+            for(long flushDelay : flushDelays) {
+                directory = Files.createTempDirectory("log-benchmark").toFile();
+                System.out.printf("%-14d%-20d%.0f%n", flushSize, flushDelay, run(directory, threads, records, flushSize, flushDelay));
+            }
+
+        //Reads the last log back
+        long[] count = {0};
+        long start = System.nanoTime();
+        LogReader.forEach(directory, record -> count[0]++);
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        System.out.printf("%nSCAN: %d RECORDS, %.0f RECORDS/S%n", count[0], count[0] / seconds);
+    }
+
+    /**
+     * Writes records from several threads to a fresh log
+     *
+     * @param directory  the log directory
+     * @param threads    the number of writing threads
+     * @param records    the number of records per thread
+     * @param flushSize  the max number of records in a group
+     * @param flushDelay the max time (ms) to wait for a group to fill up
+     * @return           the throughput in records per second
+     */
+    private static double run(File directory, int threads, int records, int flushSize, long flushDelay) throws IOException, InterruptedException {
+        LogWriter writer = new LogWriter(directory, 16 * 1024 * 1024, flushSize, flushDelay);
+
+        Thread[] workers = new Thread[threads];
+        for(int i = 0; i < threads; i++){
+            int worker = i;
+            workers[i] = new Thread(() -> {
+                for(int j = 0; j < records; j++)
+                    writer.write(LogRecord.update(j, worker, "A", 100.0, 90.0));
+            });
+        }
+
+        long start = System.nanoTime();
+        for(Thread worker : workers) worker.start();
+        for(Thread worker : workers) worker.join();
+        long elapsed = System.nanoTime() - start;
+
+        writer.interrupt();
+        return (double) threads * records / (elapsed / 1e9);
+    }
+}
@@ -0,0 +1,125 @@
+package twophasecommit.benchmark;
+
+import twophasecommit.LogRecord;
+import twophasecommit.LogWriter;
+import twophasecommit.constants.Protocol;
+import twophasecommit.constants.Vote;
+
+import java.io.File;
+import java.nio.file.Files;
+
+/**
+ * Compares the protocol variants by replaying the log writes
+ * of the coordinator and two participants for each transaction
+ *
+ * Reports log bytes and forced writes per transaction, acknowledgements
+ * per transaction, and latency per commit (coordinator writes plus the
+ * writes of one participant, since participants work in parallel)
+ *
+ * Usage: ProtocolBenchmark [transactions] [abort percentage]
+ */
+class ProtocolBenchmark {
+
+    //Logs and counters for one run
+    private LogWriter coordinator;
+    private LogWriter[] participants;
+    private long forced = 0;
+    private long acknowledgements = 0;
+
+    //Time spent writing by the coordinator and the first participant in the current transaction
+    private long elapsed = 0;
+
+    public static void main(String[] args) throws Exception {
+        int transactions = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        int abortPercentage = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+
+        System.out.println("TRANSACTIONS: " + transactions + ", ABORTS: " + abortPercentage + "%\n");
+        System.out.println("PROTOCOL           BYTES/T    FORCED/T    ACKS/T    COMMIT LATENCY (US)");
+
+        for(Protocol protocol : Protocol.values())
+            new ProtocolBenchmark().run(protocol, transactions, abortPercentage);
+    }
+
+    private void run(Protocol protocol, int transactions, int abortPercentage) throws Exception {
+        coordinator = open();
+        participants = new LogWriter[]{open(), open()};
+
+        long commitTime = 0;
+        long commits = 0;
+
+        for(int t = 1; t <= transactions; t++){
+            Vote decision = t % 100 < abortPercentage ? Vote.ABORT : Vote.COMMIT;
+            elapsed = 0;
+
+            //Prepare phase
+            if(protocol.logsStart())
+                write(coordinator, LogRecord.start(t, 0), true);
+
+            //An abort comes from the first participant voting to abort, the other one has voted to commit
+            for(int p = 0; p < participants.length; p++){
+                write(participants[p], LogRecord.start(t, p + 1), protocol == Protocol.BASIC);
+                write(participants[p], LogRecord.update(t, p + 1, "ACCOUNT" + p, 100, 110), protocol == Protocol.BASIC);
+                if(decision == Vote.COMMIT || p > 0)
+                    write(participants[p], LogRecord.prepared(t, p + 1), true);
+            }
+
+            if(protocol.logsStart())
+                write(coordinator, LogRecord.transfer(t, "ACCOUNT0", "ACCOUNT1", 10), true);
+
+            //Decision phase
+            if(protocol.logsDecision(decision)) {
+                write(coordinator, decision == Vote.COMMIT ? LogRecord.commit(t, 0) : LogRecord.abort(t, 0), true);
+                write(coordinator, LogRecord.end(t, 0), protocol == Protocol.BASIC);
+            }
+
+            boolean presumed = protocol.presumes(decision);
+            for(int p = 0; p < participants.length; p++){
+                write(participants[p], decision == Vote.COMMIT ? LogRecord.commit(t, p + 1) : LogRecord.abort(t, p + 1), protocol.forcesDecision(decision));
+                write(participants[p], LogRecord.end(t, p + 1), protocol == Protocol.BASIC);
+
+                if(!presumed) acknowledgements++;
+            }
+
+            if(decision == Vote.COMMIT) {
+                commitTime += elapsed;
+                commits++;
+            }
+        }
+
+        //Waits for the records that were not forced
+        for(LogWriter writer : new LogWriter[]{coordinator, participants[0], participants[1]})
+            writer.awaitDurable(writer.append(LogRecord.end(0, 0)));
+
+        long bytes = coordinator.getBytesWritten() + participants[0].getBytesWritten() + participants[1].getBytesWritten();
+
+        System.out.printf("%-19s%-11.1f%-12.2f%-10.2f%.0f%n", protocol, (double) bytes / transactions, (double) forced / transactions,
+                (double) acknowledgements / transactions, commitTime / 1000.0 / commits);
+    }
+
+    /**
+     * Writes a record, forced or not, and adds the time it took to
+     * the latency unless it is written by the second participant
+     *
+     * @param writer the log
+     * @param record the record
+     * @param force  wait for the record to be durable?
+     */
+    private void write(LogWriter writer, LogRecord record, boolean force){
+        long start = System.nanoTime();
+
+        if(force) {
+            writer.write(record);
+            forced++;
+        }
+        else
+            writer.append(record);
+
+        if(writer != participants[1])
+            elapsed += System.nanoTime() - start;
+    }
+
+    private static LogWriter open() throws Exception {
+        File directory = Files.createTempDirectory("protocol-benchmark").toFile();
+        return new LogWriter(directory, 16 * 1024 * 1024, 128, 0);
+    }
+}
@@ -0,0 +1,63 @@
+package twophasecommit.benchmark;
+
+import twophasecommit.LogManager;
+import twophasecommit.LogReader;
+import twophasecommit.LogRecord;
+import twophasecommit.LogWriter;
+import twophasecommit.Recovery;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Measures recovery time for a large participant log,
+ * with one thread and with every core
+ *
+ * Usage: RecoveryBenchmark [sub-transactions] [accounts]
+ */
+class RecoveryBenchmark {
+    public static void main(String[] args) throws Exception {
+        int transactions = args.length > 0 ? Integer.parseInt(args[0]) : 500000;
+        int accounts = args.length > 1 ? Integer.parseInt(args[1]) : 10000;
+
+        //Writes the log, every tenth sub-transaction is aborted and every hundredth is left in doubt
+        String filename = "recovery-benchmark-" + System.nanoTime();
+        File directory = LogManager.getDirectory(filename);
+        directory.mkdirs();
+
+        LogWriter writer = new LogWriter(directory, 64 * 1024 * 1024, 1024, 0);
+        long last = 0;
+        for(int i = 1; i <= transactions; i++){
+            writer.append(LogRecord.start(i, 1));
+            writer.append(LogRecord.update(i, 1, "ACCOUNT" + (i % accounts), i - 1, i));
+
+            if(i % 100 == 0) continue;
+            writer.append(i % 10 == 0 ? LogRecord.abort(i, 1) : LogRecord.commit(i, 1));
+            last = writer.append(LogRecord.end(i, 1));
+        }
+        writer.awaitDurable(last);
+
+        long[] records = {0};
+        LogReader.forEach(directory, record -> records[0]++);
+        System.out.println("LOG: " + records[0] + " RECORDS, " + accounts + " ACCOUNTS\n");
+
+        //Recovery writes to the log, so each run gets its own copy
+        int cores = Runtime.getRuntime().availableProcessors();
+        System.out.println("THREADS    RECOVERY (MS)");
+        for(int threads : cores > 1 ? new int[]{1, cores} : new int[]{1}){
+            String copy = filename + "-" + threads;
+            copy(directory, LogManager.getDirectory(copy));
+
+            Recovery recovery = new Recovery(copy, new ForkJoinPool(threads));
+            recovery.run();
+            System.out.printf("%-11d%d%n", threads, recovery.getElapsed());
+        }
+    }
+
+    private static void copy(File from, File to) throws Exception {
+        to.mkdirs();
+        for(File file : from.listFiles())
+            Files.copy(file.toPath(), new File(to, file.getName()).toPath());
+    }
+}
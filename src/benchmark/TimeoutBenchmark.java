@@ -0,0 +1,102 @@
+package twophasecommit.benchmark;
+
+import twophasecommit.TimeoutScheduler;
+import twophasecommit.TimeoutScheduler.Timeout;
+
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the hashed wheel with one java.util.Timer per transaction
+ *
+ * Reports the cost of scheduling and cancelling timeouts, the number
+ * of live threads and the heap used while they are pending, and how
+ * late timeouts fire
+ *
+ * Usage: TimeoutBenchmark [timeouts] [timers]
+ */
+class TimeoutBenchmark {
+    public static void main(String[] args) throws Exception {
+        int timeouts = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        int timers = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+
+        System.out.println("SCHEDULER          PENDING     SCHEDULE (NS)    CANCEL (NS)    THREADS    HEAP (MB)");
+
+        timers(timers);
+        wheel(timeouts);
+        lateness(10000);
+    }
+
+    //Schedules and cancels timeouts on the wheel
+    private static void wheel(int count){
+        TimeoutScheduler scheduler = new TimeoutScheduler(100, 512, 1);
+        Timeout[] timeouts = new Timeout[count];
+        long heap = heap();
+
+        long start = System.nanoTime();
+        for(int i = 0; i < count; i++)
+            timeouts[i] = scheduler.schedule(() -> {}, 60000);
+        double schedule = (double) (System.nanoTime() - start) / count;
+
+        int threads = Thread.activeCount();
+        double used = (heap() - heap) / 1e6;
+
+        start = System.nanoTime();
+        for(Timeout timeout : timeouts)
+            timeout.cancel();
+        double cancel = (double) (System.nanoTime() - start) / count;
+
+        System.out.printf("%-19s%-12d%-17.0f%-15.0f%-11d%.1f%n", "HASHED WHEEL", count, schedule, cancel, threads, used);
+    }
+
+    //Schedules and cancels one java.util.Timer per timeout, the way transactions used to
+    private static void timers(int count){
+        Timer[] timers = new Timer[count];
+        long heap = heap();
+
+        long start = System.nanoTime();
+        for(int i = 0; i < count; i++){
+            timers[i] = new Timer(true);
+            timers[i].schedule(new TimerTask() {
+                @Override
+                public void run() {}
+            }, 60000);
+        }
+        double schedule = (double) (System.nanoTime() - start) / count;
+
+        int threads = Thread.activeCount();
+        double used = (heap() - heap) / 1e6;
+
+        start = System.nanoTime();
+        for(Timer timer : timers)
+            timer.cancel();
+        double cancel = (double) (System.nanoTime() - start) / count;
+
+        System.out.printf("%-19s%-12d%-17.0f%-15.0f%-11d%.1f%n", "TIMER PER TXN", count, schedule, cancel, threads, used);
+    }
+
+    //Measures how late timeouts on the shared wheel fire
+    private static void lateness(int count) throws InterruptedException {
+        CountDownLatch latch = new CountDownLatch(count);
+        long[] late = new long[1];
+
+        long start = System.nanoTime();
+        for(int i = 0; i < count; i++)
+            TimeoutScheduler.shared().schedule(() -> {
+                synchronized(late) {
+                    late[0] += System.nanoTime() - start - TimeUnit.MILLISECONDS.toNanos(500);
+                }
+                latch.countDown();
+            }, 500);
+
+        latch.await();
+        System.out.printf("%nFIRED: %d, AVERAGE LATENESS: %.1f MS%n", count, late[0] / 1e6 / count);
+    }
+
+    private static long heap(){
+        System.gc();
+        return Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory();
+    }
+}
@@ -0,0 +1,153 @@
+package twophasecommit.check;
+
+import twophasecommit.Account;
+import twophasecommit.Decision;
+import twophasecommit.MessageCodec;
+import twophasecommit.Ownership;
+import twophasecommit.Reply;
+import twophasecommit.SubTransaction;
+import twophasecommit.constants.Outcome;
+import twophasecommit.constants.State;
+import twophasecommit.constants.Vote;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+
+/**
+ * Encodes every type of message, decodes it again and checks that
+ * nothing was lost, from a buffer and from a stream that hands over
+ * a byte at a time. Also checks that partial and invalid frames
+ * are turned down
+ *
+ * Exits with status 1 if any check fails
+ *
+ * Usage: CodecCheck
+ */
+class CodecCheck {
+    private static int failed = 0;
+
+    public static void main(String[] args) throws Exception {
+        MessageCodec encoder = new MessageCodec();
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+
+        SubTransaction subTransaction = new SubTransaction(12, 2, new Account("KONTO-\u00c6\u00d8\u00c5", 1000.5, 5L << 32 | 7), -10.25);
+        subTransaction.setParticipantId(50001);
+        Account[] gained = new Account[10000];
+        for(int i = 0; i < gained.length; i++)
+            gained[i] = new Account("ACCOUNT" + i, i + 0.01);
+
+        Object[] messages = {
+                subTransaction,
+                new Decision(12, 2, Vote.ABORT),
+                new Ownership(gained, new String[]{"A", "B"}),
+                "CAN'T VOTE NOW",
+                new Reply(7, Outcome.REJECTED)
+        };
+
+        //Each message from a buffer of its own
+        for(Object message : messages){
+            ByteBuffer frame = encoder.encode(message);
+            stream.write(frame.array(), frame.position(), frame.remaining());
+
+            MessageCodec decoder = new MessageCodec();
+            decoder.decode(frame);
+            check(message.getClass().getSimpleName().toUpperCase() + " ROUND TRIP", describe(decoder.getMessage()), describe(message));
+        }
+
+        ByteBuffer vote = encoder.encodeVote(Vote.COMMIT, 50001, 12, 2);
+        stream.write(vote.array(), vote.position(), vote.remaining());
+        MessageCodec decoder = new MessageCodec();
+        decoder.decode(vote.rewind());
+        check("VOTE ROUND TRIP", decoder.getVote() + " " + decoder.getParticipantId() + " " + decoder.getTransactionId() + "_" + decoder.getSubTransactionId(),
+                "COMMIT 50001 12_2");
+
+        ByteBuffer state = encoder.encodeState(State.WAITING, 50001, 12, 0);
+        stream.write(state.array(), state.position(), state.remaining());
+        decoder.decode(state.rewind());
+        check("STATE ROUND TRIP", decoder.getState() + " " + decoder.getParticipantId() + " " + decoder.getTransactionId() + "_" + decoder.getSubTransactionId(),
+                "WAITING 50001 12_0");
+
+        ByteBuffer submit = encoder.encodeSubmit(7, "FRA", "TIL", 99.99);
+        stream.write(submit.array(), submit.position(), submit.remaining());
+        decoder.decode(submit.rewind());
+        check("SUBMIT ROUND TRIP", decoder.getRequestId() + " " + decoder.getFrom() + " " + decoder.getTo() + " " + decoder.getAmount(), "7 FRA TIL 99.99");
+
+        //Every frame again, from a stream that hands over a byte at a time
+        InputStream input = new ByteArrayInputStream(stream.toByteArray()){
+            public synchronized int read(byte[] bytes, int offset, int length){
+                return super.read(bytes, offset, Math.min(1, length));
+            }
+        };
+        MessageCodec reader = new MessageCodec();
+        StringBuilder types = new StringBuilder();
+        for(int i = 0; i < messages.length + 3; i++){
+            MessageCodec.Type type = reader.read(input);
+            types.append(type).append(' ');
+            if(i < messages.length)
+                check(type + " FROM A STREAM", describe(reader.getMessage()), describe(messages[i]));
+        }
+        check("FRAMES FROM A STREAM", types.toString().trim(), "SUB_TRANSACTION DECISION OWNERSHIP TEXT REPLY VOTE STATE SUBMIT");
+
+        //Half a frame is left where it is
+        ByteBuffer half = ByteBuffer.wrap(encoder.encode(new Decision(1, 1, Vote.COMMIT)).array(), 0, 6);
+        check("HALF A FRAME", new MessageCodec().decode(half) + " " + half.position(), "null 0");
+
+        check("UNKNOWN TYPE", rejected(ByteBuffer.allocate(5).putInt(1).put((byte) 100).flip()), true);
+        check("INVALID LENGTH", rejected(ByteBuffer.allocate(5).putInt(-1).put((byte) 0).flip()), true);
+        //A client port takes a few KB, the length alone is enough to turn a frame down
+        ByteBuffer oversized = ByteBuffer.allocate(5).putInt(1 << 30).put((byte) MessageCodec.Type.SUBMIT.ordinal()).flip();
+        check("OVERSIZED SUBMIT", rejected(oversized, 4096), true);
+        check("SUBMIT UNDER THE LIMIT", rejected(encoder.encodeSubmit(7, "FRA", "TIL", 99.99), 4096), false);
+        check("FRAME LONGER THAN ITS DATA", rejected(ByteBuffer.allocate(20).putInt(16).put((byte) MessageCodec.Type.DECISION.ordinal()).position(20).flip()), true);
+
+        System.out.println(failed == 0 ? "\nALL CHECKS PASSED" : "\n" + failed + " CHECKS FAILED");
+        if(failed > 0) System.exit(1);
+    }
+
+    //Is a frame turned down as invalid?
+    private static boolean rejected(ByteBuffer frame){
+        return rejected(frame, MessageCodec.MAX_FRAME_SIZE);
+    }
+
+    //Is a frame turned down as invalid by a codec that takes at most maxFrameSize bytes?
+    private static boolean rejected(ByteBuffer frame, int maxFrameSize){
+        try {
+            new MessageCodec(maxFrameSize).decode(frame);
+            return false;
+        } catch (ProtocolException e){
+            return true;
+        }
+    }
+
+    //Every field of a message as text, to compare a message with its decoded copy
+    private static String describe(Object message){
+        if(message instanceof SubTransaction) {
+            SubTransaction subTransaction = (SubTransaction) message;
+            return subTransaction.getId() + " " + subTransaction.getParticipantId() + " " + subTransaction.getAccount() + " "
+                    + subTransaction.getAccount().getVersion() + " " + subTransaction.getAmount();
+        }
+
+        if(message instanceof Ownership) {
+            Ownership ownership = (Ownership) message;
+            StringBuilder text = new StringBuilder();
+            for(Account account : ownership.getGained())
+                text.append(account).append(';');
+            return text + String.join(";", ownership.getDropped());
+        }
+
+        return String.valueOf(message);
+    }
+
+    private static void check(String name, Object actual, Object expected){
+        if(expected.equals(actual)) {
+            System.out.println("PASSED: " + name);
+            return;
+        }
+
+        System.out.println("FAILED: " + name + " - EXPECTED " + expected + ", GOT " + actual);
+        failed++;
+    }
+}
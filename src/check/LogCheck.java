@@ -0,0 +1,281 @@
+package twophasecommit.check;
+
+import twophasecommit.LogManager;
+import twophasecommit.LogReader;
+import twophasecommit.LogRecord;
+import twophasecommit.LogWriter;
+import twophasecommit.Recovery;
+import twophasecommit.constants.Protocol;
+import twophasecommit.constants.Vote;
+
+import java.io.File;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.stream.Stream;
+
+/**
+ * Writes logs the way a participant does, drops them as if it crashed,
+ * and checks what checkpoints and recovery make of them
+ *
+ * Each check writes its own log under logs/, which is removed afterwards.
+ * Exits with status 1 if any check fails
+ *
+ * Usage: LogCheck
+ */
+class LogCheck {
+    private static int failed = 0;
+
+    public static void main(String[] args) throws Exception {
+        //Small segments, so a few records fill one and compaction has something to remove
+        System.setProperty("log.segmentSize", "1024");
+        System.setProperty("log.checkpointInterval", "3600000");
+
+        checkpointKeepsUpdates();
+        compactionKeepsTransactionsInFlight();
+        reopenKeepsUpdates();
+        abortedTransactionsStayUndone();
+        losersAreUndone();
+        preparedStaysInDoubt();
+        unforcedDecisionsArePresumed();
+        coordinatorKeepsCommittedBalances();
+        unopenedLogIsNotWritten();
+        checkpointIsSplit();
+        checkpointKeepsCommitsNotEnded();
+
+        System.out.println(failed == 0 ? "\nALL CHECKS PASSED" : "\n" + failed + " CHECKS FAILED");
+        if(failed > 0) System.exit(1);
+    }
+
+    //An update logged before a checkpoint is applied when its transaction commits after it
+    private static void checkpointKeepsUpdates() throws Exception {
+        String log = log();
+        LogManager.writeLog(log, LogRecord.update(1, 1, "A", 100, 90));
+        LogManager.checkpoint(log);
+        LogManager.writeLog(log, LogRecord.commit(1, 1));
+        LogManager.writeLog(log, LogRecord.end(1, 1));
+        LogManager.checkpoint(log);
+
+        check("CHECKPOINT KEEPS UPDATES", recover(log), "A", 90.0);
+    }
+
+    //Compaction never removes the segment with the update of a transaction in flight
+    private static void compactionKeepsTransactionsInFlight() throws Exception {
+        String log = log();
+        LogManager.writeLog(log, LogRecord.update(1, 1, "A", 100, 90));
+
+        //Fills several segments with other transactions, with a checkpoint after each
+        for(int i = 2; i < 100; i++){
+            LogManager.appendLog(log, LogRecord.update(i, 1, "B", i - 1, i));
+            LogManager.appendLog(log, LogRecord.commit(i, 1));
+            LogManager.writeLog(log, LogRecord.end(i, 1));
+            if(i % 10 == 0) LogManager.checkpoint(log);
+        }
+
+        check("COMPACTION KEEPS THE FIRST SEGMENT", LogReader.segments(LogManager.getDirectory(log))[0] == 0 ? "KEPT" : "REMOVED", "KEPT");
+        LogManager.writeLog(log, LogRecord.commit(1, 1));
+
+        Map<String, Double> balances = recover(log);
+        check("COMPACTION KEEPS TRANSACTIONS IN FLIGHT", balances, "A", 90.0);
+        check("COMPACTION KEEPS COMMITTED BALANCES", balances, "B", 99.0);
+    }
+
+    //A log opened again after a checkpoint still applies the updates before it
+    private static void reopenKeepsUpdates() throws Exception {
+        String log = log();
+        File directory = LogManager.getDirectory(log);
+        directory.mkdirs();
+
+        LogWriter writer = new LogWriter(directory, 1024, 128, 0);
+        writer.write(LogRecord.update(1, 1, "A", 100, 90));
+        writer.checkpoint();
+
+        //Opened again, as after a restart
+        writer = new LogWriter(directory, 1024, 128, 0);
+        writer.write(LogRecord.commit(1, 1));
+        writer.write(LogRecord.end(1, 1));
+        writer.checkpoint();
+
+        Double[] balance = new Double[1];
+        LogReader.forEach(directory, record -> {
+            if(record.getType() != LogRecord.Type.BALANCES) return;
+
+            for(int i = 0; i < record.getAccounts().length; i++)
+                if(record.getAccounts()[i].equals("A")) balance[0] = record.getBalances()[i];
+        });
+
+        check("REOPENED LOG KEEPS UPDATES", balance[0], 90.0);
+    }
+
+    //An aborted and ended update is not undone again over a later committed one
+    private static void abortedTransactionsStayUndone() throws Exception {
+        String log = log();
+        LogManager.writeLog(log, LogRecord.update(1, 1, "A", 100, 90));
+        LogManager.writeLog(log, LogRecord.abort(1, 1));
+        LogManager.writeLog(log, LogRecord.end(1, 1));
+        LogManager.writeLog(log, LogRecord.update(2, 1, "A", 100, 80));
+        LogManager.writeLog(log, LogRecord.commit(2, 1));
+        LogManager.writeLog(log, LogRecord.end(2, 1));
+
+        check("ABORTED TRANSACTIONS STAY UNDONE", recover(log), "A", 80.0);
+    }
+
+    //Updates that never voted to commit, or aborted without END, are undone
+    private static void losersAreUndone() throws Exception {
+        String log = log();
+        LogManager.writeLog(log, LogRecord.update(1, 1, "A", 100, 90));
+        LogManager.writeLog(log, LogRecord.abort(1, 1));
+        LogManager.writeLog(log, LogRecord.update(2, 1, "B", 50, 40));
+
+        Map<String, Double> balances = recover(log);
+        check("ABORTED WITHOUT END IS UNDONE", balances, "A", 100.0);
+        check("ABANDONED IS UNDONE", balances, "B", 50.0);
+        check("ABANDONED IS ABORTED", records(log, 2, 1), "UPDATE ABORT END");
+    }
+
+    //An update that has voted to commit is left to the coordinator, neither applied nor aborted
+    private static void preparedStaysInDoubt() throws Exception {
+        String log = log();
+        LogManager.writeLog(log, LogRecord.update(1, 1, "A", 100, 90));
+        LogManager.writeLog(log, LogRecord.prepared(1, 1));
+
+        Recovery recovery = new Recovery(log);
+        recovery.run();
+        check("PREPARED STAYS IN DOUBT", recovery.getInDoubt().size() + " " + recovery.getInDoubtUpdates(), "1 [<1_1, A, 100.0, 90.0>]");
+        check("IN DOUBT IS LEFT BEFORE THE UPDATE", recovery.getBalances(), "A", 100.0);
+        check("IN DOUBT IS NOT ABORTED", records(log, 1, 1), "UPDATE PREPARED");
+    }
+
+    //The coordinator logs both deltas of a transfer under one key, a checkpoint keeps both
+    private static void coordinatorKeepsCommittedBalances() throws Exception {
+        String log = log();
+        LogManager.appendLog(log, LogRecord.delta(1, 0, "A", 100, 10));
+        LogManager.appendLog(log, LogRecord.delta(1, 0, "B", 100, -10));
+        LogManager.writeLog(log, LogRecord.commit(1, 0));
+        LogManager.writeLog(log, LogRecord.end(1, 0));
+        LogManager.checkpoint(log);
+
+        Map<String, Double> balances = recover(log);
+        check("COORDINATOR KEEPS COMMITTED BALANCES", balances, "A", 110.0);
+        check("COORDINATOR KEEPS COMMITTED BALANCES", balances, "B", 90.0);
+    }
+
+    //A decision a participant does not force is lost in a crash, the sub-transaction is then in doubt and asks the coordinator
+    private static void unforcedDecisionsArePresumed() throws Exception {
+        for(Protocol protocol : Protocol.values())
+            for(Vote decision : Vote.values()){
+                if(protocol.forcesDecision(decision)) continue;
+
+                //PREPARED is forced before the vote, the decision after it never reached the disk
+                String log = log();
+                LogManager.appendLog(log, LogRecord.update(1, 1, "A", 100, 90));
+                LogManager.writeLog(log, LogRecord.prepared(1, 1));
+
+                Recovery recovery = new Recovery(log);
+                recovery.run();
+                check(protocol + " LEAVES AN UNFORCED " + decision + " IN DOUBT", recovery.getInDoubt().size(), 1);
+
+                //The coordinator has forgotten the transaction, and answers with the presumed decision
+                check(protocol + " PRESUMES AN UNFORCED " + decision, protocol.presumes(Vote.COMMIT) ? Vote.COMMIT : Vote.ABORT, decision);
+            }
+    }
+
+    //A record for a log that can not be opened is not dropped silently, the caller gets an exception
+    private static void unopenedLogIsNotWritten() throws Exception {
+        String log = log();
+
+        //A file where the directory of the log should be
+        File directory = LogManager.getDirectory(log);
+        directory.getParentFile().mkdirs();
+        directory.createNewFile();
+
+        String result;
+        try {
+            LogManager.appendLog(log, LogRecord.update(1, 1, "A", 100, 90));
+            result = "WRITTEN";
+        } catch (UncheckedIOException e){
+            result = "NOT WRITTEN";
+        }
+        check("UNOPENED LOG IS NOT WRITTEN", result, "NOT WRITTEN");
+    }
+
+    //The balances of a checkpoint larger than a segment are split over several records
+    private static void checkpointIsSplit() throws Exception {
+        String log = log();
+        for(int i = 1; i <= 100; i++){
+            LogManager.appendLog(log, LogRecord.update(i, 1, "ACCOUNT-" + i, 0, i));
+            LogManager.appendLog(log, LogRecord.commit(i, 1));
+            LogManager.writeLog(log, LogRecord.end(i, 1));
+        }
+        LogManager.checkpoint(log);
+
+        int[] parts = new int[1];
+        LogReader.forEach(LogManager.getDirectory(log), record -> {
+            if(record.getType() == LogRecord.Type.BALANCES) parts[0]++;
+        });
+        check("CHECKPOINT IS SPLIT", parts[0] > 1 ? "SPLIT" : "ONE RECORD", "SPLIT");
+
+        Map<String, Double> balances = recover(log);
+        check("SPLIT CHECKPOINT KEEPS EVERY BALANCE", balances.size(), 100);
+        check("SPLIT CHECKPOINT KEEPS EVERY BALANCE", balances, "ACCOUNT-100", 100.0);
+    }
+
+    //A transaction committed before a checkpoint but not ended is in flight, its delta is not added again
+    private static void checkpointKeepsCommitsNotEnded() throws Exception {
+        String log = log();
+        LogManager.appendLog(log, LogRecord.delta(1, 0, "A", 100, 10));
+        LogManager.writeLog(log, LogRecord.commit(1, 0));
+        LogManager.checkpoint(log);
+        LogManager.writeLog(log, LogRecord.end(1, 0));
+
+        check("CHECKPOINT KEEPS COMMITS NOT ENDED", recover(log), "A", 110.0);
+    }
+
+    //A log of its own for a check, removed when the checks are done
+    private static String log() throws Exception {
+        String log = "log-check-" + System.nanoTime();
+        File directory = LogManager.getDirectory(log);
+
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try(Stream<Path> files = Files.walk(directory.toPath())) {
+                files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+            } catch (Exception e){
+                //Already gone
+            }
+        }));
+        return log;
+    }
+
+    //The types of the records of a sub-transaction, in log order
+    private static String records(String log, int transactionId, int subTransactionId) throws Exception {
+        StringBuilder types = new StringBuilder();
+        LogReader.forEach(LogManager.getDirectory(log), record -> {
+            if(record.getTransactionId() == transactionId && record.getSubTransactionId() == subTransactionId)
+                types.append(types.length() > 0 ? " " : "").append(record.getType());
+        });
+        return types.toString();
+    }
+
+    //Recovers a log as a restarted participant would
+    private static Map<String, Double> recover(String log) throws Exception {
+        Recovery recovery = new Recovery(log);
+        recovery.run();
+        return recovery.getBalances();
+    }
+
+    private static void check(String name, Map<String, Double> balances, String account, Object expected){
+        check(name + " (" + account + ")", balances.get(account), expected);
+    }
+
+    private static void check(String name, Object actual, Object expected){
+        if(expected.equals(actual)) {
+            System.out.println("PASSED: " + name);
+            return;
+        }
+
+        System.out.println("FAILED: " + name + " - EXPECTED " + expected + ", GOT " + actual);
+        failed++;
+    }
+}
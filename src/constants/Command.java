@@ -7,6 +7,7 @@ package twophasecommit.constants;
 public enum Command {
     TRANSACTION,
     ACCOUNT,
+    LOAD,
     STATE,
     DATA,
     HELP,
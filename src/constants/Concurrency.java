@@ -0,0 +1,30 @@
+package twophasecommit.constants;
+
+/**
+ * This enum contains the ways a participant keeps
+ * concurrent sub-transactions apart
+ *
+ * LOCKING       accounts are locked from prepare until the
+ *               decision, updates are applied at prepare
+ * OPTIMISTIC    the version of the account is read at prepare
+ *               and validated when voting, updates are buffered
+ *               and applied at commit, a conflict votes abort
+ */
+public enum Concurrency {
+    LOCKING,
+    OPTIMISTIC;
+
+    /**
+     * Converts a startup flag to a Concurrency, e.g. 'optimistic'
+     *
+     * @param input the string to be converted
+     * @return      the input as a Concurrency, or null if it is invalid
+     */
+    public static Concurrency fromFlag(String input){
+        try {
+            return Concurrency.valueOf(input.trim().toUpperCase().replace('-', '_'));
+        } catch (IllegalArgumentException e){
+            return null;
+        }
+    }
+}
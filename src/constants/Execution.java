@@ -0,0 +1,34 @@
+package twophasecommit.constants;
+
+/**
+ * This enum contains the threads the protocol steps
+ * of a transaction run on
+ *
+ * INLINE      each step runs on the thread that received the
+ *             message, e.g. a selector thread on the coordinator,
+ *             which serves no other connection while a step waits
+ *             for the log
+ * PLATFORM    each transaction runs its steps in order on a
+ *             thread of its own, taken from a pool
+ * VIRTUAL     as PLATFORM, with a virtual thread per transaction,
+ *             falls back to PLATFORM before Java 21
+ */
+public enum Execution {
+    INLINE,
+    PLATFORM,
+    VIRTUAL;
+
+    /**
+     * Converts a startup flag to an Execution, e.g. 'virtual'
+     *
+     * @param input the string to be converted
+     * @return      the input as an Execution, or null if it is invalid
+     */
+    public static Execution fromFlag(String input){
+        try {
+            return Execution.valueOf(input.trim().toUpperCase().replace('-', '_'));
+        } catch (IllegalArgumentException e){
+            return null;
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package twophasecommit.constants;
+
+/**
+ * This enum contains the outcomes of a
+ * transaction submitted to the coordinator
+ *
+ * COMMITTED    every participant voted to commit, and the
+ *              decision is in the log of the coordinator
+ * ABORTED      a participant voted to abort, or did not
+ *              vote before the timeout
+ * REJECTED     the transaction was never started, e.g. there
+ *              were not enough participants, an account did
+ *              not exist or was moving to another participant
+ */
+public enum Outcome {
+    COMMITTED,
+    ABORTED,
+    REJECTED
+}
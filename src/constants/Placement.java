@@ -0,0 +1,29 @@
+package twophasecommit.constants;
+
+/**
+ * This enum contains the ways the coordinator
+ * places sub-transactions on participants
+ *
+ * SHARD   each account is owned by one participant, chosen by
+ *         consistent hashing on the account name
+ * LOAD    any participant executes any account, the least
+ *         loaded participants are chosen
+ */
+public enum Placement {
+    SHARD,
+    LOAD;
+
+    /**
+     * Converts a startup flag to a Placement, e.g. 'shard'
+     *
+     * @param input the string to be converted
+     * @return      the input as a Placement, or null if it is invalid
+     */
+    public static Placement fromFlag(String input){
+        try {
+            return Placement.valueOf(input.trim().toUpperCase().replace('-', '_'));
+        } catch (IllegalArgumentException e){
+            return null;
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package twophasecommit.constants;
+
+/**
+ * This enum contains the variants of the
+ * two phase commit protocol
+ *
+ * BASIC            every record is forced, every decision is acknowledged
+ * PRESUMED_ABORT   the coordinator logs nothing for aborts, and aborts
+ *                  are neither forced nor acknowledged by participants
+ * PRESUMED_COMMIT  commits are neither forced nor acknowledged by participants
+ *
+ * A participant that loses a decision it did not force is in doubt after
+ * recovery, and the coordinator tells it the decision again, or presumes
+ * it once the transaction has left its log. The coordinator forces START,
+ * TRANSFER and COMMIT with presumed commit as in BASIC, so that a
+ * transaction started without a decision is aborted on recovery
+ *
+ * The coordinator and the participants must use the same variant
+ */
+public enum Protocol {
+    BASIC,
+    PRESUMED_ABORT,
+    PRESUMED_COMMIT;
+
+    /**
+     * Is the decision the one presumed when nothing is known?
+     *
+     * @param decision the decision
+     * @return         true if the decision is presumed
+     */
+    public boolean presumes(Vote decision){
+        return (this == PRESUMED_ABORT && decision == Vote.ABORT)
+            || (this == PRESUMED_COMMIT && decision == Vote.COMMIT);
+    }
+
+    /**
+     * Does a participant force the decision? A presumed decision
+     * lost in a crash is the one the coordinator answers with
+     *
+     * @param decision the decision
+     * @return         true if the decision is forced
+     */
+    public boolean forcesDecision(Vote decision){
+        return !presumes(decision);
+    }
+
+    /**
+     * Does the coordinator log a transaction before the decision?
+     * With presumed abort, a transaction without records is aborted
+     *
+     * @return true if START is logged
+     */
+    public boolean logsStart(){
+        return this != PRESUMED_ABORT;
+    }
+
+    /**
+     * Does the coordinator log the decision?
+     * Presumed commit still forces commits, since a transaction
+     * that started without a decision is presumed aborted
+     *
+     * @param decision the decision
+     * @return         true if the decision is logged
+     */
+    public boolean logsDecision(Vote decision){
+        return !(this == PRESUMED_ABORT && decision == Vote.ABORT);
+    }
+
+    /**
+     * Converts a startup flag to a Protocol, e.g. 'presumed-abort'
+     *
+     * @param input the string to be converted
+     * @return      the input as a Protocol, or null if it is invalid
+     */
+    public static Protocol fromFlag(String input){
+        try {
+            return Protocol.valueOf(input.trim().toUpperCase().replace('-', '_'));
+        } catch (IllegalArgumentException e){
+            return null;
+        }
+    }
+}
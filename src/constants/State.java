@@ -3,12 +3,16 @@ package twophasecommit.constants;
 /**
  * This enum contains a list of states
  * that a participant can be in
+ *
+ * IN_DOUBT is sent for a sub-transaction that has voted to commit and
+ * lost the decision, the coordinator answers with the decision again
  */
 public enum State {
     INITIALIZED,
     PREPARING,
     VOTING,
     WAITING,
+    IN_DOUBT,
     ABORT,
     COMMIT,
     DISCONNECTED
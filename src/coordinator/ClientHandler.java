@@ -0,0 +1,54 @@
+package twophasecommit.coordinator;
+
+import twophasecommit.MessageCodec;
+import twophasecommit.Reply;
+
+/**
+ * Handles the clients that submit transactions over the network
+ *
+ * A client sends SUBMIT frames and gets a REPLY frame for each once the
+ * transaction is decided, see TransactionClient. It does not have to wait
+ * for a reply before submitting the next transaction, and the replies come
+ * in the order the transactions are decided, matched by the request id
+ */
+class ClientHandler implements Transport.Handler {
+
+    //Largest frame a client may send, enough for a SUBMIT with long account names
+    private final static int MAX_FRAME_SIZE = Integer.getInteger("transport.clientMaxFrame", 4096);
+
+    //Coordinator the transactions are submitted to
+    private Coordinator coordinator;
+
+    ClientHandler(Coordinator coordinator){
+        this.coordinator = coordinator;
+    }
+
+    public void addConnection(Transport.Connection connection){
+        System.out.println("CLIENT #" + connection.getId() + ": CONNECTED");
+    }
+
+    public void removeConnection(Transport.Connection connection){
+        System.out.println("CLIENT #" + connection.getId() + ": DISCONNECTED");
+    }
+
+    //Clients are not trusted, so a length that would take up memory is turned down before it is allocated
+    public int getMaxFrameSize(){
+        return MAX_FRAME_SIZE;
+    }
+
+    /**
+     * Handles a frame from a client, any other type than SUBMIT is ignored
+     *
+     * @param connection the connection of the client
+     * @param type       the type of the frame
+     * @param codec      the codec that decoded it, holding its fields
+     */
+    public void handleMessage(Transport.Connection connection, MessageCodec.Type type, MessageCodec codec){
+        if(type != MessageCodec.Type.SUBMIT) return;
+
+        //Replies once the transaction is decided, a reply to a client that is gone is dropped. Clients can not create accounts
+        int requestId = codec.getRequestId();
+        coordinator.submit(codec.getFrom(), codec.getTo(), codec.getAmount(), false)
+                .thenAccept(outcome -> connection.send(new Reply(requestId, outcome)));
+    }
+}
@@ -1,10 +1,10 @@
 package twophasecommit.coordinator;
 
 import twophasecommit.Account;
+import twophasecommit.AccountVersions;
 import twophasecommit.constants.Command;
 import twophasecommit.constants.State;
 
-import java.util.HashMap;
 
 /**
  * Handles commands from the user
@@ -38,6 +38,7 @@ class CommandHandler {
                 System.out.println(
                           "\n         COMMAND                            DESC"
                         + "\n- ACCOUNT <NAME> <BALANCE>              CREATE ACCOUNT"
+                        + "\n- LOAD <FILE>                           LOAD ACCOUNTS FROM A CSV OR BINARY FILE"
                         + "\n- TRANSACTION <ACC1> <ACC2> <AMOUNT>    START TRANSACTION"
                         + "\n- STATE <PARTICIPANT_ID>                DISPLAY PARTICPANT STATE"
                         + "\n- DATA                                  DISPLAY TEST DATA"
@@ -70,6 +71,23 @@ class CommandHandler {
 
                 break;
 
+            //Loads accounts from a file
+            case LOAD:
+
+                //Checks that arguments are passed in correctly
+                if(args.length > 1){
+                    System.out.println("TOO MANY ARGUMENTS\n");
+                    return;
+                }
+                else if(args.length < 1){
+                    System.out.println("TOO FEW ARGUMENTS\n");
+                    return;
+                }
+
+                System.out.println("LOADING ACCOUNTS FROM " + args[0] + "...");
+                coordinator.loadAccounts(args[0]);
+                break;
+
             //Starts a transaction
             case TRANSACTION:
 
@@ -83,12 +101,12 @@ class CommandHandler {
                     return;
                 }
 
-                //Creates a new transaction if the amount argument is OK
+                //Creates a new transaction if the amount argument is OK, the amount goes from ACC2 to ACC1
                 double amount = convertToDouble(args[2]);
-                if(amount < 0)
+                if(!Double.isFinite(amount) || amount < 0)
                     System.out.println("INVALID AMOUNT\n");
                 else
-                    coordinator.prepareTransaction(args[0], args[1], amount);
+                    coordinator.submit(args[1], args[0], amount, true);
 
                 break;
 
@@ -112,6 +130,8 @@ class CommandHandler {
                 //Prints the state
                 if(state == null)
                     System.out.println("INVALID ID\n");
+                else if(state == State.INITIALIZED)
+                    System.out.println("PARTICIPANT #" + id + ": " + state + ", " + coordinator.getOutstanding(id) + " OUTSTANDING\n");
                 else
                     System.out.println("PARTICIPANT #" + id + ": " + state + "\n");
                 break;
@@ -120,12 +140,12 @@ class CommandHandler {
             case DATA:
 
                 //Gets accounts
-                HashMap<String, Account> accounts = coordinator.getAccounts();
-                if(accounts.size() == 0) System.out.println("NO TEST DATA\n");
+                if(coordinator.getAccounts().size() == 0) System.out.println("NO TEST DATA\n");
 
-                //Prints the account data
-                for(Account account : accounts.values())
-                    System.out.println(account);
+                //Prints the account data from a snapshot, transactions committing meanwhile are not half seen
+                try(AccountVersions.Snapshot snapshot = coordinator.snapshot()) {
+                    snapshot.forEach((name, accountBalance) -> System.out.println(new Account(name, accountBalance)));
+                }
 
                 System.out.println();
                 break;
@@ -1,20 +1,56 @@
 package twophasecommit.coordinator;
 
 import twophasecommit.Account;
+import twophasecommit.AccountLoader;
+import twophasecommit.AccountStore;
+import twophasecommit.AccountVersions;
+import twophasecommit.AccountVersions.Snapshot;
+import twophasecommit.Decision;
+import twophasecommit.Ownership;
 import twophasecommit.LogManager;
+import twophasecommit.LogRecord;
 import twophasecommit.SubTransaction;
+import twophasecommit.TimeoutScheduler;
+import twophasecommit.TimeoutScheduler.Timeout;
 import twophasecommit.Transaction;
+import twophasecommit.TransactionExecutor;
+import twophasecommit.constants.Execution;
+import twophasecommit.constants.Outcome;
+import twophasecommit.constants.Placement;
+import twophasecommit.constants.Protocol;
 import twophasecommit.constants.State;
 import twophasecommit.constants.Vote;
 
+import java.io.IOException;
+import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * The coordinator coordinates the execution of
  * transactions between participants
  *
  * Either all commit, or all abort
+ *
+ * Many transactions can be in flight at once. Commands, votes from
+ * every participant and timeouts arrive on different threads, so all
+ * shared maps are concurrent, and each transaction is decided exactly
+ * once (see Transaction.decide)
+ *
+ * Votes and timeouts are handed to a TransactionExecutor, which runs
+ * them on the thread they arrived on, or one transaction at a time on
+ * threads of their own so waiting for the log holds up no other messages
+ *
+ * With shard placement every account is owned by one participant.
+ * When participants join or leave, the owners are recomputed in the
+ * background and the accounts that move are handed over, see rebalance
  */
 class Coordinator {
     private int id;
@@ -22,6 +58,18 @@ class Coordinator {
     //Timeout
     private final int TIMEOUT = 15000;
 
+    //Protocol variant, decides what is logged and what is forced
+    private Protocol protocol;
+
+    //How sub-transactions are placed on participants
+    private Placement placement;
+
+    /*
+     * With load placement, the versions of the balances sent to the participants are
+     * <transactions before this run, timestamp of the last write>, so they keep growing after a restart
+     */
+    private long epoch;
+
     /**
      * HashMaps are used here because messages are
      * sent over socket with IDs attached
@@ -31,32 +79,71 @@ class Coordinator {
      */
 
     /*
-     * A map of participants on the form <id, state>
-     * Needs to be ConcurrentHashMap because of multithreading
+     * The maps need to be ConcurrentHashMaps because of multithreading
      */
+
+    //A map of participants on the form <id, state>
     private ConcurrentHashMap<Integer, State> participants = new ConcurrentHashMap<>();
 
+    //Places sub-transactions on the initialized participants
+    private ParticipantScheduler scheduler = new ParticipantScheduler();
+
+    //Owners of the accounts with shard placement, replaced when the shards are rebalanced
+    private volatile ShardRing ring = new ShardRing(Collections.emptyList());
+
+    //Accounts moving to a new owner, no transactions are started on them until they have moved
+    private Set<String> migrating = ConcurrentHashMap.newKeySet();
+
+    //Completed once no transaction uses the moving accounts, null while no rebalance is waiting
+    private volatile CompletableFuture<Void> drained;
+
+    //Rebalances the shards in the background, one rebalance at a time
+    private ExecutorService rebalancer = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "Rebalancer");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private AtomicBoolean rebalanceQueued = new AtomicBoolean();
+
     //A map of transactions on the form <transaction id, transaction>
-    private HashMap<Integer, Transaction> transactions = new HashMap<>();
+    private ConcurrentHashMap<Integer, Transaction> transactions = new ConcurrentHashMap<>();
+
+    //A map of decided transactions not yet acknowledged by every participant on the form <transaction id, transaction>
+    private ConcurrentHashMap<Integer, Transaction> unacknowledged = new ConcurrentHashMap<>();
+
+    //A map of timeouts on the form <transaction id, timeout>
+    private ConcurrentHashMap<Integer, Timeout> timers = new ConcurrentHashMap<>();
 
-    //A map of timers on the form <transaction id, timer>
-    private HashMap<Integer, Timer> timers = new HashMap<>();
+    //A map of outcomes waited for on the form <transaction id, outcome>
+    private ConcurrentHashMap<Integer, CompletableFuture<Outcome>> outcomes = new ConcurrentHashMap<>();
 
-    //A map of accounts on the form <name, account>, used as test data in transactions
-    private HashMap<String, Account> accounts = new HashMap<>();
+    //The committed balances of the accounts, and their versions for snapshot reads
+    private AccountStore accounts = new AccountStore();
+    private AccountVersions versions = new AccountVersions(accounts);
+
+    //Runs the votes and timeouts of each transaction in order
+    private TransactionExecutor executor;
 
     //MessageHandler for sending messages to participants
     MessageHandler messageHandler;
 
-    Coordinator(int id){
+    Coordinator(int id, Protocol protocol, Placement placement, Execution execution){
         this.id = id;
+        this.protocol = protocol;
+        this.placement = placement;
+        this.executor = new TransactionExecutor(execution);
+        this.epoch = (long) Transaction.getTransactionCount() << 32;
     }
 
     int getId(){
         return id;
     }
 
-    HashMap<String, Account> getAccounts(){
+    TransactionExecutor getExecutor(){
+        return executor;
+    }
+
+    AccountStore getAccounts(){
         return accounts;
     }
 
@@ -64,14 +151,106 @@ class Coordinator {
         this.messageHandler = messageHandler;
     }
 
+    /**
+     * Adds an account, or sets the balance of an existing one
+     *
+     * The balance is logged as a transaction of its own, so the account
+     * is found again when the log is recovered. It is not forced, every
+     * transaction on the account forces it together with its decision
+     *
+     * @param account the account
+     */
     void addAccount(Account account){
-        accounts.put(account.getName(), account);
+        int slot = accounts.slot(account.getName());
+        double before = slot >= 0 ? accounts.getBalance(slot) : account.getBalance();
+
+        int transactionId = Transaction.nextId();
+        LogManager.appendLog(String.valueOf(id), LogRecord.update(transactionId, 0, account.getName(), before, account.getBalance()));
+        LogManager.appendLog(String.valueOf(id), LogRecord.commit(transactionId, 0));
+        LogManager.appendLog(String.valueOf(id), LogRecord.end(transactionId, 0));
+
+        versions.put(account.getName(), account.getBalance());
+    }
+
+    /**
+     * Sets the committed balances found by recovery, they are
+     * newer than any file the accounts were loaded from
+     *
+     * @param balances the balances on the form <account, balance>
+     */
+    void restoreAccounts(Map<String, Double> balances){
+        String[] names = new String[balances.size()];
+        long[] cents = new long[names.length];
+
+        int i = 0;
+        for(Map.Entry<String, Double> entry : balances.entrySet()){
+            names[i] = entry.getKey();
+            cents[i++] = AccountStore.toCents(entry.getValue());
+        }
+
+        versions.putAll(names, cents, i);
+    }
+
+    /**
+     * Loads accounts in bulk from a CSV or binary file,
+     * see AccountLoader for the formats
+     *
+     * @param file the path of the file
+     */
+    void loadAccounts(String file){
+        try {
+            AccountLoader.Result result = AccountLoader.load(Paths.get(file), new AccountLoader.Sink() {
+                public void expect(int count){
+                    accounts.ensureCapacity(count);
+                }
+
+                public void accept(String[] names, long[] cents, int count){
+                    versions.putAll(names, cents, count);
+                }
+            });
+
+            System.out.println(result + "\n");
+        } catch (IOException | RuntimeException e){
+            System.out.println("COULD NOT LOAD ACCOUNTS: " + file + ", " + e + "\n");
+        }
+    }
+
+    /**
+     * Takes a snapshot of the committed balances, it sees each transaction
+     * completely or not at all and never holds up a commit
+     *
+     * @return the snapshot, to be closed after use
+     */
+    Snapshot snapshot(){
+        return versions.snapshot();
+    }
+
+    /**
+     * Reads the committed balance of an account
+     *
+     * @param account the account name
+     * @return        the balance, or null if there is no such account
+     */
+    Double getBalance(String account){
+        try(Snapshot snapshot = versions.snapshot()) {
+            return snapshot.getBalance(account.trim().toUpperCase());
+        }
     }
 
     State getParticipantState(int participantId){
         return participants.get(participantId);
     }
 
+    /**
+     * Gets the number of undecided sub-transactions placed on a participant
+     *
+     * @param participantId the participant id
+     * @return              the number of sub-transactions, -1 if the participant is not initialized
+     */
+    int getOutstanding(int participantId){
+        return scheduler.getOutstanding(participantId);
+    }
+
     /**
      * Sets state of a participant
      *
@@ -82,54 +261,150 @@ class Coordinator {
         System.out.println("PARTICIPANT #" + id + ": " + state);
 
         //Set state, remove if disconnected
-        if(state == State.DISCONNECTED) {
+        if(state == State.DISCONNECTED)
             participants.remove(id);
-            timers.remove(id);
-        }
         else
             participants.put(id, state);
+
+        //Only initialized participants get sub-transactions
+        if(state == State.INITIALIZED)
+            scheduler.add(id);
+        else
+            scheduler.remove(id);
+
+        //Moves accounts to and from the participant in the background
+        if(placement == Placement.SHARD && rebalanceQueued.compareAndSet(false, true))
+            rebalancer.execute(this::rebalance);
     }
 
     /**
-     * Prepares transaction
+     * Prints the state of a sub-transaction, each participant
+     * keeps its own state for every sub-transaction
+     *
+     * COMMIT and ABORT acknowledge the decision, and IN_DOUBT asks for it
+     * again. Both are handled after the vote of the sub-transaction
      *
-     * @param accountA the account a
-     * @param accountB the account b
-     * @param amount   the amount
+     * @param state            the state of the sub-transaction
+     * @param id               the id of the participant
+     * @param transactionId    the transaction id
+     * @param subTransactionId the sub-transaction id
      */
-    void prepareTransaction(String accountA, String accountB, double amount){
+    void setTransactionState(State state, int id, int transactionId, int subTransactionId){
+        System.out.println("PARTICIPANT #" + id + ": " + state + " SUB-TRANSACTION #" + transactionId + "_" + subTransactionId);
+
+        if(state == State.IN_DOUBT)
+            executor.execute(transactionId, () -> resendDecision(id, transactionId, subTransactionId));
+
+        else if(state == State.COMMIT || state == State.ABORT)
+            executor.execute(transactionId, () -> {
+                Transaction transaction = unacknowledged.get(transactionId);
+                if(transaction != null && state == (transaction.getDecision() == Vote.COMMIT ? State.COMMIT : State.ABORT))
+                    acknowledge(transaction, subTransactionId);
+            });
+    }
+
+    /**
+     * Submits a transaction that moves an amount from one account to another,
+     * returns at once. Accounts that do not exist are created with balance 100
+     * for the console, a client over the network only gets existing accounts
+     *
+     * The transaction is prepared on the threads of the executor, after
+     * which it goes on as the participants vote
+     *
+     * @param from   the account the amount is taken from
+     * @param to     the account the amount is given to
+     * @param amount the amount, finite and not negative
+     * @param create create the accounts that do not exist?
+     * @return       the outcome, completed once the transaction is decided,
+     *               a commit only once it is in the log
+     */
+    CompletableFuture<Outcome> submit(String from, String to, double amount, boolean create){
+        if(!Double.isFinite(amount) || amount < 0 || from.trim().isEmpty() || to.trim().isEmpty())
+            return CompletableFuture.completedFuture(Outcome.REJECTED);
 
         //Gets test data - if none is provided, create some with balance 100
-        Account A = (accounts.get(accountA) != null ? accounts.get(accountA) : new Account(accountA.trim().toUpperCase(), 100));
-        Account B = (accounts.get(accountB) != null ? accounts.get(accountB) : new Account(accountB.trim().toUpperCase(), 100));
+        String nameFrom = from.trim().toUpperCase();
+        String nameTo = to.trim().toUpperCase();
+        int slotFrom = create ? versions.getOrCreate(nameFrom, 100) : accounts.slot(nameFrom);
+        int slotTo = create ? versions.getOrCreate(nameTo, 100) : accounts.slot(nameTo);
 
-        //Creates the transaction
-        Transaction transaction = new Transaction(A, B, amount);
-        System.out.println("\n" + transaction + "\n");
-        transactions.put(transaction.getId(), transaction);
+        if(slotFrom < 0 || slotTo < 0)
+            return CompletableFuture.completedFuture(Outcome.REJECTED);
+
+        //Creates the transaction, the participants get the committed balances. Its first account is the one credited
+        Transaction transaction = new Transaction(account(nameTo, slotTo), account(nameFrom, slotFrom), amount);
 
-        //Creates a timer for the transaction (used for timeout)
-        Timer timer = new Timer();
-        timers.put(transaction.getId(), timer);
+        CompletableFuture<Outcome> outcome = new CompletableFuture<>();
+        outcomes.put(transaction.getId(), outcome);
+        executor.execute(transaction.getId(), () -> prepareTransaction(transaction));
+        return outcome;
+    }
+
+    /**
+     * Gets an account with its committed balance. With load placement any
+     * participant may hold an older copy of it, so the balance has a version
+     * for the participant to tell which is newer. The version is read first,
+     * the balance is never older than it
+     *
+     * @param name the account name
+     * @param slot the slot of the account
+     * @return     the account
+     */
+    private Account account(String name, int slot){
+        long version = placement == Placement.LOAD ? epoch | versions.getTimestamp(slot) : 0;
+        return new Account(name, accounts.getBalance(slot), version);
+    }
+
+    /**
+     * Prepares transaction
+     *
+     * @param transaction the transaction
+     */
+    private void prepareTransaction(Transaction transaction){
+        System.out.println("\n" + transaction + "\n");
 
         //Gets the two sub-transactions
         ArrayList<SubTransaction> subTransactions = transaction.getSubTransactions();
 
-        //Gets initialized participants who can execute the sub-transactions
-        ArrayList<Integer> readyParticipants = getInitializedParticipants();
-        if(readyParticipants.size() < subTransactions.size()) {
+        /*
+         * Registers the transaction before checking for moving accounts: a
+         * rebalance either sees it and waits for it, or has already marked
+         * the accounts as moving before the check
+         */
+        transactions.put(transaction.getId(), transaction);
+        for(SubTransaction subTransaction : subTransactions){
+            if(migrating.contains(subTransaction.getAccount().getName())) {
+                removeTransaction(transaction);
+                System.out.println("ACCOUNT IS MOVING TO ANOTHER PARTICIPANT - TRY AGAIN\n");
+                complete(transaction, Outcome.REJECTED);
+                return;
+            }
+        }
+
+        //Chooses the participants to execute the sub-transactions
+        int[] readyParticipants = placeTransaction(transaction);
+        if(readyParticipants == null) {
+            removeTransaction(transaction);
             System.out.println("NOT ENOUGH PARTICIPANTS");
+            complete(transaction, Outcome.REJECTED);
             return;
         }
 
+        //Starts timeout, before any participant can answer so it can always be cancelled
+        timers.put(transaction.getId(), TimeoutScheduler.shared().schedule(() -> executor.execute(transaction.getId(), () -> {
+            System.out.println("\nTIMEOUT - PARTICIPANTS TOOK TO LONG");
+            abortTransaction(transaction);
+        }), TIMEOUT));
+
         //Assigns a participant to each sub-transaction
         for(int i = 0; i < subTransactions.size(); i++){
-            subTransactions.get(i).setParticipantId(readyParticipants.get(i));
+            subTransactions.get(i).setParticipantId(readyParticipants[i]);
             System.out.println(subTransactions.get(i) + "\n");
         }
 
-        //Writes <T, START> to log
-        LogManager.writeLog(String.valueOf(id), transaction.getId() + ", START") ;
+        //Writes <T, START> to log, nothing is logged before the decision if aborts are presumed
+        if(protocol.logsStart())
+            LogManager.writeLog(String.valueOf(id), LogRecord.start(transaction.getId(), 0));
 
         System.out.println("SENDING SUB-TRANSACTIONS TO PARTICIPANTS...\n");
 
@@ -137,62 +412,40 @@ class Coordinator {
         messageHandler.broadcast(transaction);
 
         //Writes <T, ACCOUNT1, ACCOUNT2, AMOUNT>
-        LogManager.writeLog(String.valueOf(id), transaction.getId() + ", " + A.getName() + ", " + B.getName() + ", " + transaction.getAmount());
-
-        //Starts timeout
-        timer.schedule(new TimerTask() {
-            @Override
-            public void run() {
-                System.out.println("\nTIMEOUT - PARTICIPANTS TOOK TO LONG");
-                abortTransaction(transaction);
-            }
-        }, TIMEOUT);
+        if(protocol.logsStart())
+            LogManager.writeLog(String.valueOf(id), LogRecord.transfer(transaction.getId(), subTransactions.get(0).getAccount().getName(),
+                    subTransactions.get(1).getAccount().getName(), transaction.getAmount()));
     }
 
     /**
      * Handles vote from a participant
      *
-     * @param vote          the vote to handle
-     * @param participantId the participant id
-     * @param transactionId the transaction id
+     * @param vote             the vote to handle
+     * @param participantId    the participant id
+     * @param transactionId    the transaction id
+     * @param subTransactionId the sub-transaction id
      */
-    void handleVote(Vote vote, int participantId, int transactionId){
-        System.out.println("PARTICIPANT #" + participantId + ": VOTED " + vote + " TRANSACTION #" + transactionId);
+    void handleVote(Vote vote, int participantId, int transactionId, int subTransactionId){
+        System.out.println("PARTICIPANT #" + participantId + ": VOTED " + vote + " SUB-TRANSACTION #" + transactionId + "_" + subTransactionId);
 
-        //Gets the transaction
+        //Gets the transaction, it may already have been decided and removed
         Transaction transaction = transactions.get(transactionId);
+        if(transaction == null) {
+            System.out.println("UNKNOWN TRANSACTION #" + transactionId);
+            return;
+        }
+
+        scheduler.recordLatency(participantId, System.nanoTime() - transaction.getStartTime());
 
         //Aborts transaction
         if(vote == Vote.ABORT)
             abortTransaction(transaction);
 
-        /*
-         * Checks if every participant has voted to commit (all are waiting)
-         * Commits transaction if true
-         */
-        else if(checkState(transaction, State.WAITING))
+        //Commits transaction when the last participant votes to commit
+        else if(transaction.vote(subTransactionId))
             commitTransaction(transaction);
     }
 
-    /**
-     * Checks the state of all participants in a transaction
-     *
-     * @param transaction the transaction to be checked
-     * @param state       the desired state
-     * @return            are all participant in the desired state?
-     */
-    private boolean checkState(Transaction transaction, State state){
-        ArrayList<SubTransaction> subTransactions = transaction.getSubTransactions();
-        for(SubTransaction subTransaction : subTransactions){
-            int participantId = subTransaction.getParticipantId();
-            State participantState = participants.get(participantId);
-
-            if(participantState != state) return false;
-        }
-
-        return true;
-    }
-
     /**
      * Aborts a transaction
      *
@@ -200,30 +453,36 @@ class Coordinator {
      */
     private void abortTransaction(Transaction transaction){
 
+        //Only the first decision counts, votes and timeouts may race
+        if(!transaction.decide()) return;
+
         //Cancels the timeout
-        Timer timer = timers.get(transaction.getId());
-        timer.cancel();
+        Timeout timeout = timers.remove(transaction.getId());
+        if(timeout != null) timeout.cancel();
+
+        //Participants acknowledge a decision that is not presumed, it stays in the log until they have
+        transaction.setDecision(Vote.ABORT, !protocol.presumes(Vote.ABORT));
+        unacknowledged.put(transaction.getId(), transaction);
 
         //Sends abort-message to each participant
         System.out.println("\nINITIATING GLOBAL ABORT");
         messageHandler.broadcast(Vote.ABORT, transaction);
 
-        //Reads log to know what to undo
-        String log = LogManager.readLog(String.valueOf(id));
-
-        //Writes <T, ABORT> to the log
-        LogManager.writeLog(String.valueOf(id), transaction.getId() + ", ABORT");
+        //Writes <T, ABORT> to the log, unless aborts are presumed
+        if(protocol.logsDecision(Vote.ABORT))
+            LogManager.writeLog(String.valueOf(id), LogRecord.abort(transaction.getId(), 0));
 
-        //TODO: undo(log)
+        //Nothing to undo here, each participant undoes its own update from its log
 
         //Aborts the transaction
         transaction.abort();
 
-        //Writes <T, END> to the log
-        LogManager.writeLog(String.valueOf(id), transaction.getId() + ", END") ;
+        //Writes <T, END> to the log, once every participant has acknowledged the decision
+        acknowledge(transaction, 0);
 
         //Forget phase - removes the transaction
-        transactions.remove(transaction.getId());
+        forgetTransaction(transaction);
+        complete(transaction, Outcome.ABORTED);
     }
 
     /**
@@ -233,42 +492,277 @@ class Coordinator {
      */
     private void commitTransaction(Transaction transaction){
 
+        //Only the first decision counts, votes and timeouts may race
+        if(!transaction.decide()) return;
+
         //Cancels the timeout
-        Timer timer = timers.get(transaction.getId());
-        timer.cancel();
+        Timeout timeout = timers.remove(transaction.getId());
+        if(timeout != null) timeout.cancel();
+
+        //Appends <T, ACCOUNT, BEFORE, AMOUNT> for each sub-transaction, made durable by the commit, so recovery finds the committed balances
+        for(SubTransaction subTransaction : transaction.getSubTransactions()){
+            String name = subTransaction.getAccount().getName();
+            int slot = accounts.slot(name);
+            LogManager.appendLog(String.valueOf(id), LogRecord.delta(transaction.getId(), 0, name,
+                    slot >= 0 ? accounts.getBalance(slot) : 0, subTransaction.getAmount()));
+        }
+
+        /*
+         * Writes <T, COMMIT> to log before anyone is told to commit,
+         * otherwise recovery would presume a committed transaction aborted
+         */
+        LogManager.writeLog(String.valueOf(id), LogRecord.commit(transaction.getId(), 0));
+
+        //Participants acknowledge a decision that is not presumed, it stays in the log until they have
+        transaction.setDecision(Vote.COMMIT, !protocol.presumes(Vote.COMMIT));
+        unacknowledged.put(transaction.getId(), transaction);
 
         //Sends commit-message to each participant
         System.out.println("\nINITIATING GLOBAL COMMIT\n");
         messageHandler.broadcast(Vote.COMMIT, transaction);
 
-        //Writes <T, COMMIT> to log
-        LogManager.writeLog(String.valueOf(id), transaction.getId() + ", COMMIT") ;
+        //Applies the sub-transactions to the committed balances, both at once for snapshots
+        ArrayList<SubTransaction> subTransactions = transaction.getSubTransactions();
+        String[] names = new String[subTransactions.size()];
+        double[] amounts = new double[subTransactions.size()];
+        for(int i = 0; i < names.length; i++){
+            names[i] = subTransactions.get(i).getAccount().getName();
+            amounts[i] = subTransactions.get(i).getAmount();
+        }
+        versions.deposit(names, amounts);
 
         //Commits the transaction
         transaction.commit();
 
-        //Writes <T, END> to log
-        LogManager.writeLog(String.valueOf(id), transaction.getId() + ", END") ;
+        //Writes <T, END> to log, once every participant has acknowledged the decision
+        acknowledge(transaction, 0);
 
         //Forget phase - removes the transaction
+        forgetTransaction(transaction);
+        complete(transaction, Outcome.COMMITTED);
+    }
+
+    /**
+     * Completes the outcome of a transaction, for the one who submitted it
+     *
+     * @param transaction the transaction
+     * @param outcome     the outcome
+     */
+    private void complete(Transaction transaction, Outcome outcome){
+        CompletableFuture<Outcome> future = outcomes.remove(transaction.getId());
+        if(future != null)
+            future.complete(outcome);
+    }
+
+    /**
+     * Records an acknowledgement of the decision of a transaction,
+     * and ends the transaction after the last one
+     *
+     * The coordinator acknowledges the decision as sub-transaction 0
+     * once it is logged, so END always comes after the decision
+     *
+     * @param transaction      the decided transaction
+     * @param subTransactionId the sub-transaction that acknowledges, 0 for the coordinator
+     */
+    private void acknowledge(Transaction transaction, int subTransactionId){
+        if(!transaction.acknowledge(subTransactionId)) return;
+
+        unacknowledged.remove(transaction.getId());
+        endTransaction(transaction, transaction.getDecision());
+    }
+
+    /**
+     * Sends the decision of a transaction again to a participant in doubt
+     *
+     * The decision is known until every participant has acknowledged it, after
+     * that it is read from the log. A transaction the log knows nothing of has
+     * the decision the protocol presumes, or is aborted if nothing is presumed.
+     * An undecided transaction is left alone, its decision is sent once it is made
+     *
+     * @param participantId    the participant in doubt
+     * @param transactionId    the transaction id
+     * @param subTransactionId the sub-transaction id
+     */
+    private void resendDecision(int participantId, int transactionId, int subTransactionId){
+        if(transactions.containsKey(transactionId)) {
+            System.out.println("TRANSACTION #" + transactionId + " IS NOT DECIDED YET\n");
+            return;
+        }
+
+        Vote decision;
+        Transaction transaction = unacknowledged.get(transactionId);
+        if(transaction != null)
+            decision = transaction.getDecision();
+        else {
+            LogRecord record = LogManager.readDecision(String.valueOf(id), transactionId, 0);
+            if(record != null)
+                decision = record.getType() == LogRecord.Type.COMMIT ? Vote.COMMIT : Vote.ABORT;
+            else
+                decision = protocol.presumes(Vote.COMMIT) ? Vote.COMMIT : Vote.ABORT;
+        }
+
+        messageHandler.send(new Decision(transactionId, subTransactionId, decision), participantId);
+    }
+
+    /**
+     * Writes <T, END> to the log
+     *
+     * END is forced in the basic protocol, the other variants do not
+     * force it since recovery ends every decided transaction anyway.
+     * Nothing is written if the decision was not logged. Once END is
+     * written, the decision may be compacted out of the log
+     *
+     * @param transaction the transaction
+     * @param decision    the decision for the transaction
+     */
+    private void endTransaction(Transaction transaction, Vote decision){
+        if(!protocol.logsDecision(decision)) return;
+
+        LogManager.writeLog(String.valueOf(id), LogRecord.end(transaction.getId(), 0), protocol == Protocol.BASIC);
+    }
+
+    /**
+     * Removes a transaction from the ones in flight, and lets a waiting
+     * rebalance go on if it was the last one on the moving accounts
+     *
+     * @param transaction the transaction
+     */
+    private void removeTransaction(Transaction transaction){
         transactions.remove(transaction.getId());
+
+        //Read after the removal, a rebalance that set it before checks the transactions itself
+        CompletableFuture<Void> drained = this.drained;
+        if(drained == null || drained.isDone()) return;
+
+        for(SubTransaction subTransaction : transaction.getSubTransactions())
+            if(migrating.contains(subTransaction.getAccount().getName())) {
+                if(!touchesAny(migrating)) drained.complete(null);
+                return;
+            }
+    }
+
+    /**
+     * Removes a decided transaction, its participants
+     * have one sub-transaction less outstanding
+     *
+     * @param transaction the transaction
+     */
+    private void forgetTransaction(Transaction transaction){
+        removeTransaction(transaction);
+
+        for(SubTransaction subTransaction : transaction.getSubTransactions())
+            scheduler.release(subTransaction.getParticipantId());
+    }
+
+    /**
+     * Chooses the participants for the sub-transactions of a transaction
+     *
+     * @param transaction the transaction
+     * @return            a participant id for each sub-transaction,
+     *                    or null if there are not enough participants
+     */
+    private int[] placeTransaction(Transaction transaction){
+        ArrayList<SubTransaction> subTransactions = transaction.getSubTransactions();
+
+        if(placement == Placement.LOAD)
+            return scheduler.choose(subTransactions.size());
+
+        //Each sub-transaction goes to the owner of its account
+        ShardRing current = ring;
+        int[] owners = new int[subTransactions.size()];
+        for(int i = 0; i < owners.length; i++){
+            owners[i] = current.owner(subTransactions.get(i).getAccount().getName());
+            if(owners[i] < 0) return null;
+        }
+
+        return owners;
     }
 
     /**
-     * Gets initialized participants
-     * These are available for transactions
+     * Recomputes the owners of the accounts after participants have joined
+     * or left, then hands the accounts that move over to their new owners
      *
-     * @return ArrayList of participants that are in
-     *         the INITIALIZED state
+     * Transactions on moving accounts are turned away until the move is done,
+     * and the move waits for the transactions already running on them. The new
+     * owner gets the committed balance, the old owner drops the account
      */
-    private ArrayList<Integer> getInitializedParticipants(){
-        ArrayList<Integer> initializedParticipants = new ArrayList<>();
+    private void rebalance(){
+        rebalanceQueued.set(false);
 
-        //Checks the state of each participant
+        ArrayList<Integer> initialized = new ArrayList<>();
         participants.forEach((id, state) -> {
-            if(state == State.INITIALIZED) initializedParticipants.add(id);
+            if(state == State.INITIALIZED) initialized.add(id);
+        });
+
+        ShardRing current = ring;
+        ShardRing next = new ShardRing(initialized);
+        if(next.getParticipants().equals(current.getParticipants())) return;
+
+        //Finds the accounts that change owner
+        HashMap<String, Integer> moved = new HashMap<>();
+        accounts.forEach((account, balance) -> {
+            int owner = next.owner(account);
+            if(owner != current.owner(account)) moved.put(account, owner);
+        });
+
+        migrating.addAll(moved.keySet());
+
+        //Waits for the transactions on the moving accounts, they end by the timeout at the latest
+        CompletableFuture<Void> drained = new CompletableFuture<>();
+        this.drained = drained;
+        if(!touchesAny(moved.keySet())) drained.complete(null);
+
+        try {
+            drained.get(TIMEOUT + 1000, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException | ExecutionException e){
+            System.out.println("TRANSACTIONS ON MOVING ACCOUNTS DID NOT END - MOVING THEM ANYWAY\n");
+        } catch (InterruptedException e){
+
+            //Shutting down, the accounts stay with their owners
+            migrating.removeAll(moved.keySet());
+            Thread.currentThread().interrupt();
+            return;
+        } finally {
+            this.drained = null;
+        }
+
+        //Groups the moving accounts by their old and new owners
+        HashMap<Integer, ArrayList<Account>> gained = new HashMap<>();
+        HashMap<Integer, ArrayList<String>> dropped = new HashMap<>();
+        moved.forEach((account, owner) -> {
+            gained.computeIfAbsent(owner, id -> new ArrayList<>()).add(new Account(account, accounts.getBalance(accounts.slot(account))));
+
+            int previous = current.owner(account);
+            if(previous >= 0)
+                dropped.computeIfAbsent(previous, id -> new ArrayList<>()).add(account);
         });
 
-        return initializedParticipants;
+        //Sends each participant the accounts it gains and drops
+        HashSet<Integer> changed = new HashSet<>(gained.keySet());
+        changed.addAll(dropped.keySet());
+        for(int participant : changed){
+            Account[] gainedAccounts = gained.getOrDefault(participant, new ArrayList<>()).toArray(new Account[0]);
+            String[] droppedAccounts = dropped.getOrDefault(participant, new ArrayList<>()).toArray(new String[0]);
+            messageHandler.send(new Ownership(gainedAccounts, droppedAccounts), participant);
+        }
+
+        ring = next;
+        migrating.removeAll(moved.keySet());
+
+        System.out.println("REBALANCED: " + initialized.size() + " PARTICIPANTS, " + moved.size() + " ACCOUNTS MOVED\n");
+    }
+
+    /**
+     * Checks if any transaction in flight uses one of the accounts
+     *
+     * @param names the account names
+     * @return      true if a transaction uses one of them
+     */
+    private boolean touchesAny(Set<String> names){
+        for(Transaction transaction : transactions.values())
+            for(SubTransaction subTransaction : transaction.getSubTransactions())
+                if(names.contains(subTransaction.getAccount().getName())) return true;
+
+        return false;
     }
-}
\ No newline at end of file
+}
@@ -1,41 +1,98 @@
 package twophasecommit.coordinator;
 
+import twophasecommit.Flags;
+import twophasecommit.Recovery;
+import twophasecommit.Transaction;
+
+import twophasecommit.constants.Execution;
+import twophasecommit.constants.Placement;
+import twophasecommit.constants.Protocol;
+
 import java.io.IOException;
-import java.net.ServerSocket;
-import java.net.Socket;
 
 /**
  * Does initial setup:
- * - Starts a server that participants can connect to
+ * - Recovers the coordinator log
+ * - Starts a server that participants and clients can connect to
  * - Creates a coordinator for the participants
  * - Creates CommandHandler and MessageHandler for the coordinator
  */
 class Main {
+    /**
+     * Main.
+     *
+     * @param args the args, optionally the flags:
+     *             --protocol basic|presumed-abort|presumed-commit
+     *             --placement shard|load
+     *             --load FILE, accounts to load at startup, see AccountLoader
+     *             --execution inline|platform|virtual, the threads votes, submissions
+     *             and timeouts run on, platform by default, see TransactionExecutor
+     */
     public static void main(String[] args) {
         final int PORT = 1250;
+        final int CLIENT_PORT = 1251;
+
+        Flags flags = new Flags(args);
+
+        Protocol protocol = Protocol.fromFlag(flags.get("protocol", "basic"));
+        if(protocol == null) {
+            System.out.println("INVALID PROTOCOL");
+            return;
+        }
+
+        Placement placement = Placement.fromFlag(flags.get("placement", "shard"));
+        if(placement == null) {
+            System.out.println("INVALID PLACEMENT");
+            return;
+        }
+
+        //Inline would run the forced log writes on the selector threads, holding up every connection on them
+        Execution execution = Execution.fromFlag(flags.get("execution", "platform"));
+        if(execution == null) {
+            System.out.println("INVALID EXECUTION");
+            return;
+        }
 
+        //Closes transactions left unfinished by the last run, new transactions continue after them
+        Recovery recovery = new Recovery(String.valueOf(PORT));
         try {
-            System.out.println("WAITING FOR PARTICIPANTS...\n");
+            recovery.run();
+            Transaction.setTransactionCount(recovery.getLastTransactionId());
+        } catch (IOException e){
+            System.out.println("COULD NOT RECOVER LOG");
+            e.printStackTrace();
+        }
 
-            //Starts a server that the participants can connect to
-            ServerSocket serverSocket = new ServerSocket(PORT);
+        try {
+            System.out.println("WAITING FOR PARTICIPANTS...\n");
 
             //Creates a coordinator
-            Coordinator coordinator = new Coordinator(PORT);
+            Coordinator coordinator = new Coordinator(PORT, protocol, placement, execution);
+
+            //Handles messages from participants, reports to the coordinator
+            MessageHandler messageHandler = new MessageHandler(coordinator);
+            coordinator.setMessageHandler(messageHandler);
+
+            //Takes transactions from clients over the network
+            ClientHandler clientHandler = new ClientHandler(coordinator);
+
+            //Starts a server that the participants and clients can connect to
+            Transport transport = new Transport(PORT, messageHandler, CLIENT_PORT, clientHandler);
+
+            //Loads the accounts before any transaction can use them
+            String load = flags.get("load", null);
+            if(load != null)
+                coordinator.loadAccounts(load);
+
+            //Sets the balances committed before the restart, over the ones loaded from the file
+            coordinator.restoreAccounts(recovery.getBalances());
 
             //Listens and handles commands from the user, reports to coordinator
             CommandHandler commandHandler = new CommandHandler(coordinator);
             commandHandler.init();
 
-            //Listens and handles messages from participants, reports to the coordinator
-            MessageHandler messageHandler = new MessageHandler(coordinator);
-            coordinator.setMessageHandler(messageHandler);
-
-            //Accepts participants
-            while (true) {
-                Socket connection = serverSocket.accept();
-                messageHandler.addConnection(connection);
-            }
+            //Accepts participants and clients, and listens for their messages
+            transport.start();
         } catch (IOException e) {
             System.out.println("COULD NOT START SERVER");
             e.printStackTrace();
@@ -1,23 +1,25 @@
 package twophasecommit.coordinator;
 
+import twophasecommit.Decision;
+import twophasecommit.MessageCodec;
 import twophasecommit.SubTransaction;
 import twophasecommit.Transaction;
 import twophasecommit.constants.State;
 import twophasecommit.constants.Vote;
 
-import java.io.IOException;
-import java.io.ObjectOutputStream;
-import java.net.Socket;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Handles messages from the participants
  */
-class MessageHandler {
+class MessageHandler implements Transport.Handler {
 
-    //List of ObjectOutputStreams used for communicating with participants
-    private HashMap<Integer, ObjectOutputStream> streams = new HashMap<>();
+    /*
+     * List of connections used for communicating with participants
+     * Needs to be ConcurrentHashMap because of multithreading
+     */
+    private ConcurrentHashMap<Integer, Transport.Connection> connections = new ConcurrentHashMap<>();
 
     //Coordinator to communicate report to
     private Coordinator coordinator;
@@ -31,42 +33,59 @@ class MessageHandler {
      *
      * @param connection the connection to be added
      */
-    void addConnection(Socket connection){
-        int participantId = connection.getPort();
-
-        //Adds ObjectOutputStream to list
-        try {
-            ObjectOutputStream stream = new ObjectOutputStream(connection.getOutputStream());
-            streams.put(participantId, stream);
-        } catch (IOException e){
-            e.printStackTrace();
-        }
+    public void addConnection(Transport.Connection connection){
+        int participantId = connection.getId();
+        connections.put(participantId, connection);
 
         //Sends greeting message to participant
         send("CONNECTED TO COORDINATOR #" + coordinator.getId(), participantId);
-
-        //Starts a message listener that continually listens for messages from this participant
-        MessageListener listener = new MessageListener(connection, this);
-        listener.start();
     }
 
     /**
-     * Remove participant connection
+     * Remove participant connection, after it is closed
      *
      * @param connection the connection to be removed
      */
-    void removeConnection(Socket connection){
-        int id = connection.getPort();
+    public void removeConnection(Transport.Connection connection){
+        int id = connection.getId();
 
-        //Remove the stream and set the state to disconnected
-        streams.remove(id);
+        //Remove the connection and set the state to disconnected
+        connections.remove(id);
         coordinator.setParticipantState(State.DISCONNECTED, id);
+    }
 
-        //Close the connection
-        try {
-            connection.close();
-        } catch (IOException e){
-            e.printStackTrace();
+    //A participant may be sent many accounts in one rebalance, and sends the same size back
+    public int getMaxFrameSize(){
+        return MessageCodec.MAX_FRAME_SIZE;
+    }
+
+    /**
+     * Handles a frame from a participant
+     *
+     * @param connection the connection of the participant
+     * @param type       the type of the frame
+     * @param codec      the codec that decoded it, holding its fields
+     */
+    public void handleMessage(Transport.Connection connection, MessageCodec.Type type, MessageCodec codec){
+        switch(type){
+
+            //Vote from the participant for a sub-transaction, after the earlier steps of the transaction
+            case VOTE:
+                Vote vote = codec.getVote();
+                int id = codec.getParticipantId();
+                int transactionId = codec.getTransactionId();
+                int subTransactionId = codec.getSubTransactionId();
+
+                coordinator.getExecutor().execute(transactionId, () -> handleVote(vote, id, transactionId, subTransactionId));
+                break;
+
+            //State of the participant, or of one of its sub-transactions
+            case STATE:
+                if(codec.getSubTransactionId() != 0)
+                    handleState(codec.getState(), codec.getParticipantId(), codec.getTransactionId(), codec.getSubTransactionId());
+                else
+                    handleState(codec.getState(), codec.getParticipantId());
+                break;
         }
     }
 
@@ -82,47 +101,58 @@ class MessageHandler {
         coordinator.setParticipantState(state, id);
     }
 
+    /**
+     * Handles state changes of a sub-transaction
+     *
+     * @param state            the state of the sub-transaction
+     * @param id               the participant id
+     * @param transactionId    the transaction id
+     * @param subTransactionId the sub-transaction id
+     */
+    void handleState(State state, int id, int transactionId, int subTransactionId){
+        coordinator.setTransactionState(state, id, transactionId, subTransactionId);
+    }
+
     /**
      * Handles votes from the participants
      *
-     * @param vote          the vote from the participant
-     * @param id            the participant id
-     * @param transactionId the transaction id
+     * @param vote             the vote from the participant
+     * @param id               the participant id
+     * @param transactionId    the transaction id
+     * @param subTransactionId the sub-transaction id
      */
-    void handleVote(Vote vote, int id, int transactionId){
+    void handleVote(Vote vote, int id, int transactionId, int subTransactionId){
 
         //Handle the vote in the coordinator
-        coordinator.handleVote(vote, id, transactionId);
+        coordinator.handleVote(vote, id, transactionId, subTransactionId);
     }
 
     /**
-     * Sends an object (i.e. message, transaction) to a participant
+     * Sends an object (i.e. message, transaction) to a participant,
+     * encoded by MessageCodec. Only queues it and returns, the
+     * transport writes it, so a slow participant holds up no one else
      *
      * @param object the object to be sent
      * @param id     the id of the participant receiver
      */
     void send(Object object, int id){
-        try {
-            ObjectOutputStream stream = streams.get(id);
-
-            if(stream != null)
-                stream.writeObject(object);
-        } catch (IOException e){
-            e.printStackTrace();
-        }
+        Transport.Connection connection = connections.get(id);
+        if(connection != null)
+            connection.send(object);
     }
 
     /**
-     * Broadcasts an object (i.e. message) to all participants in a transaction
+     * Broadcasts a decision to all participants in a transaction,
+     * one for each sub-transaction
      *
-     * @param object      the object to be sent
+     * @param decision    the decision
      * @param transaction the transaction the participants belong to
      */
-    void broadcast(Object object, Transaction transaction){
+    void broadcast(Vote decision, Transaction transaction){
         ArrayList<SubTransaction> subTransactions = transaction.getSubTransactions();
 
         for(SubTransaction subTransaction : subTransactions)
-            send(object, subTransaction.getParticipantId());
+            send(new Decision(transaction.getId(), subTransaction.getSubTransactionId(), decision), subTransaction.getParticipantId());
 
     }
 
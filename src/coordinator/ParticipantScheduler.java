@@ -0,0 +1,194 @@
+package twophasecommit.coordinator;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Places sub-transactions on participants
+ *
+ * Ready participants are kept in an array, so a participant can be
+ * sampled at random in O(1). Each sub-transaction samples two of them
+ * and takes the one with the lower load (power of two choices), where
+ * the load is the number of outstanding sub-transactions weighted by
+ * the recent vote latency of the participant. This spreads the work
+ * evenly without looking at every participant
+ *
+ * Participants join and leave rarely, so the array is replaced on
+ * each change and sampling never takes a lock
+ */
+class ParticipantScheduler {
+
+    //Weight of the newest sample in the latency average, out of 8
+    private final static int LATENCY_WEIGHT = 2;
+
+    //Load of a single participant
+    private static class Load {
+        private final int id;
+
+        //Number of sub-transactions placed on the participant and not yet decided
+        private final AtomicInteger outstanding = new AtomicInteger();
+
+        //Moving average of the time (ns) from prepare to vote, 0 until the first vote
+        private final AtomicLong latency = new AtomicLong();
+
+        private Load(int id){
+            this.id = id;
+        }
+
+        //Expected time until a new sub-transaction is done
+        private long score(){
+            return (outstanding.get() + 1) * Math.max(1, latency.get());
+        }
+    }
+
+    //Participants that are ready for sub-transactions
+    private volatile Load[] ready = new Load[0];
+
+    //A map of the same participants on the form <id, load>
+    private final ConcurrentHashMap<Integer, Load> loads = new ConcurrentHashMap<>();
+
+    /**
+     * Adds a participant that is ready for sub-transactions
+     *
+     * @param id the participant id
+     */
+    synchronized void add(int id){
+        Load load = new Load(id);
+        if(loads.putIfAbsent(id, load) != null) return;
+
+        Load[] next = Arrays.copyOf(ready, ready.length + 1);
+        next[ready.length] = load;
+        ready = next;
+    }
+
+    /**
+     * Removes a participant, it gets no more sub-transactions
+     *
+     * @param id the participant id
+     */
+    synchronized void remove(int id){
+        Load load = loads.remove(id);
+        if(load == null) return;
+
+        Load[] current = ready;
+        for(int i = 0; i < current.length; i++){
+            if(current[i] != load) continue;
+
+            Load[] next = Arrays.copyOf(current, current.length - 1);
+            if(i < next.length) next[i] = current[current.length - 1];
+            ready = next;
+            return;
+        }
+    }
+
+    /**
+     * Gets the number of ready participants
+     *
+     * @return the number of participants
+     */
+    int size(){
+        return ready.length;
+    }
+
+    /**
+     * Chooses different participants for the sub-transactions of a transaction,
+     * and counts a sub-transaction as outstanding on each of them
+     *
+     * @param count the number of participants needed
+     * @return      the participant ids, or null if there are
+     *              not enough ready participants
+     */
+    int[] choose(int count){
+        Load[] current = ready;
+        if(current.length < count) return null;
+
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        Load[] chosen = new Load[count];
+
+        for(int i = 0; i < count; i++){
+            Load a = sample(current, chosen, i, random);
+            Load b = sample(current, chosen, i, random);
+            chosen[i] = b != null && (a == null || b.score() < a.score()) ? b : a;
+
+            //Every sample was taken, falls back to the first participant not chosen
+            if(chosen[i] == null)
+                for(Load load : current)
+                    if(!contains(chosen, i, load)) {
+                        chosen[i] = load;
+                        break;
+                    }
+        }
+
+        int[] ids = new int[count];
+        for(int i = 0; i < count; i++){
+            chosen[i].outstanding.incrementAndGet();
+            ids[i] = chosen[i].id;
+        }
+
+        return ids;
+    }
+
+    /**
+     * Records how long a participant took to vote
+     *
+     * @param id      the participant id
+     * @param latency the time (ns) from prepare to vote
+     */
+    void recordLatency(int id, long latency){
+        Load load = loads.get(id);
+        if(load == null) return;
+
+        load.latency.getAndUpdate(average -> average == 0 ? latency : average + (latency - average) * LATENCY_WEIGHT / 8);
+    }
+
+    /**
+     * Releases a sub-transaction once it is decided
+     *
+     * @param id the participant id
+     */
+    void release(int id){
+        Load load = loads.get(id);
+        if(load != null)
+            load.outstanding.updateAndGet(outstanding -> Math.max(0, outstanding - 1));
+    }
+
+    /**
+     * Gets the number of outstanding sub-transactions on a participant
+     *
+     * @param id the participant id
+     * @return   the number of sub-transactions, -1 if the participant is not ready
+     */
+    int getOutstanding(int id){
+        Load load = loads.get(id);
+        return load != null ? load.outstanding.get() : -1;
+    }
+
+    /**
+     * Samples a participant that has not been chosen yet, a few
+     * attempts are made so small clusters still find one
+     *
+     * @param current the ready participants
+     * @param chosen  the participants chosen so far
+     * @param count   the number of participants chosen so far
+     * @param random  the random generator
+     * @return        the participant, or null if none was found
+     */
+    private static Load sample(Load[] current, Load[] chosen, int count, ThreadLocalRandom random){
+        for(int attempt = 0; attempt < 4; attempt++){
+            Load load = current[random.nextInt(current.length)];
+            if(!contains(chosen, count, load)) return load;
+        }
+
+        return null;
+    }
+
+    private static boolean contains(Load[] chosen, int count, Load load){
+        for(int i = 0; i < count; i++)
+            if(chosen[i] == load) return true;
+
+        return false;
+    }
+}
@@ -0,0 +1,111 @@
+package twophasecommit.coordinator;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Consistent hashing of accounts onto participants
+ *
+ * Each participant is placed on a ring of 64-bit hashes at many
+ * points (virtual nodes), and an account is owned by the first
+ * point at or after the hash of its name. When a participant joins
+ * or leaves, only the accounts next to its points change owner
+ *
+ * A ring never changes once built, a new one is built for every
+ * change in the participants
+ */
+class ShardRing {
+
+    //Points on the ring per participant, more points give a more even spread
+    private final static int VIRTUAL_NODES = 128;
+
+    //The points in order, and the participant at each point
+    private final long[] points;
+    private final int[] owners;
+
+    //The participants on the ring
+    private final Set<Integer> participants;
+
+    /**
+     * Builds a ring
+     *
+     * @param participants the participant ids
+     */
+    ShardRing(Collection<Integer> participants){
+        Integer[] ids = participants.toArray(new Integer[0]);
+        this.participants = new HashSet<>(Arrays.asList(ids));
+
+        int size = ids.length * VIRTUAL_NODES;
+        long[] hashes = new long[size];
+
+        int i = 0;
+        for(int participant : ids)
+            for(int node = 0; node < VIRTUAL_NODES; node++){
+                hashes[i] = hash(participant + "#" + node);
+                i++;
+            }
+
+        //Sorts the points, keeping track of which participant each came from
+        Integer[] order = new Integer[size];
+        for(i = 0; i < size; i++)
+            order[i] = i;
+        Arrays.sort(order, (a, b) -> Long.compareUnsigned(hashes[a], hashes[b]));
+
+        points = new long[size];
+        owners = new int[size];
+        for(i = 0; i < size; i++){
+            points[i] = hashes[order[i]];
+            owners[i] = ids[order[i] / VIRTUAL_NODES];
+        }
+    }
+
+    Set<Integer> getParticipants(){
+        return participants;
+    }
+
+    /**
+     * Gets the owner of an account
+     *
+     * @param account the account name
+     * @return        the participant id, or -1 if the ring is empty
+     */
+    int owner(String account){
+        if(points.length == 0) return -1;
+
+        long hash = hash(account);
+
+        //Binary search for the first point at or after the hash, wrapping around
+        int low = 0;
+        int high = points.length;
+        while(low < high){
+            int middle = (low + high) >>> 1;
+            if(Long.compareUnsigned(points[middle], hash) < 0) low = middle + 1;
+            else high = middle;
+        }
+
+        return owners[low == points.length ? 0 : low];
+    }
+
+    /**
+     * Hashes a string, FNV-1a over the UTF-8 bytes
+     * followed by a final mix to spread nearby names
+     *
+     * @param key the string
+     * @return    the hash
+     */
+    private static long hash(String key){
+        long hash = 0xcbf29ce484222325L;
+        for(byte b : key.getBytes(StandardCharsets.UTF_8)){
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
@@ -0,0 +1,356 @@
+package twophasecommit.coordinator;
+
+import twophasecommit.MessageCodec;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Non-blocking network layer of the coordinator
+ *
+ * A few selector threads serve every participant. The first one also
+ * accepts connections, and each connection is handed to one of them
+ * in turn. A selector thread reads the frames its participants send
+ * and writes the messages queued for them, so the number of
+ * participants is bounded by file descriptors rather than threads
+ *
+ * Frames are handed to the handler on the selector thread, so handlers
+ * must not block. The coordinator hands votes and submissions on to its
+ * TransactionExecutor, since they wait for forced log writes
+ *
+ * Clients that submit transactions connect to a port of their own,
+ * and are served by the same selector threads
+ */
+class Transport {
+
+    /**
+     * Handles the connections accepted on one port
+     */
+    interface Handler {
+
+        //A connection has been accepted, nothing has been read from it yet
+        void addConnection(Connection connection);
+
+        //A connection has been closed
+        void removeConnection(Connection connection);
+
+        /**
+         * Handles a frame
+         *
+         * @param connection the connection it came from
+         * @param type       the type of the frame
+         * @param codec      the codec that decoded it, holding its fields
+         */
+        void handleMessage(Connection connection, MessageCodec.Type type, MessageCodec codec);
+
+        //Largest frame taken from a connection, a connection that sends a larger one is closed
+        int getMaxFrameSize();
+    }
+
+    //Number of selector threads
+    private final static int SELECTORS = Math.max(1, Integer.getInteger("transport.selectors",
+            Math.min(4, Runtime.getRuntime().availableProcessors())));
+
+    //Size of the buffer each connection reads into, it grows to fit larger frames
+    private final static int READ_BUFFER_SIZE = 8192;
+
+    //Messages that may wait for a connection before it is disconnected
+    private final static int MAX_QUEUED = Integer.getInteger("transport.maxQueued", 100000);
+
+    //Most bytes written to a connection at once
+    private final static int BATCH_SIZE = Math.max(256, Integer.getInteger("transport.batchSize", 16384));
+
+    /**
+     * A participant or client connection
+     *
+     * Messages sent to the participant go on a queue, and are encoded
+     * and written by the selector thread of the connection, so a sender
+     * never touches the socket. A participant that stops reading only
+     * fills its own queue, and is disconnected once the queue is full
+     *
+     * Everything queued by the time the writer runs is encoded into one
+     * batch of at most BATCH_SIZE bytes and written at once. The writer
+     * runs on the next pass of the selector, so the decisions that follow
+     * from the votes read in one pass go out together, while at low load
+     * a batch holds a single message and adds no delay
+     */
+    class Connection {
+        private final SocketChannel channel;
+        private final Loop loop;
+        private final Handler handler;
+        private final int id;
+        private SelectionKey key;
+        private volatile boolean closed = false;
+
+        //Bytes read and not yet decoded, and the codecs for each direction
+        private ByteBuffer input = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        private final MessageCodec decoder;
+        private final MessageCodec encoder = new MessageCodec();
+
+        //Messages waiting to be written, and whether the writer is scheduled or waiting for the socket
+        private final ConcurrentLinkedQueue<Object> outbound = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger queued = new AtomicInteger();
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+
+        //The batch being written, and a frame that did not fit in the last batch, only used by the selector thread
+        private final ByteBuffer batch = ByteBuffer.allocate(BATCH_SIZE);
+        private ByteBuffer output;
+        private ByteBuffer carried;
+
+        private Connection(SocketChannel channel, Loop loop, Handler handler) throws IOException {
+            this.channel = channel;
+            this.loop = loop;
+            this.handler = handler;
+            this.decoder = new MessageCodec(handler.getMaxFrameSize());
+            this.id = ((InetSocketAddress) channel.getRemoteAddress()).getPort();
+        }
+
+        int getId(){
+            return id;
+        }
+
+        /**
+         * Queues a message for the other end, returns at once
+         *
+         * @param message a SubTransaction, Decision, Ownership, Reply or String
+         */
+        void send(Object message){
+            if(closed) return;
+
+            if(queued.incrementAndGet() > MAX_QUEUED) {
+                System.out.println("CONNECTION #" + id + " IS NOT READING - DISCONNECTING");
+                loop.execute(this::close);
+                return;
+            }
+
+            outbound.add(message);
+            if(scheduled.compareAndSet(false, true))
+                loop.execute(this::write);
+        }
+
+        //Writes queued messages in batches until the queue is empty or the socket is full
+        private void write(){
+            if(closed) return;
+
+            try {
+                while(true){
+                    if(output == null || !output.hasRemaining()) {
+                        output = fill();
+
+                        if(output == null) {
+                            key.interestOps(SelectionKey.OP_READ);
+                            scheduled.set(false);
+
+                            //A message may have been queued before the writer was unscheduled
+                            if(outbound.isEmpty() || !scheduled.compareAndSet(false, true)) return;
+                            continue;
+                        }
+                    }
+
+                    channel.write(output);
+
+                    //Goes on once the socket can take more, the writer stays scheduled until then
+                    if(output.hasRemaining()) {
+                        key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                        return;
+                    }
+                }
+            } catch (IOException e){
+                close();
+            }
+        }
+
+        /**
+         * Encodes queued messages into the batch until it is full
+         *
+         * @return the batch, a frame larger than a whole batch on its own,
+         *         or null if nothing is queued
+         */
+        private ByteBuffer fill(){
+            batch.clear();
+
+            while(true){
+                if(carried == null) {
+                    Object message = outbound.poll();
+                    if(message == null) break;
+
+                    queued.decrementAndGet();
+                    carried = encoder.encode(message);
+                }
+
+                //The frame goes in the next batch
+                if(carried.remaining() > batch.remaining()) {
+                    if(batch.position() > 0) break;
+
+                    ByteBuffer frame = carried;
+                    carried = null;
+                    return frame;
+                }
+
+                batch.put(carried);
+                carried = null;
+            }
+
+            return batch.position() > 0 ? batch.flip() : null;
+        }
+
+        //Reads what has arrived, and handles every whole frame
+        private void read() throws IOException {
+            if(channel.read(input) < 0) throw new IOException("CONNECTION CLOSED");
+
+            input.flip();
+            for(MessageCodec.Type type = decoder.decode(input); type != null; type = decoder.decode(input))
+                handler.handleMessage(this, type, decoder);
+
+            //Makes room for a frame larger than the buffer, the decoder has already turned down one too large
+            int size = decoder.frameSize(input);
+            input.compact();
+            if(size > input.capacity())
+                input = ByteBuffer.allocate(Math.max(size, input.capacity() * 2)).put(input.flip());
+        }
+
+        //Closes the connection, on the selector thread
+        private void close(){
+            if(closed) return;
+            closed = true;
+            outbound.clear();
+
+            if(key != null) key.cancel();
+            try {
+                channel.close();
+            } catch (IOException e){
+                e.printStackTrace();
+            }
+
+            handler.removeConnection(this);
+        }
+    }
+
+    //A selector thread
+    private class Loop extends Thread {
+        private final Selector selector;
+
+        //Work handed over by other threads, run by the selector thread
+        private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+        private Loop(int index) throws IOException {
+            super("transport-" + index);
+            this.selector = Selector.open();
+        }
+
+        private void execute(Runnable task){
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        public void run(){
+            while(true){
+                try {
+                    selector.select();
+
+                    for(Runnable task = tasks.poll(); task != null; task = tasks.poll())
+                        task.run();
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while(keys.hasNext()){
+                        SelectionKey key = keys.next();
+                        keys.remove();
+
+                        if(key.isValid() && key.isAcceptable())
+                            accept((ServerSocketChannel) key.channel(), (Handler) key.attachment());
+                        else
+                            handle(key);
+                    }
+                } catch (IOException e){
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        private void handle(SelectionKey key){
+            Connection connection = (Connection) key.attachment();
+
+            try {
+                if(key.isValid() && key.isReadable()) connection.read();
+                if(key.isValid() && key.isWritable()) connection.write();
+            } catch (IOException e){
+                //The other end disconnected, or sent something invalid
+                connection.close();
+            } catch (RuntimeException e){
+                //Keeps serving the other connections
+                e.printStackTrace();
+                connection.close();
+            }
+        }
+    }
+
+    private final Loop[] loops = new Loop[SELECTORS];
+    private int next = 0;
+
+    /**
+     * Creates the selector threads, and listens on the ports
+     *
+     * @param port          the port participants connect to
+     * @param handler       handles the participants
+     * @param clientPort    the port clients connect to
+     * @param clientHandler handles the clients
+     * @throws IOException if a port can not be listened on
+     */
+    Transport(int port, Handler handler, int clientPort, Handler clientHandler) throws IOException {
+        for(int i = 0; i < loops.length; i++)
+            loops[i] = new Loop(i);
+
+        listen(port, handler);
+        listen(clientPort, clientHandler);
+    }
+
+    //Accepts connections on a port, on the first selector thread
+    private void listen(int port, Handler handler) throws IOException {
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(port));
+        server.configureBlocking(false);
+        server.register(loops[0].selector, SelectionKey.OP_ACCEPT, handler);
+    }
+
+    //Starts the selector threads
+    void start(){
+        for(Loop loop : loops)
+            loop.start();
+    }
+
+    //Accepts the participants or clients waiting, on the first selector thread
+    private void accept(ServerSocketChannel server, Handler handler) throws IOException {
+        while(true){
+            SocketChannel channel = server.accept();
+            if(channel == null) return;
+
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+
+            Loop loop = loops[next++ % loops.length];
+            Connection connection = new Connection(channel, loop, handler);
+
+            //Registers with its selector before anything is sent or read
+            loop.execute(() -> {
+                try {
+                    connection.key = channel.register(loop.selector, SelectionKey.OP_READ, connection);
+                } catch (IOException e){
+                    connection.close();
+                    return;
+                }
+
+                handler.addConnection(connection);
+            });
+        }
+    }
+}
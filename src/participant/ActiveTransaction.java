@@ -0,0 +1,205 @@
+package twophasecommit.participant;
+
+import twophasecommit.LogRecord;
+import twophasecommit.SubTransaction;
+import twophasecommit.TimeoutScheduler.Timeout;
+import twophasecommit.constants.State;
+import twophasecommit.constants.Vote;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A sub-transaction the participant is working on,
+ * with its own state and timeout
+ */
+class ActiveTransaction {
+    private SubTransaction subTransaction;
+
+    //State of the sub-transaction
+    private volatile State state = State.PREPARING;
+
+    //Timeout while waiting for the decision
+    private volatile Timeout timeout;
+
+    //Slot of the account, and the version read by an optimistic sub-transaction
+    private int slot;
+    private int version;
+
+    //Has an optimistic sub-transaction reserved the account for its write?
+    private boolean reserved = false;
+
+    //Is the account hot, so the update is an escrow delta applied at commit?
+    private boolean hot = false;
+
+    //Has the sub-transaction been committed or aborted?
+    private AtomicBoolean finished = new AtomicBoolean();
+
+    //Has an older transaction wounded it, and has it voted to commit, so it can no longer be wounded?
+    private boolean wounded = false;
+    private boolean committing = false;
+
+    //Has it logged PREPARED? Only the coordinator can decide it then
+    private volatile boolean prepared = false;
+
+    //The update it has logged, undone if it aborts
+    private LogRecord update;
+
+    /*
+     * Held while the update is executed, validated or undone, which waits for the log.
+     * Not a monitor, a virtual thread waiting inside one would pin its carrier thread
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+
+    ActiveTransaction(SubTransaction subTransaction){
+        this.subTransaction = subTransaction;
+    }
+
+    SubTransaction getSubTransaction(){
+        return subTransaction;
+    }
+
+    String getId(){
+        return subTransaction.getId();
+    }
+
+    int getTransactionId(){
+        return subTransaction.getTransactionId();
+    }
+
+    int getSubTransactionId(){
+        return subTransaction.getSubTransactionId();
+    }
+
+    State getState(){
+        return state;
+    }
+
+    void setState(State state){
+        this.state = state;
+    }
+
+    /**
+     * Votes, moving from VOTING to WAITING. A wounded
+     * sub-transaction votes to abort whatever the vote
+     *
+     * @param vote the vote
+     * @return     the vote to send, or null if the sub-transaction is not voting
+     */
+    synchronized Vote vote(Vote vote){
+        if(state != State.VOTING) return null;
+        state = State.WAITING;
+
+        if(wounded) vote = Vote.ABORT;
+        committing = vote == Vote.COMMIT;
+        return vote;
+    }
+
+    /**
+     * Wounds the sub-transaction for an older transaction that needs its lock
+     *
+     * @return false if it has voted to commit and can not be aborted
+     */
+    synchronized boolean wound(){
+        if(committing) return false;
+
+        wounded = true;
+        return true;
+    }
+
+    synchronized boolean isWounded(){
+        return wounded;
+    }
+
+    /**
+     * Marks the sub-transaction as prepared, once PREPARED is
+     * in the log. It can no longer be wounded or time out
+     */
+    synchronized void prepare(){
+        committing = true;
+        prepared = true;
+    }
+
+    boolean isPrepared(){
+        return prepared;
+    }
+
+    LogRecord getUpdate(){
+        return update;
+    }
+
+    void setUpdate(LogRecord update){
+        this.update = update;
+    }
+
+    void lock(){
+        lock.lock();
+    }
+
+    void unlock(){
+        lock.unlock();
+    }
+
+    int getSlot(){
+        return slot;
+    }
+
+    int getVersion(){
+        return version;
+    }
+
+    /**
+     * Records the account version an optimistic sub-transaction has read
+     *
+     * @param slot    the slot of the account
+     * @param version the version
+     */
+    void read(int slot, int version){
+        this.slot = slot;
+        this.version = version;
+    }
+
+    /**
+     * Marks the sub-transaction as an escrow delta on a hot account
+     *
+     * @param slot the slot of the account
+     */
+    void hold(int slot){
+        this.slot = slot;
+        this.hot = true;
+    }
+
+    boolean isHot(){
+        return hot;
+    }
+
+    boolean isReserved(){
+        return reserved;
+    }
+
+    void setReserved(boolean reserved){
+        this.reserved = reserved;
+    }
+
+    Timeout getTimeout(){
+        return timeout;
+    }
+
+    void setTimeout(Timeout timeout){
+        this.timeout = timeout;
+    }
+
+    /**
+     * Marks the sub-transaction as committed or aborted
+     *
+     * @return true for the first caller only, a decision
+     *         and a timeout may race to finish it
+     */
+    boolean finish(){
+        return finished.compareAndSet(false, true);
+    }
+
+    boolean isFinished(){
+        return finished.get();
+    }
+}
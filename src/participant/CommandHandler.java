@@ -34,15 +34,18 @@ class CommandHandler {
                 System.out.println(
                                   "\n COMMAND           DESC"
                                 + "\n- STATE      DISPLAY CURRENT STATE"
-                                + "\n- YES        VOTE YES"
-                                + "\n- NO         VOTE NO"
+                                + "\n- YES [ID]   VOTE YES, ID IS A TRANSACTION (12) OR A SUB-TRANSACTION (12_1)"
+                                + "\n- NO [ID]    VOTE NO"
                                 + "\n- ID         DISPLAY PARTICIPANT ID"
                                 + "\n- HELP       DISPLAY HELP\n");
                 break;
 
-            //Displays participant state
+            //Displays participant state, and the state of each active sub-transaction
             case STATE:
-                System.out.println("STATE: " + participant.getState() + "\n");
+                System.out.println("STATE: " + participant.getState());
+                for(ActiveTransaction transaction : participant.getTransactions())
+                    System.out.println("SUB-TRANSACTION #" + transaction.getId() + ": " + transaction.getState());
+                System.out.println();
                 break;
 
             //Displays participant ID
@@ -57,8 +60,9 @@ class CommandHandler {
      * to participant
      *
      * @param vote the vote
+     * @param id   the transaction or sub-transaction id, null if none was given
      */
-    void handleVote(Vote vote) {
-        participant.handleVote(vote);
+    void handleVote(Vote vote, String id) {
+        participant.handleVote(vote, id);
     }
 }
\ No newline at end of file
@@ -24,15 +24,16 @@ class CommandListener extends Thread{
         String line = scanner.nextLine();
         while(line != null) {
 
-            //Converts message into Command or Vote
+            //Converts message into Command or Vote, a vote may be followed by an id
+            String[] words = line.trim().split("\\s+");
             Command command = convertToCommand(line);
-            Vote vote = convertToVote(line);
+            Vote vote = convertToVote(words[0]);
 
             //Passes on to CommandHandler as Command or Vote
             if(command == Command.HELP || command == Command.STATE || command == Command.ID)
                 handler.handleCommand(command);
-            else if(vote != null)
-                handler.handleVote(vote);
+            else if(vote != null && words.length <= 2)
+                handler.handleVote(vote, words.length > 1 ? words[1] : null);
             else
                 System.out.println("INVALID COMMAND - TYPE 'HELP'\n");
 
@@ -0,0 +1,83 @@
+package twophasecommit.participant;
+
+import twophasecommit.AccountStore;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Escrow for hot accounts, accounts that take part in most transfers
+ *
+ * Deposits and withdrawals commute, so sub-transactions on a hot account
+ * neither lock it nor validate a version. A withdrawal holds back its
+ * amount at prepare, as long as the balance covers it and every other
+ * withdrawal held back, and a deposit is never counted until it commits.
+ * The account can therefore never be overdrawn, whatever the decisions,
+ * and the amounts are simply added to the balance at commit
+ */
+class Escrow {
+
+    //Names of the hot accounts
+    private final Set<String> hot;
+
+    //A map of amounts held back by withdrawals not yet decided, on the form <account, hundredths>
+    private final ConcurrentHashMap<String, AtomicLong> held = new ConcurrentHashMap<>();
+
+    Escrow(Set<String> hot){
+        this.hot = hot;
+    }
+
+    boolean isHot(String account){
+        return hot.contains(account);
+    }
+
+    /**
+     * Holds back a withdrawal, deposits are always accepted
+     *
+     * @param accounts the account store
+     * @param slot     the slot of the account
+     * @param account  the account name
+     * @param cents    the amount in hundredths, negative for a withdrawal
+     * @return         false if the balance does not cover the withdrawal
+     */
+    boolean reserve(AccountStore accounts, int slot, String account, long cents){
+        if(cents >= 0) return true;
+
+        AtomicLong amount = held.computeIfAbsent(account, name -> new AtomicLong());
+        while(true){
+            long current = amount.get();
+
+            /*
+             * A commit takes the money from the balance before it gives back what it
+             * held, so for a moment it is counted twice, which is never too much
+             */
+            if(accounts.getCents(slot) - current + cents < 0) return false;
+            if(amount.compareAndSet(current, current - cents)) return true;
+        }
+    }
+
+    /**
+     * Holds back a withdrawal that was prepared before a restart, whatever
+     * the balance, since the coordinator may already have committed it
+     *
+     * @param account the account name
+     * @param cents   the amount in hundredths, negative for a withdrawal
+     */
+    void restore(String account, long cents){
+        if(cents < 0) held.computeIfAbsent(account, name -> new AtomicLong()).addAndGet(-cents);
+    }
+
+    /**
+     * Gives back what a withdrawal held, once it is committed or aborted
+     *
+     * @param account the account name
+     * @param cents   the amount in hundredths, negative for a withdrawal
+     */
+    void release(String account, long cents){
+        if(cents >= 0) return;
+
+        AtomicLong amount = held.get(account);
+        if(amount != null) amount.addAndGet(cents);
+    }
+}
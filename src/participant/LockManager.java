@@ -0,0 +1,219 @@
+package twophasecommit.participant;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Shared and exclusive locks on accounts
+ *
+ * Locks are taken when a sub-transaction is prepared and held until it
+ * is committed or aborted (strict two-phase locking). Deadlocks are
+ * prevented with wound-wait, where the transaction id is its age: a
+ * younger transaction waits for older ones, and an older transaction
+ * wounds the younger ones in its way, which then abort. A transaction
+ * that has voted to commit can not be wounded, so an older transaction
+ * that runs into one dies instead. Waits therefore only go from younger
+ * to older transactions, or to transactions that are being aborted, and
+ * can never form a cycle, also across participants
+ *
+ * A transaction holds a lock once for each time it is granted, e.g. for
+ * both sub-transactions of a transfer from an account to itself, and
+ * keeps it until it has released it as many times
+ *
+ * The table is split in stripes by the hash of the account, each with its
+ * own monitor, so locks on accounts in different stripes never contend.
+ * A request that has to wait does not block the caller, it is queued and
+ * its callback is run by the thread that releases the lock
+ */
+class LockManager {
+
+    //Number of stripes, can be overridden with -Dlocks.stripes
+    private final static int STRIPES = Integer.highestOneBit(Math.max(1, Integer.getInteger("locks.stripes", 64)));
+
+    //Lock modes
+    enum Mode {
+        SHARED,
+        EXCLUSIVE
+    }
+
+    //Outcomes of a request
+    enum Result {
+        GRANTED,
+        WAITING,
+        DIED
+    }
+
+    //A request for a lock, kept while it waits for and holds the lock
+    private static class Request {
+        private final int owner;
+        private final Mode mode;
+        private final Runnable granted;
+        private final BooleanSupplier wound;
+        private final Runnable wounded;
+
+        //Number of times the owner has been granted the lock and not released it
+        private int count = 1;
+
+        private Request(int owner, Mode mode, Runnable granted, BooleanSupplier wound, Runnable wounded){
+            this.owner = owner;
+            this.mode = mode;
+            this.granted = granted;
+            this.wound = wound;
+            this.wounded = wounded;
+        }
+    }
+
+    //The lock on an account, with its holders and the requests waiting for it, oldest first
+    private static class Lock {
+        private Mode mode;
+        private final ArrayList<Request> holders = new ArrayList<>(1);
+        private final ArrayList<Request> waiting = new ArrayList<>();
+
+        private Request holder(int owner){
+            for(Request holder : holders)
+                if(holder.owner == owner) return holder;
+
+            return null;
+        }
+
+        private boolean holds(int owner){
+            return holder(owner) != null;
+        }
+
+        //Can the owner get the lock in the mode, with no one else in the way?
+        private boolean compatible(int owner, Mode mode){
+            if(holders.isEmpty()) return true;
+            if(holders.size() == 1 && holders.get(0).owner == owner) return true;
+            return this.mode == Mode.SHARED && mode == Mode.SHARED;
+        }
+
+        //A holder that asks again holds the lock once more, an exclusive lock stays exclusive when it asks for it shared
+        private void grant(Request request){
+            Request holder = holder(request.owner);
+            if(holder != null) holder.count++;
+            else holders.add(request);
+            if(request.mode == Mode.EXCLUSIVE || holder == null) mode = request.mode;
+        }
+
+        //Queues a request behind the older ones
+        private void enqueue(Request request){
+            int position = waiting.size();
+            while(position > 0 && waiting.get(position - 1).owner > request.owner)
+                position--;
+            waiting.add(position, request);
+        }
+    }
+
+    //A part of the lock table, on the form <account, lock>
+    private static class Stripe {
+        private final HashMap<String, Lock> locks = new HashMap<>();
+    }
+
+    private final Stripe[] stripes = new Stripe[STRIPES];
+
+    LockManager(){
+        for(int i = 0; i < stripes.length; i++)
+            stripes[i] = new Stripe();
+    }
+
+    /**
+     * Requests a lock on an account
+     *
+     * @param account the account name
+     * @param mode    shared or exclusive
+     * @param owner   the transaction id, lower ids are older
+     * @param granted run when the lock is granted later, not if it is granted at once
+     * @param wound   run when an older transaction needs the lock, marks the owner
+     *                to be aborted, or returns false if it has voted to commit
+     * @param wounded run once the owner has been wounded, outside the lock table,
+     *                it aborts the owner so the lock is released
+     * @return        GRANTED if the lock is held, WAITING if the request is queued,
+     *                DIED if a younger transaction that has voted to commit is in the way
+     */
+    Result acquire(String account, Mode mode, int owner, Runnable granted, BooleanSupplier wound, Runnable wounded){
+        Stripe stripe = stripe(account);
+        Request request = new Request(owner, mode, granted, wound, wounded);
+        ArrayList<Runnable> aborts = new ArrayList<>();
+        Result result = Result.WAITING;
+
+        synchronized(stripe) {
+            Lock lock = stripe.locks.computeIfAbsent(account, name -> new Lock());
+
+            //Holders get the lock again without queueing
+            if(lock.compatible(owner, mode) && (lock.waiting.isEmpty() || lock.holds(owner))) {
+                lock.grant(request);
+                return Result.GRANTED;
+            }
+
+            //Wounds the younger holders, they release the lock once they are aborted
+            for(Request holder : lock.holders){
+                if(holder.owner <= owner) continue;
+
+                if(holder.wound.getAsBoolean())
+                    aborts.add(holder.wounded);
+                else {
+                    result = Result.DIED;
+                    break;
+                }
+            }
+
+            if(result == Result.WAITING)
+                lock.enqueue(request);
+        }
+
+        //Aborts run outside the stripe, they release the lock
+        for(Runnable runnable : aborts)
+            runnable.run();
+
+        return result;
+    }
+
+    /**
+     * Releases a lock once, or withdraws a request still waiting for it,
+     * then grants the lock to the requests next in line
+     *
+     * @param account the account name
+     * @param owner   the transaction id
+     */
+    void release(String account, int owner){
+        Stripe stripe = stripe(account);
+        ArrayList<Runnable> granted = new ArrayList<>();
+
+        synchronized(stripe) {
+            Lock lock = stripe.locks.get(account);
+            if(lock == null) return;
+
+            Request holder = lock.holder(owner);
+            if(holder != null) {
+                if(--holder.count == 0) lock.holders.remove(holder);
+            }
+            else {
+                for(int i = 0; i < lock.waiting.size(); i++)
+                    if(lock.waiting.get(i).owner == owner) {
+                        lock.waiting.remove(i);
+                        break;
+                    }
+            }
+
+            //Grants waiting requests in order, as long as they are compatible
+            while(!lock.waiting.isEmpty() && lock.compatible(lock.waiting.get(0).owner, lock.waiting.get(0).mode)){
+                Request request = lock.waiting.remove(0);
+                lock.grant(request);
+                granted.add(request.granted);
+            }
+
+            if(lock.holders.isEmpty() && lock.waiting.isEmpty())
+                stripe.locks.remove(account);
+        }
+
+        //Callbacks run outside the stripe, they may take other locks
+        for(Runnable runnable : granted)
+            runnable.run();
+    }
+
+    private Stripe stripe(String account){
+        int hash = account.hashCode() * 0x9e3779b9;
+        return stripes[(hash ^ (hash >>> 16)) & (stripes.length - 1)];
+    }
+}
@@ -1,32 +1,77 @@
 package twophasecommit.participant;
 
+import twophasecommit.Flags;
+import twophasecommit.constants.Concurrency;
+import twophasecommit.constants.Execution;
+import twophasecommit.constants.Protocol;
 import twophasecommit.constants.State;
 
 import java.net.Socket;
+import java.util.HashSet;
+import java.util.Set;
 
 /**
  * Does initial setup:
  * - Connects to server
- * - Creates a participant
+ * - Creates a participant and recovers its log
  * - Creates CommandHandler and MessageHandler for the participant
  */
 class Main {
     /**
      * Main.
      *
-     * @param args the args
+     * @param args the args, optionally a name for the log so it can be
+     *             recovered after a restart, and the flag:
+     *             --protocol basic|presumed-abort|presumed-commit
+     *             --vote manual|auto, auto votes to commit every sub-transaction
+     *             --concurrency locking|optimistic, optimistic validates account
+     *             versions when voting instead of locking the accounts
+     *             --hot A,B,... accounts in most transfers, updated as escrow deltas
+     *             --execution inline|platform|virtual, the threads sub-transactions
+     *             and decisions run on, see TransactionExecutor
      */
     public static void main(String[] args){
         final String IP_ADDRESS = "localhost";
         final int PORT = 1250;
 
+        Flags flags = new Flags(args);
+
+        Protocol protocol = Protocol.fromFlag(flags.get("protocol", "basic"));
+        if(protocol == null) {
+            System.out.println("INVALID PROTOCOL");
+            return;
+        }
+
+        String vote = flags.get("vote", "manual");
+        if(!vote.equals("manual") && !vote.equals("auto")) {
+            System.out.println("INVALID VOTE MODE");
+            return;
+        }
+
+        Concurrency concurrency = Concurrency.fromFlag(flags.get("concurrency", "locking"));
+        if(concurrency == null) {
+            System.out.println("INVALID CONCURRENCY");
+            return;
+        }
+
+        Execution execution = Execution.fromFlag(flags.get("execution", "inline"));
+        if(execution == null) {
+            System.out.println("INVALID EXECUTION");
+            return;
+        }
+
+        Set<String> hot = new HashSet<>();
+        for(String account : flags.get("hot", "").split(","))
+            if(!account.trim().isEmpty()) hot.add(account.trim());
+
         try {
             //Initializes connection
             Socket connection = new Socket(IP_ADDRESS, PORT);
 
             //Creates a participant
             int id = connection.getLocalPort();
-            Participant participant = new Participant(id);
+            Participant participant = new Participant(id, flags.getArgument(0, String.valueOf(id)), protocol, vote.equals("auto"), concurrency, hot, execution);
+            participant.recover();
 
             //Listens and handles commands from the user, reports to participant
             CommandHandler commandHandler = new CommandHandler(participant);
@@ -36,6 +81,9 @@ class Main {
             MessageHandler messageHandler = new MessageHandler(participant, connection);
             participant.setMessageHandler(messageHandler);
             participant.setState(State.INITIALIZED);
+
+            //Asks for the decisions the participant was waiting for when it stopped
+            participant.resolveTransactions();
         } catch(Exception e){
             System.out.println("CONNECTION UNSUCCESSFUL");
             e.printStackTrace();
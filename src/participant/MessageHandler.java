@@ -1,13 +1,16 @@
 package twophasecommit.participant;
 
 
+import twophasecommit.Decision;
+import twophasecommit.MessageCodec;
+import twophasecommit.Ownership;
 import twophasecommit.SubTransaction;
 import twophasecommit.constants.State;
 import twophasecommit.constants.Vote;
 
 import java.io.IOException;
-import java.io.PrintWriter;
 import java.net.Socket;
+import java.nio.ByteBuffer;
 
 
 /**
@@ -21,6 +24,12 @@ class MessageHandler {
     //Connection to coordinator
     Socket connection;
 
+    //Writes the messages to the coordinator in batches, shared by every sub-transaction
+    private MessageWriter writer;
+
+    //Encodes the messages to the coordinator, used while holding the lock on this handler
+    private final MessageCodec codec = new MessageCodec();
+
     public MessageHandler(Participant participant, Socket connection){
         this.participant = participant;
         this.connection = connection;
@@ -33,9 +42,6 @@ class MessageHandler {
     //Closes connection to coordinator
     void closeConnection(){
 
-        //Gets the state
-        State state = participant.getState();
-
         //Sets state as disconnected
         participant.setState(State.DISCONNECTED);
 
@@ -46,9 +52,8 @@ class MessageHandler {
             e.printStackTrace();
         }
 
-        //Aborts the transaction
-        if(state != State.INITIALIZED)
-            participant.abortTransaction();
+        //Aborts the active sub-transactions
+        participant.abortTransactions();
 
         System.exit(-1);
     }
@@ -60,13 +65,27 @@ class MessageHandler {
      */
     void handleMessage(Object object){
 
-        //Message is a sub-transaction - tells participant to prepare it
-        if(object instanceof SubTransaction)
-            participant.prepareTransaction((SubTransaction) object);
+        //Message is a sub-transaction - tells participant to prepare it, after the earlier steps of its transaction
+        if(object instanceof SubTransaction) {
+            SubTransaction subTransaction = (SubTransaction) object;
+            participant.getExecutor().execute(subTransaction.getTransactionId(), () -> participant.prepareTransaction(subTransaction));
+        }
+
+        //Message is a decision to commit or abort - passes it on to participant, after the prepare
+        else if(object instanceof Decision) {
+            Decision decision = (Decision) object;
+            participant.getExecutor().execute(decision.getTransactionId(), () -> participant.handleDecision(decision));
+        }
 
-        //Message is a decision to commit or abort - passes it on to participant
-        else if(object instanceof Vote)
-            participant.handleDecision((Vote) object);
+        //Message is a change in the accounts this participant owns, once the decisions before it are carried out
+        else if(object instanceof Ownership) {
+            try {
+                participant.getExecutor().awaitQueued();
+            } catch (InterruptedException e){
+                return;
+            }
+            participant.handleOwnership((Ownership) object);
+        }
 
         //Message is a string
         else if(object instanceof String){
@@ -77,33 +96,52 @@ class MessageHandler {
     }
 
     /**
-     * Sends state to coordinator on the format:
-     * 'state:participantId'
+     * Sends state to coordinator
      *
      * @param state the state to be sent
      */
-    void sendState(State state){
-        try {
-            PrintWriter writer = new PrintWriter(connection.getOutputStream(), true);
-            writer.println(state + ":" + participant.getId());
-        } catch (IOException e){
-            System.out.println("COULD NOT SEND STATE: " + state);
-        }
+    synchronized void sendState(State state){
+        send(codec.encodeState(state, participant.getId(), 0, 0), "COULD NOT SEND STATE: " + state);
+    }
+
+    /**
+     * Sends the state of a sub-transaction to coordinator
+     *
+     * @param state            the state to be sent
+     * @param transactionId    the transaction the state belongs to
+     * @param subTransactionId the sub-transaction the state belongs to
+     */
+    synchronized void sendState(State state, int transactionId, int subTransactionId){
+        send(codec.encodeState(state, participant.getId(), transactionId, subTransactionId), "COULD NOT SEND STATE: " + state);
+    }
+
+    /**
+     * Sends vote to the coordinator
+     *
+     * @param vote             the vote to be sent
+     * @param transactionId    the transaction we are voting for
+     * @param subTransactionId the sub-transaction we are voting for
+     */
+    synchronized void sendVote(Vote vote, int transactionId, int subTransactionId){
+        send(codec.encodeVote(vote, participant.getId(), transactionId, subTransactionId), "COULD NOT SEND VOTE: " + vote);
     }
 
     /**
-     * Sends vote to the coordinator on the format:
-     * 'state:participantId:vote'
+     * Queues a frame for the next batch to the coordinator, frames
+     * from different sub-transactions are never mixed up
      *
-     * @param vote          the vote to be sent
-     * @param transactionId the transaction we are voting for
+     * @param frame the frame to be sent
+     * @param error the message printed if it could not be sent
      */
-    void sendVote(Vote vote, int transactionId){
+    private void send(ByteBuffer frame, String error){
         try {
-            PrintWriter writer = new PrintWriter(connection.getOutputStream(), true);
-            writer.println(vote + ":" + participant.getId() + ":" + transactionId);
+            if(writer == null) {
+                writer = new MessageWriter(connection.getOutputStream());
+                writer.start();
+            }
+            writer.append(frame);
         } catch (IOException e){
-            System.out.println("COULD NOT SEND VOTE: " + vote);
+            System.out.println(error);
         }
     }
 }
\ No newline at end of file
@@ -1,6 +1,8 @@
 package twophasecommit.participant;
 
-import java.io.ObjectInputStream;
+import twophasecommit.MessageCodec;
+
+import java.io.InputStream;
 import java.net.Socket;
 
 /**
@@ -8,8 +10,11 @@ import java.net.Socket;
  */
 class MessageListener extends Thread {
 
-    //ObjectInputStream used for listening to messages
-    ObjectInputStream stream;
+    //Stream used for listening to messages
+    InputStream stream;
+
+    //Decodes the frames
+    private final MessageCodec codec = new MessageCodec();
 
     //The MessageHandler to report to
     private MessageHandler handler;
@@ -19,7 +24,7 @@ class MessageListener extends Thread {
         this.handler = handler;
 
         try {
-            this.stream = new ObjectInputStream(connection.getInputStream());
+            this.stream = connection.getInputStream();
         } catch (Exception e){
             e.printStackTrace();
         }
@@ -28,13 +33,12 @@ class MessageListener extends Thread {
     //Listens for messages
     public void run(){
         try {
-            Object object = stream.readObject();
-            while(object != null){
-                handler.handleMessage(object);
-                object = stream.readObject();
+            while(true){
+                codec.read(stream);
+                handler.handleMessage(codec.getMessage());
             }
         } catch (Exception e){
             handler.closeConnection();
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,136 @@
+package twophasecommit.participant;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Writes the messages to the coordinator in batches
+ *
+ * Frames are appended to a buffer, and a writer thread sends what has
+ * piled up in one write, the same way LogWriter groups records. It waits
+ * at most flushDelay for a batch to reach flushSize bytes, so at low load
+ * a message goes out almost at once, while the state changes and vote of
+ * a sub-transaction, and those of others prepared at the same time, share
+ * a packet
+ *
+ * At most maxPending bytes wait to be sent, a sender waits while they are
+ * in use. If a batch can not be written the connection is closed, so the
+ * listener and the coordinator both see the participant disconnect, and
+ * every later sender gets an exception
+ */
+class MessageWriter extends Thread {
+
+    //Batch settings, can be overridden with -Dmessages.flushSize (bytes) and -Dmessages.flushDelay (us)
+    private final static int FLUSH_SIZE = Math.max(1, Integer.getInteger("messages.flushSize", 16384));
+    private final static long FLUSH_DELAY = Math.max(0, Long.getLong("messages.flushDelay", 100));
+
+    //Max bytes waiting to be sent, can be overridden with -Dmessages.maxPending
+    private final static int MAX_PENDING = Math.max(FLUSH_SIZE, Integer.getInteger("messages.maxPending", 1024 * 1024));
+
+    private final OutputStream stream;
+
+    //Guards the pending buffer, signalled on the first frame of a batch and when it is full
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+
+    //Signalled when the writer takes a batch, or fails
+    private final Condition notFull = lock.newCondition();
+
+    //Why the last batch could not be written, nothing is sent after it
+    private IOException failure;
+
+    //Frames waiting for the next batch, and the batch being written
+    private ByteBuffer pending = ByteBuffer.allocate(FLUSH_SIZE);
+    private ByteBuffer writing = ByteBuffer.allocate(FLUSH_SIZE);
+
+    MessageWriter(OutputStream stream){
+        super("MessageWriter");
+        this.stream = stream;
+        setDaemon(true);
+    }
+
+    /**
+     * Adds a frame to the next batch, waits only while maxPending bytes are waiting
+     *
+     * @param frame the frame, from position to limit
+     * @throws IOException if the connection was closed after a failed write
+     */
+    void append(ByteBuffer frame) throws IOException {
+        lock.lock();
+        try {
+            //A frame larger than the max still goes in alone
+            while(failure == null && pending.position() > 0 && pending.position() + frame.remaining() > MAX_PENDING)
+                notFull.awaitUninterruptibly();
+
+            if(failure != null) throw new IOException("CONNECTION CLOSED", failure);
+
+            if(frame.remaining() > pending.remaining())
+                pending = ByteBuffer.allocate(Math.max(pending.capacity() * 2, pending.position() + frame.remaining())).put(pending.flip());
+
+            boolean first = pending.position() == 0;
+            pending.put(frame);
+
+            //Wakes the writer when the first frame arrives, or when the batch is full
+            if(first || pending.position() >= FLUSH_SIZE)
+                notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    //Writes batches of frames
+    public void run(){
+        while(true){
+            lock.lock();
+            try {
+                //Waits for the first frame in the batch
+                while(pending.position() == 0)
+                    notEmpty.awaitUninterruptibly();
+
+                //Waits for the batch to fill up, at most flushDelay us
+                long remaining = TimeUnit.MICROSECONDS.toNanos(FLUSH_DELAY);
+                while(pending.position() < FLUSH_SIZE && remaining > 0)
+                    remaining = notEmpty.awaitNanos(remaining);
+
+                ByteBuffer batch = pending;
+                pending = writing;
+                writing = batch;
+                notFull.signalAll();
+            } catch (InterruptedException e){
+                return;
+            } finally {
+                lock.unlock();
+            }
+
+            try {
+                stream.write(writing.array(), 0, writing.position());
+            } catch (IOException e){
+                System.out.println("COULD NOT SEND TO COORDINATOR, CLOSING THE CONNECTION");
+                fail(e);
+                return;
+            }
+            writing.clear();
+        }
+    }
+
+    //Fails every waiting and later sender, and closes the connection
+    private void fail(IOException error){
+        lock.lock();
+        try {
+            failure = error;
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+
+        try {
+            stream.close();
+        } catch (IOException e){
+            //Already closed
+        }
+    }
+}
@@ -1,38 +1,94 @@
 package twophasecommit.participant;
 
+import twophasecommit.Account;
+import twophasecommit.AccountStore;
+import twophasecommit.Decision;
 import twophasecommit.LogManager;
+import twophasecommit.LogRecord;
+import twophasecommit.Ownership;
+import twophasecommit.Recovery;
 import twophasecommit.SubTransaction;
+import twophasecommit.TimeoutScheduler;
+import twophasecommit.TimeoutScheduler.Timeout;
+import twophasecommit.TransactionExecutor;
+import twophasecommit.constants.Concurrency;
+import twophasecommit.constants.Execution;
+import twophasecommit.constants.Protocol;
 import twophasecommit.constants.State;
 import twophasecommit.constants.Vote;
 
-import java.util.Timer;
-import java.util.TimerTask;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
- * The participant executes a sub-transaction
+ * The participant executes sub-transactions
  * provided by the coordinator
  *
  * Execution is controlled by the coordinator,
  * either commit or abort
+ *
+ * Any number of sub-transactions can be active at once, each
+ * with its own state and timeout. Votes and decisions are
+ * routed to them by id, the id of the transaction and the
+ * sub-transaction (e.g. 12_1)
+ *
+ * Messages, lock grants and timeouts of a transaction are handed to a
+ * TransactionExecutor, so they run in order while the listener goes
+ * on reading messages for the other transactions
  */
 class Participant {
     private int id;
 
+    //Name of the log, stays the same across restarts
+    private String log;
+
+    //Protocol variant, decides what is forced and what is acknowledged
+    private Protocol protocol;
+
+    //Vote to commit as soon as a sub-transaction is prepared, instead of asking the user
+    private boolean autoVote;
+
+    //Locking, or optimistic concurrency control with validation when voting
+    private Concurrency concurrency;
+
     //Timeout >= Coordinator timeout
     private final int TIMEOUT = 15000;
-    Timer timer = new Timer();
 
     //MessageHandler for sending messages to coordinator
     private MessageHandler messageHandler;
 
-    //The sub-transaction to execute
-    private SubTransaction transaction;
+    //A map of active sub-transactions on the form <id, sub-transaction>
+    private ConcurrentHashMap<String, ActiveTransaction> transactions = new ConcurrentHashMap<>();
+
+    //State of the participant, each sub-transaction has its own
+    private volatile State state = State.INITIALIZED;
+
+    //Balances of the accounts recovered from the log, handed over or used since start
+    private AccountStore accounts = new AccountStore();
+
+    //Versions of the balances taken from the coordinator with load placement, on the form <account, version>
+    private ConcurrentHashMap<String, Long> installed = new ConcurrentHashMap<>();
+
+    //Locks on the accounts, held by sub-transactions from prepare until they are decided
+    private LockManager locks = new LockManager();
 
-    //State of the participant
-    private State state = State.INITIALIZED;
+    //Hot accounts, updated as escrow deltas instead of being locked or validated
+    private Escrow escrow;
 
-    Participant(int id){
+    //Runs the steps of each transaction in order
+    private TransactionExecutor executor;
+
+    Participant(int id, String log, Protocol protocol, boolean autoVote, Concurrency concurrency, Set<String> hot, Execution execution){
         this.id = id;
+        this.log = log;
+        this.protocol = protocol;
+        this.autoVote = autoVote;
+        this.concurrency = concurrency;
+        this.escrow = new Escrow(hot);
+        this.executor = new TransactionExecutor(execution);
     }
 
     int getId(){
@@ -47,8 +103,94 @@ class Participant {
         return state;
     }
 
+    TransactionExecutor getExecutor(){
+        return executor;
+    }
+
+    Collection<ActiveTransaction> getTransactions(){
+        return transactions.values();
+    }
+
+    //Recovers the accounts from the log, and the sub-transactions in doubt
+    void recover(){
+        try {
+            Recovery recovery = new Recovery(log);
+            recovery.run();
+
+            recovery.getBalances().forEach(accounts::put);
+
+            for(LogRecord update : recovery.getInDoubtUpdates())
+                restoreTransaction(update);
+        } catch (IOException e){
+            System.out.println("COULD NOT RECOVER LOG: " + log);
+            e.printStackTrace();
+        }
+    }
+
     /**
-     * Sets the state
+     * Restores a sub-transaction that had voted to commit when the participant
+     * stopped. The update is applied again the way it is prepared, and the
+     * account stays locked or held until the coordinator tells the decision
+     *
+     * @param update the UPDATE or DELTA record of the sub-transaction
+     */
+    private void restoreTransaction(LogRecord update){
+        String name = update.getAccount();
+        boolean delta = update.getType() == LogRecord.Type.DELTA;
+        long cents = delta ? AccountStore.toCents(update.getAmount()) : AccountStore.toCents(update.getAfter()) - AccountStore.toCents(update.getBefore());
+
+        //Recovery leaves the account as it was before the update
+        int slot = accounts.getOrCreate(name, update.getBefore());
+        SubTransaction subTransaction = new SubTransaction(update.getTransactionId(), update.getSubTransactionId(),
+                new Account(name, accounts.getBalance(slot)), AccountStore.toAmount(cents));
+
+        ActiveTransaction transaction = new ActiveTransaction(subTransaction);
+        transaction.setUpdate(update);
+        transaction.setState(State.WAITING);
+        transaction.prepare();
+
+        if(delta) {
+            transaction.hold(slot);
+            escrow.restore(name, cents);
+        }
+        else if(concurrency == Concurrency.OPTIMISTIC) {
+            transaction.read(slot, accounts.getVersion(slot));
+            transaction.setReserved(accounts.reserve(slot, transaction.getVersion()));
+        }
+        else {
+            locks.acquire(name, LockManager.Mode.EXCLUSIVE, subTransaction.getTransactionId(), () -> {}, transaction::wound, () -> {});
+            accounts.add(slot, cents);
+        }
+
+        transactions.put(subTransaction.getId(), transaction);
+        System.out.println("IN DOUBT: SUB-TRANSACTION #" + subTransaction.getId() + " " + update + "\n");
+    }
+
+    //Asks the coordinator for the decisions of the sub-transactions restored in doubt
+    void resolveTransactions(){
+        for(ActiveTransaction transaction : transactions.values())
+            if(transaction.isPrepared())
+                executor.execute(transaction.getTransactionId(), () -> askCoordinator(transaction));
+    }
+
+    /**
+     * Takes over and gives up accounts when the coordinator rebalances the shards,
+     * no sub-transactions are running on them while they move
+     *
+     * @param ownership the accounts gained and dropped
+     */
+    void handleOwnership(Ownership ownership){
+        System.out.println(ownership + "\n");
+
+        for(Account account : ownership.getGained())
+            accounts.put(account.getName(), account.getBalance());
+
+        for(String account : ownership.getDropped())
+            accounts.remove(account);
+    }
+
+    /**
+     * Sets the state of the participant
      *
      * @param state state to be set
      */
@@ -62,125 +204,494 @@ class Participant {
     }
 
     /**
-     * Prepares the sub-transaction
+     * Sets the state of a sub-transaction
+     *
+     * @param transaction the sub-transaction
+     * @param state       state to be set
+     * @param report      report the new state to the coordinator?
+     */
+    private void setState(ActiveTransaction transaction, State state, boolean report){
+        System.out.println("STATE: " + state + " SUB-TRANSACTION #" + transaction.getId());
+
+        transaction.setState(state);
+
+        //Reports to the coordinator that there is a new state
+        if(report)
+            messageHandler.sendState(state, transaction.getTransactionId(), transaction.getSubTransactionId());
+    }
+
+    /**
+     * Prepares a sub-transaction
      *
-     * @param transaction the sub-transaction to be prepared
+     * @param subTransaction the sub-transaction to be prepared
      */
-    void prepareTransaction(SubTransaction transaction){
+    void prepareTransaction(SubTransaction subTransaction){
+        ActiveTransaction transaction = new ActiveTransaction(subTransaction);
+
+        //A sub-transaction is only prepared once
+        if(transactions.putIfAbsent(subTransaction.getId(), transaction) != null) {
+            System.out.println("ALREADY PREPARING SUB-TRANSACTION #" + subTransaction.getId() + "\n");
+            return;
+        }
+
         //State is now preparing
-        setState(State.PREPARING);
+        setState(transaction, State.PREPARING, true);
+
+        /*
+         * Uses the local account if there is one. With shard placement this participant owns
+         * it and holds the latest committed balance. With load placement other participants
+         * commit on it too, and the balance from the coordinator is taken once the account
+         * is held if it is newer, see install. Hot accounts keep the local balance
+         */
+        Account account = subTransaction.getAccount();
+        int slot = accounts.getOrCreate(account.getName(), account.getBalance());
 
         //Prints sub-transaction
-        this.transaction = transaction;
-        System.out.println("\n" + transaction + "\n");
+        System.out.println("\n" + subTransaction + "\n");
+
+        //Writes <T, START> to the log, the variants only force it together with PREPARED
+        LogManager.writeLog(log, LogRecord.start(subTransaction.getTransactionId(), subTransaction.getSubTransactionId()), protocol == Protocol.BASIC);
+
+        //Hot accounts are neither locked nor validated, the update is merged at commit
+        if(escrow.isHot(account.getName())) {
+            prepareDelta(transaction, slot);
+            return;
+        }
+
+        //Reads the version of the account, the update waits until commit
+        if(concurrency == Concurrency.OPTIMISTIC) {
+            transaction.read(slot, accounts.getVersion(slot));
+            System.out.println("READ VERSION " + transaction.getVersion() + " OF ACCOUNT " + account.getName() + "\n");
+
+            setState(transaction, State.VOTING, true);
+            awaitVote(transaction);
+            return;
+        }
 
-        //Writes <T, START> to the log
-        LogManager.writeLog(String.valueOf(id), transaction.getId() + ", START");
+        /*
+         * Locks the account, the sub-transaction goes on once the lock is granted.
+         * Grants and wounds run on the strand of the transaction, after its earlier steps
+         */
+        LockManager.Result result = locks.acquire(account.getName(), LockManager.Mode.EXCLUSIVE, subTransaction.getTransactionId(),
+                () -> executor.execute(subTransaction.getTransactionId(), () -> executeTransaction(transaction, slot)),
+                transaction::wound,
+                () -> executor.execute(subTransaction.getTransactionId(), () -> woundTransaction(transaction)));
+
+        if(result == LockManager.Result.GRANTED)
+            executeTransaction(transaction, slot);
+
+        else if(result == LockManager.Result.WAITING)
+            System.out.println("WAITING FOR LOCK ON ACCOUNT " + account.getName() + "\n");
+
+        //A younger transaction that has voted to commit holds the account, votes to abort (wound-wait)
+        else {
+            System.out.println("LOCK CONFLICT ON ACCOUNT " + account.getName() + "\n");
+            setState(transaction, State.VOTING, true);
+            handleVote(Vote.ABORT, transaction);
+        }
+    }
+
+    /**
+     * Executes a sub-transaction once it holds the lock on its account
+     *
+     * @param transaction the sub-transaction
+     * @param slot        the slot of the account
+     */
+    private void executeTransaction(ActiveTransaction transaction, int slot){
+        SubTransaction subTransaction = transaction.getSubTransaction();
+        String name = subTransaction.getAccount().getName();
+
+        transaction.lock();
+        try {
+
+            //Aborted while waiting for the lock, the abort has released it
+            if(transaction.isFinished()) return;
+            install(subTransaction.getAccount(), slot);
+
+            //Executes transaction, getting the old value at once
+            long oldValue = subTransaction.execute(accounts, slot);
+            long newValue = oldValue + AccountStore.toCents(subTransaction.getAmount());
+            System.out.println("EXECUTED SUB-TRANSACTION #" + subTransaction.getId() + "\n");
+
+            //Writes <T, ACCOUNT, OLD VALUE, NEW VALUE> to the log, the variants only force it together with PREPARED
+            LogRecord update = LogRecord.update(subTransaction.getTransactionId(), subTransaction.getSubTransactionId(), name,
+                    AccountStore.toAmount(oldValue), AccountStore.toAmount(newValue));
+            LogManager.writeLog(log, update, protocol == Protocol.BASIC);
+            transaction.setUpdate(update);
+
+            setState(transaction, State.VOTING, true);
+        } finally {
+            transaction.unlock();
+        }
+
+        awaitVote(transaction);
+    }
+
+    /**
+     * Takes the committed balance the coordinator sent, if its version is newer than
+     * the one the local balance was taken from. Local commits since then are kept
+     * until a newer balance arrives. Only called while the account is held, so
+     * no update is made on one balance and undone on another
+     *
+     * @param account the account from the coordinator, version 0 if this participant owns it
+     * @param slot    the slot of the account
+     */
+    private void install(Account account, int slot){
+        if(account.getVersion() == 0) return;
+
+        Long version = installed.get(account.getName());
+        if(version != null && version >= account.getVersion()) return;
+
+        accounts.setCents(slot, AccountStore.toCents(account.getBalance()));
+        installed.put(account.getName(), account.getVersion());
+    }
+
+    /**
+     * Prepares a sub-transaction on a hot account, a withdrawal holds back
+     * its amount so the account can not be overdrawn once it commits
+     *
+     * @param transaction the sub-transaction
+     * @param slot        the slot of the account
+     */
+    private void prepareDelta(ActiveTransaction transaction, int slot){
+        SubTransaction subTransaction = transaction.getSubTransaction();
+        String name = subTransaction.getAccount().getName();
+        long cents = AccountStore.toCents(subTransaction.getAmount());
+
+        if(!escrow.reserve(accounts, slot, name, cents)) {
+            System.out.println("NOT ENOUGH MONEY ON HOT ACCOUNT " + name + "\n");
+            setState(transaction, State.VOTING, true);
+            handleVote(Vote.ABORT, transaction);
+            return;
+        }
+        transaction.hold(slot);
 
-        //Gets the old transaction value
-        double oldValue = transaction.getAccount().getBalance();
+        //Writes <T, ACCOUNT, DELTA> to the log, the variants only force it together with PREPARED
+        LogManager.writeLog(log, LogRecord.delta(subTransaction.getTransactionId(), subTransaction.getSubTransactionId(), name,
+                accounts.getBalance(slot), subTransaction.getAmount()), protocol == Protocol.BASIC);
 
-        //Executes transaction
-        transaction.execute();
-        System.out.println("EXECUTED SUB-TRANSACTION #" + transaction.getId() + "\n");
+        setState(transaction, State.VOTING, true);
+        awaitVote(transaction);
+    }
 
-        //Writes <T, ACCOUNT, OLD VALUE, NEW VALUE> to the log
-        double newValue = transaction.getAccount().getBalance();
-        LogManager.writeLog(String.valueOf(id), transaction.getId() + ", " + transaction.getAccount().getName() + ", " + oldValue + ", " + newValue);
+    /**
+     * Validates an optimistic sub-transaction when it votes to commit: reserves the
+     * account if its version is the one read at prepare, and logs the update
+     *
+     * @param transaction the sub-transaction
+     * @return            false if another sub-transaction has written the account since
+     */
+    private boolean validateTransaction(ActiveTransaction transaction){
+        SubTransaction subTransaction = transaction.getSubTransaction();
+        int slot = transaction.getSlot();
+
+        transaction.lock();
+        try {
+            if(transaction.isFinished() || !accounts.reserve(slot, transaction.getVersion())) return false;
+            transaction.setReserved(true);
+            install(subTransaction.getAccount(), slot);
+
+            //No one else writes the account while it is reserved, so the old value stays the same until commit
+            long oldValue = accounts.getCents(slot);
+            long newValue = oldValue + AccountStore.toCents(subTransaction.getAmount());
+
+            //Writes <T, ACCOUNT, OLD VALUE, NEW VALUE> to the log, the variants only force it together with PREPARED
+            LogManager.writeLog(log, LogRecord.update(subTransaction.getTransactionId(), subTransaction.getSubTransactionId(),
+                    subTransaction.getAccount().getName(), AccountStore.toAmount(oldValue), AccountStore.toAmount(newValue)), protocol == Protocol.BASIC);
+            return true;
+        } finally {
+            transaction.unlock();
+        }
+    }
 
-        setState(State.VOTING);
-        System.out.println("\nTYPE 'Y/YES' FOR COMMIT OR 'N/NO' FOR ABORT");
+    //Votes at once, or asks the user for a vote
+    private void awaitVote(ActiveTransaction transaction){
+        if(transaction.isWounded())
+            woundTransaction(transaction);
+        else if(autoVote)
+            handleVote(Vote.COMMIT, transaction);
+        else
+            System.out.println("\nTYPE 'Y/YES " + transaction.getId() + "' FOR COMMIT OR 'N/NO " + transaction.getId() + "' FOR ABORT");
     }
 
     /**
      * Handles vote from the user
      *
+     * The id is either a sub-transaction (12_1), or a transaction (12) to
+     * vote for each of its sub-transactions here. Without an id, the vote
+     * goes to the only sub-transaction that is voting
+     *
      * @param vote the vote to be handled
+     * @param id   the id, or null if none was given
      */
-    void handleVote(Vote vote){
+    void handleVote(Vote vote, String id){
+        ArrayList<ActiveTransaction> voting = new ArrayList<>();
 
-        //If the state is not voting, the users vote will be turned down
-        if(state != State.VOTING){
+        for(ActiveTransaction transaction : transactions.values()){
+            if(transaction.getState() != State.VOTING) continue;
+
+            if(id == null || id.equals(transaction.getId()) || id.equals(String.valueOf(transaction.getTransactionId())))
+                voting.add(transaction);
+        }
+
+        if(voting.isEmpty()) {
             System.out.println("\nCAN'T VOTE NOW\n");
             return;
         }
 
+        if(id == null && voting.size() > 1) {
+            System.out.println("\nSEVERAL TRANSACTIONS ARE VOTING - TYPE 'YES <ID>' OR 'NO <ID>'\n");
+            return;
+        }
+
+        for(ActiveTransaction transaction : voting)
+            if(!handleVote(vote, transaction))
+                System.out.println("\nCAN'T VOTE NOW\n");
+    }
+
+    /**
+     * Aborts a sub-transaction that has been wounded by an older transaction
+     * needing its lock, without waiting for the decision so the lock is
+     * released at once. One that is still preparing aborts once it is executed
+     *
+     * @param transaction the sub-transaction
+     */
+    private void woundTransaction(ActiveTransaction transaction){
+        if(transaction.getState() == State.PREPARING || transaction.isFinished()) return;
+
+        System.out.println("\nWOUNDED BY AN OLDER TRANSACTION - SUB-TRANSACTION #" + transaction.getId());
+
+        //Votes to abort, unless it already has
+        if(transaction.getState() == State.VOTING)
+            handleVote(Vote.ABORT, transaction);
+
+        //The sub-transaction is already aborted if the timeout has expired
+        Timeout timeout = transaction.getTimeout();
+        if(timeout != null && !timeout.cancel()) return;
+
+        abortTransaction(transaction);
+    }
+
+    /**
+     * Handles vote for a sub-transaction
+     *
+     * @param vote        the vote to be handled
+     * @param transaction the sub-transaction
+     * @return            false if the sub-transaction is not voting
+     */
+    private boolean handleVote(Vote vote, ActiveTransaction transaction){
+
+        //If the sub-transaction is not voting, the vote will be turned down, a wounded one votes to abort
+        vote = transaction.vote(vote);
+        if(vote == null)
+            return false;
+
+        //An optimistic sub-transaction that conflicts votes to abort
+        if(vote == Vote.COMMIT && concurrency == Concurrency.OPTIMISTIC && !transaction.isHot() && !validateTransaction(transaction)) {
+            System.out.println("\nCONFLICT ON ACCOUNT " + transaction.getSubTransaction().getAccount().getName() + " - VOTING ABORT");
+            vote = Vote.ABORT;
+        }
+
+        /*
+         * Writes <T, PREPARED> to the log before voting to commit. From then on only
+         * the coordinator decides, after a timeout or a restart the participant asks for the decision
+         */
+        if(vote == Vote.COMMIT) {
+            LogManager.writeLog(log, LogRecord.prepared(transaction.getTransactionId(), transaction.getSubTransactionId()));
+            transaction.prepare();
+        }
+
         System.out.println();
 
         //Waits for decision from coordinator
-        setState(State.WAITING);
+        setState(transaction, State.WAITING, true);
+
+        //Starts timeout, before the vote so a fast decision can always cancel it
+        transaction.setTimeout(TimeoutScheduler.shared().schedule(() -> executor.execute(transaction.getTransactionId(), () -> expireTransaction(transaction)), TIMEOUT));
 
         //Sends vote to coordinator
-        System.out.println("VOTED: " + vote);
-        messageHandler.sendVote(vote, transaction.getTransactionId());
+        System.out.println("VOTED: " + vote + " SUB-TRANSACTION #" + transaction.getId());
+        messageHandler.sendVote(vote, transaction.getTransactionId(), transaction.getSubTransactionId());
+        return true;
+    }
+
+    /**
+     * Handles a timeout while waiting for the decision. A sub-transaction that
+     * has not voted to commit aborts, a prepared one is in doubt: it keeps its
+     * account and asks the coordinator until it gets the decision
+     *
+     * @param transaction the sub-transaction
+     */
+    private void expireTransaction(ActiveTransaction transaction){
+        if(transaction.isFinished()) return;
+
+        if(!transaction.isPrepared()) {
+            System.out.println("\nTIMEOUT - COORDINATOR TOOK TOO LONG");
+            abortTransaction(transaction);
+            return;
+        }
+
+        System.out.println("\nTIMEOUT - IN DOUBT, ASKING COORDINATOR");
+        askCoordinator(transaction);
+    }
 
-        //Starts timeout
-        timer = new Timer();
+    /**
+     * Asks the coordinator to send the decision of a prepared sub-transaction again
+     *
+     * @param transaction the sub-transaction
+     */
+    private void askCoordinator(ActiveTransaction transaction){
+        if(transaction.isFinished()) return;
 
-        timer.schedule(new TimerTask() {
-            @Override
-            public void run() {
-                System.out.println("\nTIMEOUT - COORDINATOR TOOK TOO LONG");
-                abortTransaction();
-            }
-        }, TIMEOUT);
+        //Asks again after the timeout, started first so the decision can always cancel it
+        transaction.setTimeout(TimeoutScheduler.shared().schedule(() -> executor.execute(transaction.getTransactionId(), () -> expireTransaction(transaction)), TIMEOUT));
+        setState(transaction, State.IN_DOUBT, true);
     }
 
     /**
      * Handles decision from the coordinator
      *
-     * @param decision the decision, either commit or abort the sub-transaction
+     * @param decision the decision, either commit or abort a sub-transaction
      */
-    void handleDecision(Vote decision){
+    void handleDecision(Decision decision){
         System.out.println("DECISION: " + decision + "\n");
 
-        //Cancels timeout
-        timer.cancel();
+        ActiveTransaction transaction = transactions.get(decision.getId());
+        if(transaction == null) {
+            System.out.println("UNKNOWN SUB-TRANSACTION #" + decision.getId() + "\n");
+
+            //Already decided and forgotten, acknowledged again in case the coordinator is still waiting for it
+            if(!protocol.presumes(decision.getVote()))
+                messageHandler.sendState(decision.getVote() == Vote.COMMIT ? State.COMMIT : State.ABORT, decision.getTransactionId(), decision.getSubTransactionId());
+            return;
+        }
+
+        //Cancels timeout, the sub-transaction is already aborted if it has expired, unless it is prepared
+        Timeout timeout = transaction.getTimeout();
+        if(timeout != null && !timeout.cancel() && !transaction.isPrepared()) {
+            System.out.println("TOO LATE, ALREADY ABORTED\n");
+            return;
+        }
 
         //Commits or aborts transaction
-        if(decision == Vote.COMMIT) commitTransaction();
-        else abortTransaction();
+        if(decision.getVote() == Vote.COMMIT) commitTransaction(transaction);
+        else abortTransaction(transaction);
     }
 
-    //Commits the sub-transaction
-    private void commitTransaction(){
+    /**
+     * Commits a sub-transaction
+     *
+     * @param transaction the sub-transaction
+     */
+    private void commitTransaction(ActiveTransaction transaction){
+        if(!transaction.finish()) return;
+
+        SubTransaction subTransaction = transaction.getSubTransaction();
+
+        //A presumed decision is neither forced nor acknowledged
+        boolean presumed = protocol.presumes(Vote.COMMIT);
 
         //Writes to <T, COMMIT> the log
-        LogManager.writeLog(String.valueOf(id), transaction.getId() + ", COMMIT");
+        LogManager.writeLog(log, LogRecord.commit(subTransaction.getTransactionId(), subTransaction.getSubTransactionId()), protocol.forcesDecision(Vote.COMMIT));
+
+        //Merges the delta on a hot account, then gives back what it held
+        if(transaction.isHot()) {
+            long cents = AccountStore.toCents(subTransaction.getAmount());
+            accounts.add(transaction.getSlot(), cents);
+            escrow.release(subTransaction.getAccount().getName(), cents);
+        }
+
+        //Applies the buffered update of an optimistic sub-transaction
+        else if(concurrency == Concurrency.OPTIMISTIC)
+            accounts.release(transaction.getSlot(), AccountStore.toCents(subTransaction.getAmount()));
 
-        //Commits the sub-transaction
-        setState(State.COMMIT);
-        transaction.commit();
+        //Commits the sub-transaction, the new state is the acknowledgement
+        setState(transaction, State.COMMIT, !presumed);
+        subTransaction.commit();
 
         //Writes <T, END> to the log
-        LogManager.writeLog(String.valueOf(id), transaction.getId() + ", END");
+        LogManager.writeLog(log, LogRecord.end(subTransaction.getTransactionId(), subTransaction.getSubTransactionId()), protocol == Protocol.BASIC);
+
+        //Releases the account once the update is decided
+        if(concurrency == Concurrency.LOCKING && !transaction.isHot())
+            locks.release(subTransaction.getAccount().getName(), subTransaction.getTransactionId());
 
         //Forget phase - removes the sub-transaction
-        this.transaction = null;
-        setState(State.INITIALIZED);
+        transactions.remove(subTransaction.getId());
     }
 
+    /**
+     * Aborts every active sub-transaction, used when the coordinator is gone.
+     * Prepared ones stay in doubt, and ask the coordinator after a restart
+     */
+    void abortTransactions(){
+        for(ActiveTransaction transaction : transactions.values()){
+            if(transaction.isPrepared()) continue;
 
-    //Aborts the transaction
-    void abortTransaction() {
+            Timeout timeout = transaction.getTimeout();
+            if(timeout != null) timeout.cancel();
 
-        //Reads log to know what to undo
-        String log = LogManager.readLog(String.valueOf(id));
+            abortTransaction(transaction);
+        }
+    }
+
+    /**
+     * Aborts a sub-transaction
+     *
+     * @param transaction the sub-transaction
+     */
+    private void abortTransaction(ActiveTransaction transaction){
+        SubTransaction subTransaction = transaction.getSubTransaction();
+        LogRecord record = null;
+
+        //Waits for an execution or validation in progress, so its update is logged and can be undone
+        transaction.lock();
+        try {
+            if(!transaction.finish()) return;
+
+            //Gets the update logged to know what to undo, optimistic updates and deltas are never applied before commit
+            if(concurrency == Concurrency.LOCKING && !transaction.isHot())
+                record = transaction.getUpdate();
+        } finally {
+            transaction.unlock();
+        }
+
+        //A presumed decision is neither forced nor acknowledged
+        boolean presumed = protocol.presumes(Vote.ABORT);
 
         //Writes <T, ABORT> to log
-        LogManager.writeLog(String.valueOf(id), transaction.getId() + ", ABORT" );
+        LogManager.writeLog(log, LogRecord.abort(subTransaction.getTransactionId(), subTransaction.getSubTransactionId()), protocol.forcesDecision(Vote.ABORT));
+
+        /*
+         * Undoes the update by reversing it, restoring the before-image
+         * would lose the updates of other sub-transactions on the account
+         */
+        if(record != null && record.getType() == LogRecord.Type.UPDATE)
+            accounts.deposit(record.getAccount(), record.getBefore() - record.getAfter());
 
-        //TODO: undo(log)
+        //Gives back what a withdrawal from a hot account held
+        if(transaction.isHot())
+            escrow.release(subTransaction.getAccount().getName(), AccountStore.toCents(subTransaction.getAmount()));
 
-        //Aborts the transaction
-        setState(State.ABORT);
-        transaction.abort();
+        //Aborts the transaction, the new state is the acknowledgement
+        setState(transaction, State.ABORT, !presumed);
+        subTransaction.abort();
 
         //Writes <T, END> to the log
-        LogManager.writeLog(String.valueOf(id), transaction.getId() + ", END" );
+        LogManager.writeLog(log, LogRecord.end(subTransaction.getTransactionId(), subTransaction.getSubTransactionId()), protocol == Protocol.BASIC);
+
+        /*
+         * Drops the update of an optimistic sub-transaction, so the account can be written again.
+         * Only after END, recovery must not undo an abort once the account may have been updated since
+         */
+        if(transaction.isReserved())
+            accounts.release(transaction.getSlot(), 0);
+
+        //Releases the account, or gives up waiting for it
+        if(concurrency == Concurrency.LOCKING && !transaction.isHot())
+            locks.release(subTransaction.getAccount().getName(), subTransaction.getTransactionId());
 
         //Forget phase - removes the sub-transaction
-        this.transaction = null;
-        setState(State.INITIALIZED);
+        transactions.remove(subTransaction.getId());
     }
-}
\ No newline at end of file
+}